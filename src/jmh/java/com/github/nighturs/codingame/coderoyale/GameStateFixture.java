@@ -0,0 +1,159 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Turns of a recorded game replayed into a {@link Player.GameState} through the same parsing code the bot uses on
+ * stdin. The replay is player 1's side of seed 0, recorded with
+ * {@code Host default pairs 2 1 --no-deadline --record <directory>}; each fixture is the state after one of its turns.
+ */
+final class GameStateFixture {
+
+    private static final String REPLAY = "/fixtures/seed-0-player-1.bin.gz";
+
+    private GameStateFixture() {
+    }
+
+    static Player.GameState load(String name) {
+        Player.GameState gameState = null;
+        ReplayReader replay = new ReplayReader();
+        for (int turn = 0; turn < turnsOf(name); turn++) {
+            gameState = replay.readTurn(gameState);
+        }
+        return gameState;
+    }
+
+    /**
+     * The turn a fixture stops at, fed afresh to a copy of the state before it on every call to {@link Turn#next()}.
+     */
+    static Turn loadTurn(String name) {
+        Player.GameState before = null;
+        ReplayReader replay = new ReplayReader();
+        // Earlier turns are decided as in a game, so what the bot builds on first use and keeps across turns, like the
+        // path finder's graph, is there already
+        Player.TurnEngine turnEngine = Player.TurnEngine.create();
+        for (int turn = 1; turn < turnsOf(name); turn++) {
+            before = replay.readTurn(before);
+            turnEngine.findMove(before);
+        }
+        return new Turn(before, replay.nextTurnInput());
+    }
+
+    static final class Turn {
+
+        private final Player.GameState before;
+        private final int[] input;
+
+        private Turn(Player.GameState before, int[] input) {
+            this.before = before;
+            this.input = input;
+        }
+
+        /**
+         * State after the turn was read, with every cache the turn's decision fills still empty. What the bot keeps
+         * across turns is shared with the state before, except for the routes the path finder kept, which a copy
+         * starts without.
+         */
+        Player.GameState next() {
+            Player.GameState gameState = before.copy();
+            Player.ProtocolCodec.create(new ReplayRunner.IntBufferInput(IntBuffer.wrap(input)),
+                    new ByteArrayOutputStream()).readTurn(gameState);
+            return gameState;
+        }
+    }
+
+    /**
+     * Walks the replay's records, reading them through one codec like the bot reads stdin.
+     */
+    private static final class ReplayReader {
+
+        private final IntBuffer ints = readReplay();
+        private final Player.ProtocolCodec codec =
+                Player.ProtocolCodec.create(new ReplayRunner.IntBufferInput(ints), new ByteArrayOutputStream());
+
+        /**
+         * Reads records up to and including the next turn, {@code gameState} is null until the statics are read.
+         */
+        Player.GameState readTurn(Player.GameState gameState) {
+            while (true) {
+                int end = nextRecordEnd();
+                int kind = ints.get();
+                if (kind == Player.ReplayRecorder.STATICS) {
+                    gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+                    // Benchmarks run long after the turn was read, an expired budget would measure the degraded rules
+                    gameState.getTurnBudget().disable();
+                } else if (kind == Player.ReplayRecorder.TURN) {
+                    codec.readTurn(gameState);
+                    ints.position(end);
+                    return gameState;
+                }
+                ints.position(end);
+            }
+        }
+
+        /**
+         * Input of the next turn, left unread.
+         */
+        int[] nextTurnInput() {
+            while (true) {
+                int end = nextRecordEnd();
+                if (ints.get() == Player.ReplayRecorder.TURN) {
+                    int[] input = new int[end - ints.position()];
+                    ints.get(input);
+                    return input;
+                }
+                ints.position(end);
+            }
+        }
+
+        private int nextRecordEnd() {
+            if (!ints.hasRemaining()) {
+                throw new IllegalArgumentException("Replay ends before the fixture's turn");
+            }
+            int end = ints.get();
+            return end + ints.position();
+        }
+    }
+
+    /**
+     * Turn of the replay each fixture stops at. In {@code blocked} a friendly knight stands in the queen's step to
+     * the closest site, so give-way has to solve rather than exit early.
+     */
+    private static int turnsOf(String name) {
+        switch (name) {
+            case "early":
+                return 10;
+            case "mid":
+                return 80;
+            case "late":
+                return 150;
+            case "blocked":
+                return 68;
+            default:
+                throw new IllegalArgumentException("Unknown fixture " + name);
+        }
+    }
+
+    private static IntBuffer readReplay() {
+        try (InputStream stream = GameStateFixture.class.getResourceAsStream(REPLAY)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing replay " + REPLAY);
+            }
+            InputStream in = new GZIPInputStream(stream);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[1 << 13];
+            for (int read = in.read(buf); read != -1; read = in.read(buf)) {
+                bytes.write(buf, 0, read);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray()).asIntBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
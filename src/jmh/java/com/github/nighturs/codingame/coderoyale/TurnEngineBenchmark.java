@@ -0,0 +1,112 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decision latency of the whole turn and of the heaviest rules, one at a time. Run with {@code -prof gc} to get
+ * allocation rate per operation next to the timings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TurnEngineBenchmark {
+
+    // blocked is for giveWayToKnight, the other fixtures have nothing in the queen's way
+    @Param({"early", "mid", "late", "blocked"})
+    public String fixture;
+
+    private Player.GameState gameState;
+    private GameStateFixture.Turn turn;
+    private Player.BuildingSite firstSite;
+    private Optional<Player.BuildingSite> secondSite;
+    private Player.Move preferredMove;
+    private final Player.TurnEngine turnEngine = Player.TurnEngine.create();
+    private final Player.GiveWayToKnightRule giveWayToKnightRule = new Player.GiveWayToKnightRule();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        gameState = GameStateFixture.load(fixture);
+        Player.Unit myQueen = gameState.getMyQueen();
+        Optional<Player.BuildingSite> touchedSite = gameState.getTouchedSiteOpt();
+        Player.BuildingSite closest = null;
+        Player.BuildingSite nextClosest = null;
+        double closestDist = Double.MAX_VALUE;
+        double nextClosestDist = Double.MAX_VALUE;
+        for (Player.BuildingSite site : gameState.getBuildingSites()) {
+            if (touchedSite.isPresent() && touchedSite.get().getId() == site.getId()) {
+                continue;
+            }
+            double dist = Player.Utils.dist(myQueen.getX(), myQueen.getY(), site.getX(), site.getY());
+            if (dist < closestDist) {
+                nextClosest = closest;
+                nextClosestDist = closestDist;
+                closest = site;
+                closestDist = dist;
+            } else if (dist < nextClosestDist) {
+                nextClosest = site;
+                nextClosestDist = dist;
+            }
+        }
+        firstSite = closest;
+        secondSite = Optional.ofNullable(nextClosest);
+        preferredMove = new Player.MoveBuilder().setX(firstSite.getX()).setY(firstSite.getY()).createMove();
+        turn = GameStateFixture.loadTurn(fixture);
+    }
+
+    @Benchmark
+    public Object findMove(NextTurn nextTurn) {
+        return turnEngine.findMove(nextTurn.gameState);
+    }
+
+    @Benchmark
+    public Object findPath() {
+        return Player.GoToNewSiteRule.findPath(gameState.getMyQueen().getX(),
+                gameState.getMyQueen().getY(),
+                firstSite,
+                secondSite,
+                gameState);
+    }
+
+    @Benchmark
+    public Object buildingDecision() {
+        gameState.getBuildingDecisionCache().invalidate();
+        return Player.BuildStructureRule.buildingDecision(firstSite, gameState, false);
+    }
+
+    @Benchmark
+    public Object giveWayToKnight() {
+        return giveWayToKnightRule.makeMove(preferredMove, gameState);
+    }
+
+    /**
+     * The fixture's turn read afresh for every findMove call, deciding the same state again would only read what the
+     * last call cached. Reading runs outside the measured time, but per call, so it only suits benchmarks that take
+     * far longer than reading the clock, as findMove does.
+     */
+    @State(Scope.Thread)
+    public static class NextTurn {
+
+        private Player.GameState gameState;
+
+        @Setup(Level.Invocation)
+        public void readTurn(TurnEngineBenchmark benchmark) {
+            gameState = benchmark.turn.next();
+        }
+    }
+}
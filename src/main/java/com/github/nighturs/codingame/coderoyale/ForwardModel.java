@@ -0,0 +1,651 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.BarracksType;
+import com.github.nighturs.codingame.coderoyale.Player.BuildingSite;
+import com.github.nighturs.codingame.coderoyale.Player.BuildingSiteStatic;
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.Owner;
+import com.github.nighturs.codingame.coderoyale.Player.StructureType;
+import com.github.nighturs.codingame.coderoyale.Player.Unit;
+import com.github.nighturs.codingame.coderoyale.Player.UnitType;
+import com.github.nighturs.codingame.coderoyale.Player.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.nighturs.codingame.coderoyale.Player.ARCHER_COST;
+import static com.github.nighturs.codingame.coderoyale.Player.ARCHER_TRAIN_TURNS;
+import static com.github.nighturs.codingame.coderoyale.Player.CONTACT_RANGE;
+import static com.github.nighturs.codingame.coderoyale.Player.GIANT_COST;
+import static com.github.nighturs.codingame.coderoyale.Player.GIANT_TRAIN_TURNS;
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_HEIGHT;
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_WIDTH;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_COST;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_SPEED;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_TRAIN_TURNS;
+import static com.github.nighturs.codingame.coderoyale.Player.MAX_TOWER_HP;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_SPEED;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_TOWER_UP;
+
+/**
+ * The referee's turn, cut down to what the search needs and seen from our side. The enemy queen waits and the
+ * enemy trains knights whenever its estimated gold allows. Creeps don't push each other and only queens are
+ * pushed out of sites. Gold of a mine we can't see is taken as never running out. The rule constants and the rules
+ * both sides share live here, {@link Referee} plays its turns with them.
+ */
+public class ForwardModel {
+
+    static final int TOWER_INITIAL_HP = 200;
+    static final int TOWER_MELT_RATE = 4;
+    static final int TOWER_COVERAGE_PER_HP = 1000;
+    static final int TOWER_CREEP_DAMAGE_MIN = 3;
+    static final int TOWER_QUEEN_DAMAGE_MIN = 1;
+    static final int TOWER_DAMAGE_CLIMB_DIST = 200;
+    static final int GIANT_BUST_RATE = 80;
+    static final int KNIGHT_DAMAGE = 1;
+    static final int ARCHER_RADIUS = 25;
+    static final int ARCHER_SPEED = 75;
+    static final int ARCHER_RANGE = 200;
+    static final int ARCHER_DAMAGE = 2;
+    static final int ARCHER_DAMAGE_TO_GIANTS = 10;
+    static final int GIANT_RADIUS = 40;
+    static final int GIANT_SPEED = 50;
+    private static final Owner[] OWNERS = Owner.values();
+    private static final StructureType[] STRUCTURE_TYPES = StructureType.values();
+    private static final BarracksType[] BARRACKS_TYPES = BarracksType.values();
+    private static final UnitType[] UNIT_TYPES = UnitType.values();
+    private static final int NONE = Owner.NONE.ordinal();
+    private static final int FRIENDLY = Owner.FRIENDLY.ordinal();
+    private static final int ENEMY = Owner.ENEMY.ordinal();
+    private static final int QUEEN = UnitType.QUEEN.ordinal();
+    private static final int KNIGHT = UnitType.KNIGHT.ordinal();
+    private static final int ARCHER = UnitType.ARCHER.ordinal();
+    private static final int GIANT = UnitType.GIANT.ordinal();
+    private static final int MINE = StructureType.MINE.ordinal();
+    private static final int TOWER = StructureType.TOWER.ordinal();
+    private static final int BARRACKS = StructureType.BARRACKS.ordinal();
+
+    // Site columns indexed by site id, siteOrder keeps the order of the turn input
+    private final int[] siteOrder;
+    private final int[] siteX, siteY, siteRadius;
+    private final int[] siteOwner, siteStructureType, siteBarracksType;
+    private final int[] siteTowerHP, siteUntilTrain, siteGold, siteMaxMineSize, siteIncomeRate;
+    private int unitCount;
+    private double[] unitX = new double[0], unitY = new double[0];
+    private int[] unitOwner = new int[0], unitType = new int[0], unitHP = new int[0];
+    private int myQueen;
+    private int enemyQueen;
+    private int gold;
+    private int enemyGold;
+    private int touchedSite;
+
+    public static ForwardModel create(GameState gameState) {
+        return new ForwardModel(gameState);
+    }
+
+    public ForwardModel(GameState gameState) {
+        int maxId = -1;
+        for (BuildingSiteStatic site : gameState.getBuildingSiteStatics()) {
+            maxId = Math.max(maxId, site.getId());
+        }
+        siteOrder = new int[gameState.getSiteCount()];
+        siteX = new int[maxId + 1];
+        siteY = new int[maxId + 1];
+        siteRadius = new int[maxId + 1];
+        siteOwner = new int[maxId + 1];
+        siteStructureType = new int[maxId + 1];
+        siteBarracksType = new int[maxId + 1];
+        siteTowerHP = new int[maxId + 1];
+        siteUntilTrain = new int[maxId + 1];
+        siteGold = new int[maxId + 1];
+        siteMaxMineSize = new int[maxId + 1];
+        siteIncomeRate = new int[maxId + 1];
+    }
+
+    /**
+     * Resets the model to the current turn of the game.
+     */
+    public void load(GameState gameState) {
+        for (int i = 0; i < siteOrder.length; i++) {
+            int id = gameState.getSiteIdAt(i);
+            siteOrder[i] = id;
+            siteX[id] = gameState.getSiteX(id);
+            siteY[id] = gameState.getSiteY(id);
+            siteRadius[id] = gameState.getSiteRadius(id);
+            siteOwner[id] = gameState.getSiteOwner(id).ordinal();
+            siteStructureType[id] = gameState.getSiteStructureType(id).ordinal();
+            siteBarracksType[id] = gameState.getSiteBarracksType(id).ordinal();
+            siteTowerHP[id] = gameState.getSiteTowerHP(id);
+            siteUntilTrain[id] = gameState.getSiteUntilTrain(id);
+            siteGold[id] = gameState.getSiteGold(id);
+            siteMaxMineSize[id] = gameState.getSiteMaxMineSize(id);
+            siteIncomeRate[id] = gameState.getSiteIncomeRate(id);
+        }
+        unitCount = 0;
+        for (int i = 0; i < gameState.getUnitCount(); i++) {
+            addUnit(gameState.getUnitX(i),
+                    gameState.getUnitY(i),
+                    gameState.getUnitOwner(i).ordinal(),
+                    gameState.getUnitType(i).ordinal(),
+                    gameState.getUnitHP(i));
+        }
+        findQueens();
+        gold = gameState.getGoldLeft();
+        enemyGold = gameState.getEnemyGold();
+        touchedSite = gameState.getTouchedSiteOpt().isPresent() ? gameState.getTouchedSiteOpt().get().getId() : -1;
+    }
+
+    /**
+     * Plays our move against a waiting enemy queen.
+     */
+    public void step(Move move) {
+        train(FRIENDLY, move.getTrainInSites());
+        trainEnemyKnights();
+        int buildSite = -1;
+        if (move.getX() != null) {
+            moveTowards(myQueen, move.getX(), move.getY(), QUEEN_SPEED);
+        } else if (move.getStructureType() != null) {
+            if (touchedSite == move.getSiteId()) {
+                buildSite = move.getSiteId();
+            } else {
+                moveTowards(myQueen, siteX[move.getSiteId()], siteY[move.getSiteId()], QUEEN_SPEED);
+            }
+        }
+        if (buildSite != -1) {
+            build(buildSite, move.getStructureType().ordinal(), move.getBarracksType());
+        }
+        moveCreeps();
+        pushQueenOut(myQueen);
+        fight();
+        updateTowers();
+        ageCreeps();
+        updateBarracks();
+        collectIncome();
+        for (int i = 0; i < unitCount; i++) {
+            unitX[i] = Math.round(unitX[i]);
+            unitY[i] = Math.round(unitY[i]);
+        }
+        touchedSite = -1;
+        for (int id : siteOrder) {
+            if (touches(myQueen, siteX[id], siteY[id], siteRadius[id])) {
+                touchedSite = id;
+                break;
+            }
+        }
+    }
+
+    public boolean isOver() {
+        return unitHP[myQueen] <= 0 || unitHP[enemyQueen] <= 0;
+    }
+
+    /**
+     * Hands the model's turn to {@code gameState} the way the protocol would.
+     */
+    public void writeTurn(GameState gameState) {
+        List<BuildingSite> buildingSites = new ArrayList<>(siteOrder.length);
+        for (int id : siteOrder) {
+            boolean mine = siteStructureType[id] == MINE;
+            boolean tower = siteStructureType[id] == TOWER;
+            boolean barracks = siteStructureType[id] == BARRACKS;
+            buildingSites.add(BuildingSite.create(gameState.getBuildingSiteStaticById(id),
+                    STRUCTURE_TYPES[siteStructureType[id]],
+                    OWNERS[siteOwner[id]],
+                    barracks ? siteUntilTrain[id] : 0,
+                    siteGold[id],
+                    siteMaxMineSize[id],
+                    tower ? siteTowerHP[id] : 0,
+                    tower ? towerRange(id) : 0,
+                    mine ? siteIncomeRate[id] : 0,
+                    barracks ? BARRACKS_TYPES[siteBarracksType[id]] : BarracksType.NONE));
+        }
+        List<Unit> units = new ArrayList<>(unitCount);
+        for (int i = 0; i < unitCount; i++) {
+            units.add(Unit.create((int) unitX[i],
+                    (int) unitY[i],
+                    OWNERS[unitOwner[i]],
+                    UNIT_TYPES[unitType[i]],
+                    unitHP[i]));
+        }
+        gameState.initTurn(gold, touchedSite, buildingSites, units);
+    }
+
+    /**
+     * Queen health against the enemy's. Rollouts are too short to tell a better economy from a delayed one, so the
+     * rules' plans are left alone and the search only steps in when another move keeps the queen healthier.
+     */
+    public double evaluate() {
+        if (unitHP[myQueen] <= 0) {
+            return -1e6;
+        }
+        if (unitHP[enemyQueen] <= 0) {
+            return 1e6;
+        }
+        return unitHP[myQueen] - unitHP[enemyQueen];
+    }
+
+    private void train(int owner, List<Integer> trainInSites) {
+        int cost = 0;
+        for (int id : trainInSites) {
+            if (siteOwner[id] != owner || siteStructureType[id] != BARRACKS || siteUntilTrain[id] > 0) {
+                return;
+            }
+            cost += creepCost(BARRACKS_TYPES[siteBarracksType[id]]);
+        }
+        if (cost > gold) {
+            return;
+        }
+        gold -= cost;
+        for (int id : trainInSites) {
+            siteUntilTrain[id] = creepTrainTurns(BARRACKS_TYPES[siteBarracksType[id]]);
+        }
+    }
+
+    private void trainEnemyKnights() {
+        for (int id : siteOrder) {
+            if (siteOwner[id] == ENEMY && siteStructureType[id] == BARRACKS
+                    && siteBarracksType[id] == BarracksType.KNIGHT.ordinal() && siteUntilTrain[id] == 0
+                    && enemyGold >= KNIGHT_COST) {
+                enemyGold -= KNIGHT_COST;
+                siteUntilTrain[id] = creepTrainTurns(BarracksType.KNIGHT);
+            }
+        }
+    }
+
+    private void build(int id, int structureType, BarracksType barracksType) {
+        if (siteOwner[id] == ENEMY && siteStructureType[id] == TOWER) {
+            return;
+        }
+        boolean own = siteOwner[id] == FRIENDLY;
+        if (structureType == MINE) {
+            if (siteGold[id] == 0) {
+                return;
+            }
+            if (own && siteStructureType[id] == MINE) {
+                int maxMineSize = siteMaxMineSize[id] == -1 ? Integer.MAX_VALUE : siteMaxMineSize[id];
+                siteIncomeRate[id] = Math.min(siteIncomeRate[id] + 1, maxMineSize);
+            } else {
+                reset(id, FRIENDLY, MINE);
+                siteIncomeRate[id] = 1;
+            }
+        } else if (structureType == TOWER) {
+            if (own && siteStructureType[id] == TOWER) {
+                siteTowerHP[id] = Math.min(siteTowerHP[id] + QUEEN_TOWER_UP, MAX_TOWER_HP);
+            } else {
+                reset(id, FRIENDLY, TOWER);
+                siteTowerHP[id] = TOWER_INITIAL_HP;
+            }
+        } else {
+            if (own && siteStructureType[id] == BARRACKS && siteBarracksType[id] == barracksType.ordinal()) {
+                return;
+            }
+            reset(id, FRIENDLY, BARRACKS);
+            siteBarracksType[id] = barracksType.ordinal();
+        }
+    }
+
+    private void reset(int id, int owner, int structureType) {
+        siteOwner[id] = owner;
+        siteStructureType[id] = structureType;
+        siteBarracksType[id] = BarracksType.NONE.ordinal();
+        siteTowerHP[id] = 0;
+        siteUntilTrain[id] = 0;
+        siteIncomeRate[id] = 0;
+    }
+
+    private void moveCreeps() {
+        for (int i = 0; i < unitCount; i++) {
+            if (unitType[i] == KNIGHT) {
+                int queen = unitOwner[i] == FRIENDLY ? enemyQueen : myQueen;
+                approach(i, unitX[queen], unitY[queen], QUEEN_RADIUS, 0);
+            } else if (unitType[i] == ARCHER) {
+                int target = closestEnemyCreep(i);
+                if (target == -1) {
+                    int queen = unitOwner[i] == FRIENDLY ? myQueen : enemyQueen;
+                    approach(i, unitX[queen], unitY[queen], QUEEN_RADIUS, 0);
+                } else {
+                    approach(i, unitX[target], unitY[target], radius(unitType[target]), ARCHER_RANGE);
+                }
+            } else if (unitType[i] == GIANT) {
+                int target = closestEnemyTower(i);
+                if (target != -1) {
+                    approach(i, siteX[target], siteY[target], siteRadius[target], 0);
+                }
+            }
+        }
+    }
+
+    private void fight() {
+        for (int i = 0; i < unitCount; i++) {
+            if (unitType[i] == KNIGHT) {
+                int queen = unitOwner[i] == FRIENDLY ? enemyQueen : myQueen;
+                if (touches(i, unitX[queen], unitY[queen], QUEEN_RADIUS)) {
+                    unitHP[queen]--;
+                }
+            } else if (unitType[i] == ARCHER) {
+                int target = closestEnemyCreep(i);
+                if (target != -1 && dist(i, unitX[target], unitY[target]) - radius(unitType[target])
+                        - radius(ARCHER) <= ARCHER_RANGE) {
+                    unitHP[target] -= archerDamage(UNIT_TYPES[unitType[target]]);
+                }
+            } else if (unitType[i] == GIANT) {
+                int target = closestEnemyTower(i);
+                if (target != -1 && touches(i, siteX[target], siteY[target], siteRadius[target])) {
+                    siteTowerHP[target] -= GIANT_BUST_RATE;
+                }
+            }
+        }
+        for (int id : siteOrder) {
+            if (siteStructureType[id] != TOWER) {
+                continue;
+            }
+            int range = towerRange(id);
+            int target = -1;
+            double targetDist = Double.MAX_VALUE;
+            for (int i = 0; i < unitCount; i++) {
+                double dist = dist(i, siteX[id], siteY[id]);
+                if (unitOwner[i] != siteOwner[id] && unitType[i] != QUEEN && dist < range && dist < targetDist) {
+                    target = i;
+                    targetDist = dist;
+                }
+            }
+            if (target != -1) {
+                unitHP[target] -= towerDamage(TOWER_CREEP_DAMAGE_MIN, range, targetDist);
+                continue;
+            }
+            int queen = siteOwner[id] == FRIENDLY ? enemyQueen : myQueen;
+            double dist = dist(queen, siteX[id], siteY[id]);
+            if (dist < range) {
+                unitHP[queen] -= towerDamage(TOWER_QUEEN_DAMAGE_MIN, range, dist);
+            }
+        }
+    }
+
+    private void updateTowers() {
+        for (int id : siteOrder) {
+            if (siteStructureType[id] != TOWER) {
+                continue;
+            }
+            siteTowerHP[id] -= TOWER_MELT_RATE;
+            if (siteTowerHP[id] <= 0) {
+                reset(id, NONE, StructureType.NONE.ordinal());
+            }
+        }
+    }
+
+    private void ageCreeps() {
+        int alive = 0;
+        for (int i = 0; i < unitCount; i++) {
+            if (unitType[i] != QUEEN) {
+                unitHP[i]--;
+            }
+            if (unitType[i] == QUEEN || unitHP[i] > 0) {
+                unitX[alive] = unitX[i];
+                unitY[alive] = unitY[i];
+                unitOwner[alive] = unitOwner[i];
+                unitType[alive] = unitType[i];
+                unitHP[alive] = unitHP[i];
+                alive++;
+            }
+        }
+        unitCount = alive;
+        findQueens();
+    }
+
+    private void updateBarracks() {
+        for (int id : siteOrder) {
+            if (siteStructureType[id] != BARRACKS || siteUntilTrain[id] == 0) {
+                continue;
+            }
+            siteUntilTrain[id]--;
+            if (siteUntilTrain[id] == 0) {
+                spawn(id);
+            }
+        }
+    }
+
+    private void spawn(int id) {
+        UnitType creepType = creepType(BARRACKS_TYPES[siteBarracksType[id]]);
+        int type = creepType.ordinal();
+        int count = creepCount(creepType);
+        int hp = creepHp(creepType);
+        int queen = siteOwner[id] == FRIENDLY ? enemyQueen : myQueen;
+        double dist = Utils.dist(siteX[id], siteY[id], unitX[queen], unitY[queen]);
+        double dirX = dist == 0 ? 1 : (unitX[queen] - siteX[id]) / dist;
+        double dirY = dist == 0 ? 0 : (unitY[queen] - siteY[id]) / dist;
+        double offset = siteRadius[id] + radius(type);
+        for (int i = 0; i < count; i++) {
+            addUnit(siteX[id] + dirX * offset, siteY[id] + dirY * offset, siteOwner[id], type, hp);
+            clamp(unitCount - 1);
+        }
+    }
+
+    private void collectIncome() {
+        for (int id : siteOrder) {
+            if (siteStructureType[id] != MINE) {
+                continue;
+            }
+            int income = siteOwner[id] == FRIENDLY ? siteIncomeRate[id] : Math.max(siteIncomeRate[id], 1);
+            if (siteGold[id] != -1) {
+                income = Math.min(income, siteGold[id]);
+                siteGold[id] -= income;
+            }
+            if (siteOwner[id] == FRIENDLY) {
+                gold += income;
+            } else {
+                enemyGold += income;
+            }
+            if (siteGold[id] == 0) {
+                reset(id, NONE, StructureType.NONE.ordinal());
+            }
+        }
+    }
+
+    private void pushQueenOut(int queen) {
+        for (int id : siteOrder) {
+            double dist = dist(queen, siteX[id], siteY[id]);
+            double overlap = QUEEN_RADIUS + siteRadius[id] - dist;
+            if (overlap > 0) {
+                unitX[queen] += (dist == 0 ? 1 : (unitX[queen] - siteX[id]) / dist) * overlap;
+                unitY[queen] += (dist == 0 ? 0 : (unitY[queen] - siteY[id]) / dist) * overlap;
+            }
+        }
+        clamp(queen);
+    }
+
+    private int closestEnemyCreep(int unit) {
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int i = 0; i < unitCount; i++) {
+            if (unitOwner[i] == unitOwner[unit] || unitType[i] == QUEEN) {
+                continue;
+            }
+            double dist = dist(unit, unitX[i], unitY[i]);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int closestEnemyTower(int unit) {
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int id : siteOrder) {
+            if (siteOwner[id] == unitOwner[unit] || siteStructureType[id] != TOWER) {
+                continue;
+            }
+            double dist = dist(unit, siteX[id], siteY[id]);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = id;
+            }
+        }
+        return best;
+    }
+
+    private void approach(int unit, double toX, double toY, int toRadius, int stopRange) {
+        double gap = dist(unit, toX, toY) - radius(unitType[unit]) - toRadius - stopRange;
+        if (gap > 0) {
+            moveTowards(unit, toX, toY, Math.min(speed(unitType[unit]), gap));
+        }
+    }
+
+    private void moveTowards(int unit, double toX, double toY, double maxStep) {
+        double dist = dist(unit, toX, toY);
+        if (dist <= maxStep) {
+            unitX[unit] = toX;
+            unitY[unit] = toY;
+        } else {
+            unitX[unit] += (toX - unitX[unit]) / dist * maxStep;
+            unitY[unit] += (toY - unitY[unit]) / dist * maxStep;
+        }
+        clamp(unit);
+    }
+
+    private void clamp(int unit) {
+        int radius = radius(unitType[unit]);
+        unitX[unit] = Math.max(radius, Math.min(GRID_WIDTH - radius, unitX[unit]));
+        unitY[unit] = Math.max(radius, Math.min(GRID_HEIGHT - radius, unitY[unit]));
+    }
+
+    private boolean touches(int unit, double toX, double toY, int toRadius) {
+        return dist(unit, toX, toY) - radius(unitType[unit]) - toRadius < CONTACT_RANGE;
+    }
+
+    private double dist(int unit, double toX, double toY) {
+        return Utils.dist(unitX[unit], unitY[unit], toX, toY);
+    }
+
+    private int towerRange(int id) {
+        return towerRange(siteRadius[id], siteTowerHP[id]);
+    }
+
+    private void addUnit(double x, double y, int owner, int type, int hp) {
+        if (unitX.length == unitCount) {
+            int capacity = Math.max(16, unitCount * 2);
+            unitX = Arrays.copyOf(unitX, capacity);
+            unitY = Arrays.copyOf(unitY, capacity);
+            unitOwner = Arrays.copyOf(unitOwner, capacity);
+            unitType = Arrays.copyOf(unitType, capacity);
+            unitHP = Arrays.copyOf(unitHP, capacity);
+        }
+        unitX[unitCount] = x;
+        unitY[unitCount] = y;
+        unitOwner[unitCount] = owner;
+        unitType[unitCount] = type;
+        unitHP[unitCount] = hp;
+        unitCount++;
+    }
+
+    private void findQueens() {
+        for (int i = 0; i < unitCount; i++) {
+            if (unitType[i] == QUEEN) {
+                if (unitOwner[i] == FRIENDLY) {
+                    myQueen = i;
+                } else {
+                    enemyQueen = i;
+                }
+            }
+        }
+    }
+
+    private static int radius(int type) {
+        return type == QUEEN ? QUEEN_RADIUS : type == KNIGHT ? KNIGHT_RADIUS :
+                type == ARCHER ? ARCHER_RADIUS : GIANT_RADIUS;
+    }
+
+    private static int speed(int type) {
+        return type == QUEEN ? QUEEN_SPEED : type == KNIGHT ? KNIGHT_SPEED :
+                type == ARCHER ? ARCHER_SPEED : GIANT_SPEED;
+    }
+
+    static int towerRange(int siteRadius, int towerHp) {
+        double area = Math.PI * siteRadius * siteRadius;
+        return (int) Math.sqrt((towerHp * TOWER_COVERAGE_PER_HP + area) / Math.PI);
+    }
+
+    /**
+     * Damage of a tower hitting a target {@code dist} away, {@code minDamage} at the edge of its range and climbing
+     * towards the tower.
+     */
+    static int towerDamage(int minDamage, int range, double dist) {
+        return minDamage + (int) ((range - dist) / TOWER_DAMAGE_CLIMB_DIST);
+    }
+
+    static int archerDamage(UnitType target) {
+        return target == UnitType.GIANT ? ARCHER_DAMAGE_TO_GIANTS : ARCHER_DAMAGE;
+    }
+
+    static UnitType creepType(BarracksType barracksType) {
+        switch (barracksType) {
+            case KNIGHT:
+                return UnitType.KNIGHT;
+            case ARCHER:
+                return UnitType.ARCHER;
+            case GIANT:
+                return UnitType.GIANT;
+            default:
+                throw new RuntimeException("Unknown barracks type");
+        }
+    }
+
+    static int creepCost(BarracksType barracksType) {
+        switch (barracksType) {
+            case KNIGHT:
+                return KNIGHT_COST;
+            case ARCHER:
+                return ARCHER_COST;
+            case GIANT:
+                return GIANT_COST;
+            default:
+                throw new RuntimeException("Unknown barracks type");
+        }
+    }
+
+    /**
+     * Turns from training to the spawn, one more than the bot's own constants which count from the turn after.
+     */
+    static int creepTrainTurns(BarracksType barracksType) {
+        switch (barracksType) {
+            case KNIGHT:
+                return KNIGHT_TRAIN_TURNS + 1;
+            case ARCHER:
+                return ARCHER_TRAIN_TURNS + 1;
+            case GIANT:
+                return GIANT_TRAIN_TURNS + 1;
+            default:
+                throw new RuntimeException("Unknown barracks type");
+        }
+    }
+
+    static int creepCount(UnitType type) {
+        switch (type) {
+            case KNIGHT:
+                return 4;
+            case ARCHER:
+                return 2;
+            case GIANT:
+                return 1;
+            default:
+                throw new RuntimeException("Unknown unit type");
+        }
+    }
+
+    static int creepHp(UnitType type) {
+        switch (type) {
+            case KNIGHT:
+                return 30;
+            case ARCHER:
+                return 45;
+            case GIANT:
+                return 200;
+            default:
+                throw new RuntimeException("Unknown unit type");
+        }
+    }
+}
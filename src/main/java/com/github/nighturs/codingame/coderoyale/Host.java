@@ -0,0 +1,434 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.BarracksType;
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.Histogram;
+import com.github.nighturs.codingame.coderoyale.Player.IntInput;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.MoveBuilder;
+import com.github.nighturs.codingame.coderoyale.Player.ProtocolCodec;
+import com.github.nighturs.codingame.coderoyale.Player.ReplayRecorder;
+import com.github.nighturs.codingame.coderoyale.Player.StructureType;
+import com.github.nighturs.codingame.coderoyale.Player.TurnBudget;
+import com.github.nighturs.codingame.coderoyale.Referee.Bot;
+import com.github.nighturs.codingame.coderoyale.Referee.GameResult;
+import com.github.nighturs.codingame.coderoyale.Tournament.Standings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hosts many games in one JVM, with the bots playing the way {@link Player#main} does: each seat is a bot instance
+ * with its own codec, {@link GameState} and rules, reading its input from and writing its moves to in-memory channels
+ * instead of stdin and stdout. Games are spread over a fixed pool one turn at a time, a game goes back to the end of
+ * the queue after every turn, so a slow game holds a single worker for a single turn and the others keep going. With
+ * deadlines on, turn budgets are live and a seat that answers later than CodinGame allows loses the game.
+ */
+public class Host {
+
+    static final long FIRST_TURN_LIMIT_NANOS = 1_000_000_000L;
+    static final long TURN_LIMIT_NANOS = 50_000_000L;
+
+    private final Supplier<Bot> botA;
+    private final Supplier<Bot> botB;
+    private final int games;
+    private final int threads;
+    private final boolean deadlines;
+    private Optional<File> recordDir = Optional.empty();
+
+    public static Host create(Supplier<Bot> botA, Supplier<Bot> botB, int games, int threads, boolean deadlines) {
+        return new Host(botA, botB, games, threads, deadlines);
+    }
+
+    public Host(Supplier<Bot> botA, Supplier<Bot> botB, int games, int threads, boolean deadlines) {
+        this.botA = botA;
+        this.botB = botB;
+        this.games = games;
+        this.threads = threads;
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * Makes every seat write a {@link ReplayRecorder} replay of its side to {@code game-<game>-<player>.bin} in the
+     * given directory.
+     */
+    public void setRecordDir(File recordDir) {
+        this.recordDir = Optional.of(recordDir);
+    }
+
+    /**
+     * Plays every game to the end. Game {@code i} is played on seed {@code i / 2}, odd games have A playing second.
+     */
+    public Report run() {
+        List<HostedGame> hostedGames = new ArrayList<>(games);
+        for (int i = 0; i < games; i++) {
+            Referee referee = Referee.create(i / 2);
+            hostedGames.add(i % 2 == 0 ? HostedGame.create(referee, botA.get(), botB.get(), deadlines) :
+                    HostedGame.create(referee, botB.get(), botA.get(), deadlines));
+            if (recordDir.isPresent()) {
+                hostedGames.get(i).record(recordDir.get(), i);
+            }
+        }
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(games);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        try {
+            for (HostedGame game : hostedGames) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean playing;
+                        try {
+                            playing = game.playTurn();
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                            playing = false;
+                        }
+                        if (playing) {
+                            executor.execute(this);
+                        } else {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return Report.create(hostedGames, System.nanoTime() - start);
+    }
+
+    /**
+     * Parses one answer of a bot, the action line followed by the TRAIN line.
+     */
+    static Move parseMove(String text) {
+        String[] lines = text.split("\n");
+        if (lines.length != 2 || !lines[1].startsWith("TRAIN")) {
+            throw new IllegalArgumentException("Expected an action and a TRAIN line, got " + text);
+        }
+        String[] action = lines[0].split(" ");
+        MoveBuilder move = new MoveBuilder();
+        switch (action[0]) {
+            case "WAIT":
+                break;
+            case "MOVE":
+                move.setX(Integer.parseInt(action[1])).setY(Integer.parseInt(action[2]));
+                break;
+            case "BUILD":
+                String[] structure = action[2].split("-");
+                move.setSiteId(Integer.parseInt(action[1])).setStructureType(StructureType.valueOf(structure[0]));
+                if (structure.length > 1) {
+                    move.setBarracksType(BarracksType.valueOf(structure[1]));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown action " + lines[0]);
+        }
+        String[] train = lines[1].split(" ");
+        List<Integer> trainInSites = new ArrayList<>(train.length - 1);
+        for (int i = 1; i < train.length; i++) {
+            trainInSites.add(Integer.parseInt(train[i]));
+        }
+        return move.setTrainInSites(trainInSites).createMove();
+    }
+
+    /**
+     * A referee and its two seats. Turns of one game never overlap, and handing the game to the executor between
+     * turns publishes its state to whichever worker plays the next one, so nothing in here is synchronized.
+     */
+    static class HostedGame {
+
+        private final Referee referee;
+        private final IntChannel[] inputs = {new IntChannel(), new IntChannel()};
+        private final TextChannel[] outputs = {new TextChannel(), new TextChannel()};
+        private final Seat[] seats = new Seat[2];
+        private final Histogram latency = new Histogram();
+        private final boolean deadlines;
+        private GameResult result;
+
+        public static HostedGame create(Referee referee, Bot bot0, Bot bot1, boolean deadlines) {
+            return new HostedGame(referee, bot0, bot1, deadlines);
+        }
+
+        public HostedGame(Referee referee, Bot bot0, Bot bot1, boolean deadlines) {
+            this.referee = referee;
+            this.deadlines = deadlines;
+            Bot[] bots = {bot0, bot1};
+            for (int p = 0; p < 2; p++) {
+                seats[p] = new Seat(ProtocolCodec.create(inputs[p], outputs[p]), bots[p], deadlines);
+                inputs[p].send(referee.siteInput());
+            }
+        }
+
+        void record(File dir, int index) {
+            for (int p = 0; p < 2; p++) {
+                try {
+                    seats[p].record(ReplayRecorder.create(new FileOutputStream(new File(dir,
+                            "game-" + index + "-" + p + ".bin"))));
+                } catch (FileNotFoundException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Plays one turn. A seat that throws, answers gibberish or runs over the time limit loses the game.
+         *
+         * @return false once the game is over
+         */
+        boolean playTurn() {
+            Move[] moves = new Move[2];
+            for (int p = 0; p < 2; p++) {
+                inputs[p].send(referee.turnInput(p));
+                long start = System.nanoTime();
+                try {
+                    seats[p].playTurn();
+                    moves[p] = parseMove(outputs[p].take());
+                } catch (RuntimeException e) {
+                    result = referee.forfeit(p);
+                    return false;
+                }
+                long nanos = System.nanoTime() - start;
+                latency.record(nanos);
+                if (deadlines && nanos > (referee.getTurn() == 0 ? FIRST_TURN_LIMIT_NANOS : TURN_LIMIT_NANOS)) {
+                    result = referee.forfeit(p);
+                    return false;
+                }
+            }
+            referee.advance(moves[0], moves[1]);
+            if (referee.isOver()) {
+                result = referee.result();
+                return false;
+            }
+            return true;
+        }
+
+        public Referee getReferee() {
+            return referee;
+        }
+
+        /**
+         * Nanoseconds from handing a seat its turn input to getting its answer, over both seats.
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public GameResult getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * One bot instance, the loop of {@link Player#main} turned inside out so the host decides when it runs.
+     */
+    static class Seat {
+
+        private final ProtocolCodec codec;
+        private final Bot bot;
+        private final boolean deadlines;
+        private GameState gameState;
+
+        public Seat(ProtocolCodec codec, Bot bot, boolean deadlines) {
+            this.codec = codec;
+            this.bot = bot;
+            this.deadlines = deadlines;
+        }
+
+        void record(ReplayRecorder recorder) {
+            codec.setRecorder(recorder);
+        }
+
+        void playTurn() {
+            if (gameState == null) {
+                gameState = GameState.create(codec.readBuildingSiteStatics(), bot.getParams());
+                if (!deadlines) {
+                    gameState.getTurnBudget().disable();
+                }
+            }
+            if (!codec.readTurn(gameState)) {
+                throw new IllegalStateException("No turn input");
+            }
+            codec.writeMove(bot.findMove(gameState));
+            codec.flush();
+        }
+    }
+
+    /**
+     * Input of a seat, one record of ints for the building sites and one per turn.
+     */
+    static class IntChannel implements IntInput {
+
+        private final ArrayDeque<int[]> records = new ArrayDeque<>();
+        private int[] record = new int[0];
+        private int pos;
+
+        public void send(int[] ints) {
+            records.add(ints);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pos == record.length && !records.isEmpty()) {
+                record = records.poll();
+                pos = 0;
+            }
+            return pos < record.length;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Channel is empty");
+            }
+            return record[pos++];
+        }
+    }
+
+    /**
+     * Output of a seat, holds what the bot printed until the host takes it.
+     */
+    static class TextChannel extends ByteArrayOutputStream {
+
+        public String take() {
+            String text = new String(toByteArray(), StandardCharsets.US_ASCII);
+            reset();
+            return text;
+        }
+    }
+
+    static class Report {
+
+        private final List<HostedGame> games;
+        private final long elapsedNanos;
+
+        public static Report create(List<HostedGame> games, long elapsedNanos) {
+            return new Report(games, elapsedNanos);
+        }
+
+        public Report(List<HostedGame> games, long elapsedNanos) {
+            this.games = games;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<HostedGame> getGames() {
+            return games;
+        }
+
+        /**
+         * Standings of A against B, A being player 0 of even games and player 1 of odd ones.
+         */
+        public Standings getStandings() {
+            int winsA = 0;
+            int winsB = 0;
+            int draws = 0;
+            int forfeits = 0;
+            for (int i = 0; i < games.size(); i++) {
+                GameResult result = games.get(i).getResult();
+                int winnerA = i % 2 == 0 ? 0 : 1;
+                if (result.getWinner() == -1) {
+                    draws++;
+                } else if (result.getWinner() == winnerA) {
+                    winsA++;
+                } else {
+                    winsB++;
+                }
+                if (result.isForfeit()) {
+                    forfeits++;
+                }
+            }
+            return Standings.create(winsA, winsB, draws, forfeits, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            Histogram all = new Histogram();
+            for (int i = 0; i < games.size(); i++) {
+                HostedGame game = games.get(i);
+                all.add(game.getLatency());
+                sb.append(String.format("Game %d on seed %d: %s in %d turns, latency %s%n",
+                        i,
+                        game.getReferee().getSeed(),
+                        game.getResult().getWinner() == -1 ? "draw" :
+                                "player " + game.getResult().getWinner() + " won" +
+                                        (game.getResult().isForfeit() ? " by forfeit" : ""),
+                        game.getResult().getTurns(),
+                        percentiles(game.getLatency())));
+            }
+            return sb.append(getStandings())
+                    .append(String.format("%nAll turns latency %s", percentiles(all)))
+                    .toString();
+        }
+
+        private static String percentiles(Histogram histogram) {
+            return String.format("p50 %dus, p99 %dus, max %dus",
+                    histogram.percentile(0.5) / 1000,
+                    histogram.percentile(0.99) / 1000,
+                    histogram.getMax() / 1000);
+        }
+    }
+
+    /**
+     * Usage: {@code Host [configA] [configB] [games] [threads] [--no-deadline] [--record <directory>]} with the
+     * configurations of {@link Tournament}, defaults to 100 games of {@code default} against itself using every core.
+     * Without {@code --no-deadline} the bots keep their {@link TurnBudget} and the time limits of CodinGame apply.
+     */
+    public static void main(String[] args) {
+        boolean deadlines = !Arrays.asList(args).contains("--no-deadline");
+        int recordArg = Arrays.asList(args).indexOf("--record");
+        if (recordArg == args.length - 1) {
+            throw new IllegalArgumentException("Usage: --record <directory>");
+        }
+        Optional<File> recordDir = recordArg == -1 ? Optional.empty() : Optional.of(new File(args[recordArg + 1]));
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (i == recordArg) {
+                i++;
+            } else if (!args[i].startsWith("--")) {
+                positional.add(args[i]);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        String configA = args.length > 0 ? args[0] : "default";
+        String configB = args.length > 1 ? args[1] : "default";
+        int games = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (!Tournament.CONFIGS.containsKey(configA) || !Tournament.CONFIGS.containsKey(configB)) {
+            throw new IllegalArgumentException("Unknown config, expected one of " + Tournament.CONFIGS.keySet());
+        }
+        System.out.println(configA + " (A) vs " + configB + " (B), " + games + " games on " + threads + " threads");
+        Host host = Host.create(Tournament.CONFIGS.get(configA),
+                Tournament.CONFIGS.get(configB),
+                games,
+                threads,
+                deadlines);
+        if (recordDir.isPresent()) {
+            host.setRecordDir(recordDir.get());
+        }
+        System.out.println(host.run());
+    }
+}
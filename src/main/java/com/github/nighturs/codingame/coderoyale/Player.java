@@ -1,17 +1,33 @@
 package com.github.nighturs.codingame.coderoyale;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+// offline:begin
+import java.lang.management.ManagementFactory;
+// offline:end
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Scanner;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Random;
+
+// offline:begin
+import com.sun.management.ThreadMXBean;
+// offline:end
 
 @SuppressWarnings({"NonFinalUtilityClass", "UtilityClassWithoutPrivateConstructor"})
 class Player {
@@ -33,59 +49,68 @@ class Player {
     static final int GIANT_TRAIN_TURNS = 9;
 
     public static void main(String[] args) {
-        Scanner in = new Scanner(System.in);
-
-        List<BuildingSiteStatic> buildingSiteStatics = new ArrayList<>();
-        int numSites = in.nextInt();
-        for (int i = 0; i < numSites; i++) {
-            int siteId = in.nextInt();
-            int x = in.nextInt();
-            int y = in.nextInt();
-            int radius = in.nextInt();
-            buildingSiteStatics.add(BuildingSiteStatic.create(siteId, x, y, radius));
+        ProtocolCodec codec = ProtocolCodec.create(System.in, System.out);
+        // offline:begin
+        // Opt-in, writes a binary replay of the game for offline regression runs
+        int recordArg = Arrays.asList(args).indexOf("--record");
+        if (recordArg != -1) {
+            if (recordArg + 1 == args.length || args[recordArg + 1].startsWith("--")) {
+                throw new IllegalArgumentException("Usage: --record <replay file>");
+            }
+            try {
+                codec.setRecorder(ReplayRecorder.create(new FileOutputStream(args[recordArg + 1], true)));
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+        // offline:end
+        TurnEngine turnEngine = TurnEngine.create();
+        // offline:begin
+        // Opt-in, per rule timings dumped to stderr or to the file following the flag when the game ends
+        int profileArg = Arrays.asList(args).indexOf("--profile");
+        Optional<RuleProfiler> profiler = Optional.empty();
+        if (profileArg != -1) {
+            profiler = Optional.of(RuleProfiler.create());
+            turnEngine.setProfiler(profiler.get());
+        }
+        // offline:end
 
+        List<BuildingSiteStatic> buildingSiteStatics = codec.readBuildingSiteStatics();
         GameState gameState = GameState.create(buildingSiteStatics);
+        // Lets a paused debugger or a slow profiling run see the full strength decision
+        if (Arrays.asList(args).contains("--no-deadline")) {
+            gameState.getTurnBudget().disable();
+        }
+        // The first turn is already waiting, so the warm-up is paid for out of its allowance
+        if (!Arrays.asList(args).contains("--no-warmup")) {
+            long warmupStart = System.nanoTime();
+            int warmupTurns = Warmup.create(buildingSiteStatics).run(Warmup.BUDGET_NANOS);
+            long warmupNanos = System.nanoTime() - warmupStart;
+            gameState.getTurnBudget().spendBeforeFirstTurn(warmupNanos);
+            System.err.println("Warm-up played " + warmupTurns + " turns in " + warmupNanos / 1000 + "us");
+        }
 
-        //noinspection InfiniteLoopStatement
-        while (true) {
-            int gold = in.nextInt();
-            int touchedSite = in.nextInt();
-            List<BuildingSite> buildingSites = new ArrayList<>();
-            for (int i = 0; i < numSites; i++) {
-                int siteId = in.nextInt();
-                int mineGold = in.nextInt();
-                int maxMineSize = in.nextInt();
-                int structureType = in.nextInt();
-                int owner = in.nextInt();
-                int param1 = in.nextInt();
-                int param2 = in.nextInt();
-                StructureType stType = StructureType.fromId(structureType);
-                buildingSites.add(BuildingSite.create(gameState.getBuildingSiteStaticById(siteId),
-                        stType,
-                        Owner.fromId(owner),
-                        stType == StructureType.BARRACKS ? param1 : 0,
-                        mineGold == -1 ? Optional.empty() : Optional.of(mineGold),
-                        maxMineSize == -1 ? Optional.empty() : Optional.of(maxMineSize),
-                        stType == StructureType.TOWER ? param1 : 0,
-                        stType == StructureType.TOWER ? param2 : 0,
-                        stType == StructureType.MINE ? param1 : 0,
-                        stType == StructureType.BARRACKS ? BarracksType.fromId(param2) : BarracksType.NONE));
-            }
-            List<Unit> units = new ArrayList<>();
-            int numUnits = in.nextInt();
-            for (int i = 0; i < numUnits; i++) {
-                int x = in.nextInt();
-                int y = in.nextInt();
-                int owner = in.nextInt();
-                int unitType = in.nextInt();
-                int health = in.nextInt();
-                units.add(Unit.create(x, y, Owner.fromId(owner), UnitType.fromId(unitType), health));
+        while (codec.readTurn(gameState)) {
+            codec.writeMove(turnEngine.findMove(gameState));
+            codec.flush();
+            System.err.println("Level " + gameState.getTurnBudget().getWorstLevel() + " in "
+                    + gameState.getTurnBudget().elapsedNanos() / 1000 + "us, building decisions cached this turn "
+                    + gameState.getBuildingDecisionCache().getHits() + "/" + (
+                    gameState.getBuildingDecisionCache().getHits() + gameState.getBuildingDecisionCache().getMisses()));
+        }
+        // offline:begin
+        if (profiler.isPresent()) {
+            if (profileArg + 1 < args.length && !args[profileArg + 1].startsWith("--")) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(args[profileArg + 1]))) {
+                    profiler.get().dump(out);
+                } catch (FileNotFoundException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                profiler.get().dump(System.err);
             }
-
-            gameState.initTurn(gold, touchedSite, buildingSites, units);
-            System.out.println(TurnEngine.findMove(gameState));
         }
+        // offline:end
     }
 
     interface Rule {
@@ -93,12 +118,17 @@ class Player {
         Optional<MoveBuilder> makeMove(GameState gameState);
 
         int priority();
+
+        /**
+         * Cheap check that has to pass for {@link #makeMove(GameState)} to have a chance of producing a move.
+         */
+        default boolean isApplicable(GameState gameState) {
+            return true;
+        }
     }
 
     static class RunFromKnightsRule implements Rule {
 
-        private static final int PANIC_MODE_DIST = 300;
-
         @SuppressWarnings("SuspiciousNameCombination")
         @Override
         public Optional<MoveBuilder> makeMove(GameState gameState) {
@@ -107,19 +137,23 @@ class Player {
                 return Optional.empty();
             }
 
+            // Runs from where the close knights will be after their next step
             int enemiesCount = 0;
             double sumX = 0;
             double sumY = 0;
-            for (Unit unit : gameState.getUnits()) {
-                if (unit.getOwner() != Owner.ENEMY || unit.getUnitType() != UnitType.KNIGHT) {
+            TrajectoryTable trajectories = gameState.getTrajectories();
+            for (int i = 0; i < gameState.getUnitCount(); i++) {
+                if (gameState.getUnitOwner(i) != Owner.ENEMY || gameState.getUnitType(i) != UnitType.KNIGHT
+                        || !Utils.closerThan(gameState.getMyQueen().getX(),
+                        gameState.getMyQueen().getY(),
+                        gameState.getUnitX(i),
+                        gameState.getUnitY(i),
+                        gameState.getParams().getPanicModeDist())) {
                     continue;
                 }
-                if (Utils.dist(gameState.getMyQueen().getX(), gameState.getMyQueen().getY(), unit.getX(), unit.getY())
-                        < PANIC_MODE_DIST) {
-                    enemiesCount++;
-                    sumX += unit.getX();
-                    sumY += unit.getY();
-                }
+                enemiesCount++;
+                sumX += trajectories.getX(i, 1);
+                sumY += trajectories.getY(i, 1);
             }
 
             double enemyCenterX = sumX / enemiesCount;
@@ -134,26 +168,17 @@ class Player {
                     gameState.getMyQueen().getY(),
                     gameState);
             Unit enemyQueen = gameState.getEnemyQueen();
+            int originX = enemyOrigin.isPresent() ? enemyOrigin.get().getX() : enemyQueen.getX();
+            int originY = enemyOrigin.isPresent() ? enemyOrigin.get().getY() : enemyQueen.getY();
             for (BuildingSite site : gameState.getBuildingSites()) {
                 boolean isMyTower = site.getOwner() == Owner.FRIENDLY && site.getStructureType() == StructureType.TOWER;
-                boolean isVacantCoveredByTower = false;
-                if (site.getStructureType() == StructureType.NONE) {
-                    for (BuildingSite siteB : gameState.getBuildingSites()) {
-                        if (siteB.getOwner() == Owner.FRIENDLY && siteB.getStructureType() == StructureType.TOWER
-                                && Utils.dist(siteB.getX(), siteB.getY(), site.getX(), site.getY())
-                                <= siteB.getTowerRange()) {
-                            isVacantCoveredByTower = true;
-                        }
-                    }
-                }
+                boolean isVacantCoveredByTower =
+                        site.getStructureType() == StructureType.NONE && gameState.isCoveredByMyTower(site.getId());
                 if (!isMyTower && !isVacantCoveredByTower) {
                     continue;
                 }
 
-                double dist = Utils.dist(enemyOrigin.map(BuildingSite::getX).orElse(enemyQueen.getX()),
-                        enemyOrigin.map(BuildingSite::getY).orElse(enemyQueen.getY()),
-                        site.getX(),
-                        site.getY());
+                double dist = Utils.dist(originX, originY, site.getX(), site.getY());
                 if (maxDist < dist) {
                     maxDist = dist;
                     targetTower = site;
@@ -198,17 +223,18 @@ class Player {
             return Optional.of(new MoveBuilder().setX((int) targetX).setY((int) targetY));
         }
 
+        @Override
+        public boolean isApplicable(GameState gameState) {
+            return isPanicMode(gameState);
+        }
+
         public static boolean isPanicMode(GameState gameState) {
-            for (Unit unit : gameState.getUnits()) {
-                if (unit.getOwner() != Owner.ENEMY || unit.getUnitType() != UnitType.KNIGHT) {
-                    continue;
-                }
-                if (Utils.dist(gameState.getMyQueen().getX(), gameState.getMyQueen().getY(), unit.getX(), unit.getY())
-                        < PANIC_MODE_DIST) {
-                    return true;
-                }
-            }
-            return false;
+            return gameState.getSpatialIndex()
+                    .hasUnitCloserThan(gameState.getMyQueen().getX(),
+                            gameState.getMyQueen().getY(),
+                            gameState.getParams().getPanicModeDist(),
+                            Owner.ENEMY,
+                            UnitType.KNIGHT);
         }
 
         @Override
@@ -219,10 +245,53 @@ class Player {
 
     static class GoToNewSiteRule implements Rule {
 
-        private static final int ENEMY_TERRITORY = 450;
-        private static final int MAX_DIST_TO_SITE = 800;
+        // For a horizontal step x1 in [-QUEEN_SPEED, QUEEN_SPEED], the largest |y1| still within QUEEN_SPEED
+        private static final int[] QUEEN_STEP_REACH_Y = new int[2 * QUEEN_SPEED + 1];
+
+        static {
+            for (int x1 = -QUEEN_SPEED; x1 <= QUEEN_SPEED; x1++) {
+                int y1 = 0;
+                while ((y1 + 1) * (y1 + 1) + x1 * x1 <= QUEEN_SPEED * QUEEN_SPEED) {
+                    y1++;
+                }
+                QUEEN_STEP_REACH_Y[x1 + QUEEN_SPEED] = y1;
+            }
+        }
+
+        private final TourPlanner tourPlanner;
+        private final List<SimpleEntry<BuildingSite, Double>> vacantSitesFirst = new ArrayList<>();
+        private final List<SimpleEntry<BuildingSite, Double>> vacantSitesSecond = new ArrayList<>();
+        private final List<Unit> knights = new ArrayList<>();
+        private final SiteOrder siteOrder = new SiteOrder();
+
+        public GoToNewSiteRule() {
+            this(TourPlanner.create());
+        }
+
+        public GoToNewSiteRule(TourPlanner tourPlanner) {
+            this.tourPlanner = tourPlanner;
+        }
+
+        /**
+         * Orders candidate sites by their distance from a point less their bonus.
+         */
+        static class SiteOrder implements Comparator<SimpleEntry<BuildingSite, Double>> {
+
+            private int fromX, fromY;
+
+            public void setFrom(int x, int y) {
+                this.fromX = x;
+                this.fromY = y;
+            }
+
+            @Override
+            public int compare(SimpleEntry<BuildingSite, Double> a, SimpleEntry<BuildingSite, Double> b) {
+                return Double.compare(Utils.dist(fromX, fromY, a.getKey().getX(), a.getKey().getY()) - a.getValue(),
+                        Utils.dist(fromX, fromY, b.getKey().getX(), b.getKey().getY()) - b.getValue());
+            }
+        }
 
-        private static class Path {
+        static class Path {
 
             private final double dist;
             private final int stepX, stepY;
@@ -260,66 +329,63 @@ class Player {
                                     GameState gameState) {
 
             // Search for obstacles in straight line path
-            double obstDist = Double.MAX_VALUE;
-            BuildingSite obstSite = null;
-            for (BuildingSite site : gameState.getBuildingSites()) {
-                if (site.getId() == firstSite.getId()) {
-                    continue;
-                }
-                double dist = Utils.dist(curX, curY, site.getX(), site.getY());
-                if (Utils.isObstackle(curX,
+            boolean blocked = false;
+            for (int i = 0; i < gameState.getSiteCount() && !blocked; i++) {
+                int id = gameState.getSiteIdAt(i);
+                blocked = id != firstSite.getId() && Utils.segmentHitsCircle(curX,
                         curY,
                         firstSite.getX(),
                         firstSite.getY(),
-                        site.getX(),
-                        site.getY(),
-                        site.getRadius() + QUEEN_RADIUS) && obstDist > dist) {
-                    obstDist = dist;
-                    obstSite = site;
-                }
-            }
-            if (obstSite != null) {
-                double centCurX = curX - obstSite.getX();
-                double centCurY = curY - obstSite.getY();
-                double k = (obstSite.getRadius() + QUEEN_RADIUS) / obstDist;
-                centCurX *= k;
-                centCurY *= k;
-
-                int newX;
-                int newY;
-                //noinspection SuspiciousNameCombination
-                if (Utils.dist(-centCurY,
-                        centCurX,
-                        firstSite.getX() - obstSite.getX(),
-                        firstSite.getY() - obstSite.getY()) > Utils.dist(centCurY,
-                        -centCurX,
-                        firstSite.getX() - obstSite.getX(),
-                        firstSite.getY() - obstSite.getY())) {
-                    newX = (int) (centCurY + obstSite.getX());
-                    newY = (int) (-centCurX + obstSite.getY());
-                } else {
-                    newX = (int) (-centCurY + obstSite.getX());
-                    newY = (int) (centCurX + obstSite.getY());
+                        gameState.getSiteX(id),
+                        gameState.getSiteY(id),
+                        gameState.getSiteRadius(id) + QUEEN_RADIUS);
+            }
+            if (blocked) {
+                // Only routes starting at the queen are worth keeping for the next turns
+                boolean fromQueen = curX == gameState.getMyQueen().getX() && curY == gameState.getMyQueen().getY();
+                Optional<PathFinder.Route> route =
+                        gameState.getPathFinder().route(curX, curY, firstSite.getId(), fromQueen);
+                if (!route.isPresent()) {
+                    return new Path(Utils.dist(curX, curY, firstSite.getX(), firstSite.getY()),
+                            firstSite.getX(),
+                            firstSite.getY(),
+                            true);
                 }
-                Path path = findPath(newX, newY, firstSite, secondSite, gameState);
-                return new Path(path.getDist() + Utils.dist(curX, curY, newX, newY), newX, newY, true);
+                Path path =
+                        findPath(route.get().getEndX(), route.get().getEndY(), firstSite, secondSite, gameState);
+                return new Path(path.getDist() + route.get().getDist(curX, curY),
+                        route.get().getStepX(),
+                        route.get().getStepY(),
+                        true);
             }
 
-            // Find if it is possible to approach in one turn and make next vacant site less far away
+            // Find if it is possible to approach in one turn and make next vacant site less far away.
+            // Only steps inside both the queen's reach and the site's contact disk can qualify, so only that lens
+            // is scanned, in the same order as a full [-QUEEN_SPEED, QUEEN_SPEED]^2 scan.
+            int targetX = secondSite.isPresent() ? secondSite.get().getX() : gameState.getMyCornerX();
+            int targetY = secondSite.isPresent() ? secondSite.get().getY() : gameState.getMycornerY();
+            int targetRadius = secondSite.isPresent() ? secondSite.get().getRadius() : 0;
+            int siteDx = firstSite.getX() - curX;
+            int siteDy = firstSite.getY() - curY;
+            int contactReach = firstSite.getRadius() + QUEEN_RADIUS + CONTACT_RANGE + 1;
+            int stride = gameState.getTurnBudget().level() == DegradationLevel.MINIMAL ? 2 : 1;
             double bestFuture = Double.MAX_VALUE;
             int moveX = -1;
             int moveY = -1;
-            for (int x1 = -QUEEN_SPEED; x1 <= QUEEN_SPEED; x1++) {
-                for (int y1 = -QUEEN_SPEED; y1 <= QUEEN_SPEED; y1++) {
+            int fromX1 = Math.max(Math.max(-QUEEN_SPEED, siteDx - contactReach), -curX);
+            int toX1 = Math.min(Math.min(QUEEN_SPEED, siteDx + contactReach), GRID_WIDTH - curX);
+            for (int x1 = fromX1; x1 <= toX1; x1 += stride) {
+                int contactSpanSq = contactReach * contactReach - (x1 - siteDx) * (x1 - siteDx);
+                if (contactSpanSq < 0) {
+                    continue;
+                }
+                int contactSpan = (int) Math.ceil(Math.sqrt(contactSpanSq));
+                int reachY = QUEEN_STEP_REACH_Y[x1 + QUEEN_SPEED];
+                int fromY1 = Math.max(Math.max(-reachY, siteDy - contactSpan), -curY);
+                int toY1 = Math.min(Math.min(reachY, siteDy + contactSpan), GRID_HEIGHT - curY);
+                for (int y1 = fromY1; y1 <= toY1; y1 += stride) {
                     int newX = curX + x1;
                     int newY = curY + y1;
-                    if (newX < 0 || newX > GRID_WIDTH || newY < 0 || newY > GRID_HEIGHT) {
-                        continue;
-                    }
-                    double d = Utils.dist(curX, curY, newX, newY);
-                    if (d > QUEEN_SPEED) {
-                        continue;
-                    }
                     if (!Utils.inContact(newX,
                             newY,
                             QUEEN_RADIUS,
@@ -329,11 +395,8 @@ class Player {
                         continue;
                     }
 
-                    double secondDist = Utils.dist(newX,
-                            newY,
-                            secondSite.map(BuildingSite::getX).orElse(gameState.getMyCornerX()),
-                            secondSite.map(BuildingSite::getY).orElse(gameState.getMycornerY())) - secondSite.map(
-                            BuildingSite::getRadius).orElse(0) - QUEEN_RADIUS - CONTACT_RANGE;
+                    double secondDist =
+                            Utils.dist(newX, newY, targetX, targetY) - targetRadius - QUEEN_RADIUS - CONTACT_RANGE;
 
                     if (secondDist < bestFuture) {
                         bestFuture = secondDist;
@@ -352,7 +415,7 @@ class Player {
             }
 
             // If first site is on the way to second, then find path directly to second site
-            if (Utils.isObstackle(curX,
+            if (Utils.segmentHitsCircle(curX,
                     curY,
                     secondSite.get().getX(),
                     secondSite.get().getY(),
@@ -362,19 +425,11 @@ class Player {
                 return findPath(curX, curY, secondSite.get(), Optional.empty(), gameState);
             }
 
-            double turnX = secondSite.get().getX() - firstSite.getX();
-            double turnY = secondSite.get().getY() - firstSite.getY();
-            double k = (firstSite.getRadius() + QUEEN_RADIUS) / Utils.dist(secondSite.get().getX(),
-                    secondSite.get().getY(),
-                    firstSite.getX(),
-                    firstSite.getY());
-            turnX = (turnX * k) + firstSite.getX();
-            turnY = (turnY * k) + firstSite.getY();
+            double turnX = gameState.getContactX(firstSite.getId(), secondSite.get().getId());
+            double turnY = gameState.getContactY(firstSite.getId(), secondSite.get().getId());
 
-            return new Path(Utils.dist(curX, curY, turnX, turnY) + Utils.dist(turnX,
-                    turnY,
-                    secondSite.get().getX(),
-                    secondSite.get().getY()) - secondSite.get().getRadius() - QUEEN_RADIUS - CONTACT_RANGE,
+            return new Path(Utils.dist(curX, curY, turnX, turnY) + gameState.getContactToSiteDist(firstSite.getId(),
+                    secondSite.get().getId()) - secondSite.get().getRadius() - QUEEN_RADIUS - CONTACT_RANGE,
                     (int) turnX,
                     (int) turnY,
                     false);
@@ -382,38 +437,51 @@ class Player {
 
         @Override
         public Optional<MoveBuilder> makeMove(GameState gameState) {
-            List<SimpleEntry<BuildingSite, Double>> vacantSitesFirst = new ArrayList<>();
-            List<SimpleEntry<BuildingSite, Double>> vacantSitesSecond = new ArrayList<>();
+            vacantSitesFirst.clear();
+            vacantSitesSecond.clear();
             Unit myQueen = gameState.getMyQueen();
+            TurnBudget turnBudget = gameState.getTurnBudget();
+            Params params = gameState.getParams();
             outer_loop:
             for (BuildingSite site : gameState.getBuildingSites()) {
+                if (turnBudget.isExpired() && !vacantSitesFirst.isEmpty()) {
+                    break;
+                }
                 if (gameState.getTouchedSiteOpt().isPresent()
                         && gameState.getTouchedSiteOpt().get().getId() == site.getId()) {
                     continue;
                 }
-                double distToQueen = Utils.dist(myQueen.getX(), myQueen.getY(), site.getX(), site.getY());
-                if (Math.abs(site.getX() - (GRID_WIDTH - gameState.getMyCornerX())) <= ENEMY_TERRITORY
-                        || distToQueen > MAX_DIST_TO_SITE) {
+                if (Math.abs(site.getX() - (GRID_WIDTH - gameState.getMyCornerX())) <= params.getEnemyTerritory()
+                        || !Utils.withinRange(myQueen.getX(), myQueen.getY(), site.getX(), site.getY(),
+                        params.getMaxDistToSite())) {
                     continue;
                 }
+                double distToQueen = Utils.dist(myQueen.getX(), myQueen.getY(), site.getX(), site.getY());
                 boolean inEnemyTowerRange = false;
-                for (BuildingSite siteB : gameState.getBuildingSites()) {
-                    if (siteB.getOwner() != Owner.ENEMY || siteB.getStructureType() != StructureType.TOWER) {
-                        continue;
-                    }
-                    if (Utils.dist(site.getX(), site.getY(), siteB.getX(), siteB.getY()) + (
-                            gameState.getEnemyQueen().getHp() > gameState.getMyQueen().getHp() ? siteB.getRadius() : 0)
-                            <= siteB.getTowerRange()) {
+                CoverageRaster enemyTowers = gameState.getTowerRaster(Owner.ENEMY);
+                enemyTowers.selectAt(site.getX(), site.getY());
+                for (int idB = enemyTowers.nextCandidate(0); idB != -1; idB = enemyTowers.nextCandidate(idB + 1)) {
+                    if (gameState.getSiteDist(site.getId(), idB) + (
+                            gameState.getEnemyQueen().getHp() > gameState.getMyQueen().getHp() ?
+                                    gameState.getSiteRadius(idB) : 0) <= gameState.getSiteTowerRange(idB)) {
                         inEnemyTowerRange = true;
+                        break;
                     }
                 }
                 if (inEnemyTowerRange) {
                     continue;
                 }
-                for (Unit unit : gameState.getUnits()) {
-                    if (unit.getOwner() != Owner.ENEMY || unit.getUnitType() != UnitType.KNIGHT) {
-                        continue;
-                    }
+                // Knights that reach the site no later than the queen, the radius only bounds the search
+                knights.clear();
+                gameState.getSpatialIndex().unitsCloserThan(site.getX(),
+                        site.getY(),
+                        distToQueen / QUEEN_SPEED * KNIGHT_SPEED + 1,
+                        Owner.ENEMY,
+                        UnitType.KNIGHT,
+                        knights);
+                // Indexed, the iterator is the one allocation of this loop the JIT doesn't always remove
+                for (int i = 0; i < knights.size(); i++) {
+                    Unit unit = knights.get(i);
                     double dist = Utils.dist(unit.getX(), unit.getY(), site.getX(), site.getY());
                     if (dist / KNIGHT_SPEED <= distToQueen / QUEEN_SPEED) {
                         continue outer_loop;
@@ -428,70 +496,239 @@ class Player {
                 Optional<BuildStructureRule.BuildingDecision> buildingDecisionSecond =
                         BuildStructureRule.buildingDecision(site, gameState, true);
                 vacantSitesFirst.add(new SimpleEntry<>(site, buildingDecisionFirst.get().getDistBonus()));
-                buildingDecisionSecond.ifPresent(buildingDecision -> vacantSitesSecond.add(new SimpleEntry<>(site,
-                        buildingDecision.getDistBonus())));
+                if (buildingDecisionSecond.isPresent()) {
+                    vacantSitesSecond.add(new SimpleEntry<>(site, buildingDecisionSecond.get().getDistBonus()));
+                }
             }
 
-            vacantSitesFirst.sort(Comparator.comparingDouble(x ->
-                    Utils.dist(myQueen.getX(), myQueen.getY(), x.getKey().getX(), x.getKey().getY()) - x.getValue()));
-            vacantSitesSecond.sort(Comparator.comparingDouble(x ->
-                    Utils.dist(myQueen.getX(), myQueen.getY(), x.getKey().getX(), x.getKey().getY()) - x.getValue()));
-
-            for (int i = 0; i < Math.min(vacantSitesFirst.size(), 4); i++) {
-                BuildingSite s = vacantSitesFirst.get(i).getKey();
-            }
+            siteOrder.setFrom(myQueen.getX(), myQueen.getY());
+            vacantSitesFirst.sort(siteOrder);
+            vacantSitesSecond.sort(siteOrder);
 
             if (vacantSitesFirst.isEmpty()) {
                 return Optional.empty();
             }
 
-            double minDist = Double.MAX_VALUE;
-            int moveX = 0;
-            int moveY = 0;
-            for (int i = 0; i < Math.min(vacantSitesFirst.size(), 1); i++) {
-                for (int h = i + 1; h < Math.min(vacantSitesSecond.size(), 5); h++) {
-                    if (vacantSitesFirst.get(i).getKey().getId() == vacantSitesSecond.get(h).getKey().getId()) {
-                        continue;
+            // Shorter tours are planned when the turn is running late, just the closest site at the minimal level
+            DegradationLevel level = turnBudget.level();
+            int depth = level == DegradationLevel.FULL ? tourPlanner.depth(gameState) :
+                    (level == DegradationLevel.REDUCED ? Math.min(tourPlanner.depth(gameState), 2) : 1);
+            Path path = tourPlanner.plan(gameState, vacantSitesFirst, vacantSitesSecond, depth);
+            return Optional.of(new MoveBuilder().setX(path.getStepX()).setY(path.getStepY()));
+        }
+
+        @Override
+        public int priority() {
+            return 0;
+        }
+    }
+
+    /**
+     * Orders the next few vacant sites with a beam search. A tour is scored like the site pairs used to be: the
+     * {@link GoToNewSiteRule#findPath} distance to the first site and on to the second, then straight contact to
+     * contact legs between the following sites, each site taking off its building bonus. Partial tours that can't
+     * beat the best complete one even with the cheapest possible legs are dropped, and the search settles for the
+     * best tour found so far once its time is up.
+     */
+    static class TourPlanner {
+
+        static final int BEAM_WIDTH = 2;
+        static final int DEPTH = 2;
+        // Build order decides the opening, so tours look one site further while few structures stand
+        static final int OPENING_DEPTH = 3;
+        static final int OPENING_STRUCTURES = 3;
+        // Follow-up sites considered for every tour, best bonus adjusted distance first
+        static final int CANDIDATES = 8;
+        static final long BUDGET_NANOS = 2_000_000L;
+        // The tour is planned again every turn, legs past the second site only steer the choice a little
+        static final double LATER_LEG_WEIGHT = 0.25;
+
+        private final int beamWidth;
+        private final int depth;
+        private final int openingDepth;
+        private final long budgetNanos;
+
+        public static TourPlanner create() {
+            return new TourPlanner(BEAM_WIDTH, DEPTH, OPENING_DEPTH, BUDGET_NANOS);
+        }
+
+        public static TourPlanner create(int beamWidth, int depth, int openingDepth, long budgetNanos) {
+            return new TourPlanner(beamWidth, depth, openingDepth, budgetNanos);
+        }
+
+        public TourPlanner(int beamWidth, int depth, int openingDepth, long budgetNanos) {
+            this.beamWidth = beamWidth;
+            this.depth = depth;
+            this.openingDepth = openingDepth;
+            this.budgetNanos = budgetNanos;
+        }
+
+        /**
+         * Number of sites to plan ahead this turn.
+         */
+        public int depth(GameState gameState) {
+            int myStructures = 0;
+            for (int i = 0; i < gameState.getSiteCount(); i++) {
+                if (gameState.getSiteOwner(gameState.getSiteIdAt(i)) == Owner.FRIENDLY) {
+                    myStructures++;
+                }
+            }
+            return myStructures < OPENING_STRUCTURES ? openingDepth : depth;
+        }
+
+        /**
+         * Path to the first site of the best tour. {@code first} and {@code second} hold the vacant sites with their
+         * building bonus as the next site and as a later one, sorted by distance less bonus; {@code first} isn't
+         * empty.
+         */
+        public GoToNewSiteRule.Path plan(GameState gameState,
+                                         List<SimpleEntry<BuildingSite, Double>> first,
+                                         List<SimpleEntry<BuildingSite, Double>> second,
+                                         int tourDepth) {
+            Unit myQueen = gameState.getMyQueen();
+            int candidates = Math.min(second.size(), CANDIDATES);
+            if (tourDepth < 2 || candidates == 0) {
+                return GoToNewSiteRule.findPath(myQueen.getX(),
+                        myQueen.getY(),
+                        first.get(0).getKey(),
+                        Optional.empty(),
+                        gameState);
+            }
+            long deadline = System.nanoTime() + budgetNanos;
+            boolean timed = gameState.getTurnBudget().isEnabled();
+
+            // Cheapest a leg to any candidate can get bounds what the rest of a partial tour can still win. Later legs
+            // are weighted down, which a bound only keeps holding for if it isn't positive
+            double minLeg = 0;
+            for (int to = 0; to < candidates; to++) {
+                for (int from = 0; from < candidates; from++) {
+                    if (from != to) {
+                        minLeg = Math.min(minLeg, leg(gameState, second.get(from).getKey(), second.get(to)));
                     }
-                    Path path = findPath(myQueen.getX(),
-                            myQueen.getY(),
-                            vacantSitesFirst.get(i).getKey(),
-                            Optional.of(vacantSitesSecond.get(h).getKey()),
-                            gameState);
-                    if (path.getDist() - vacantSitesFirst.get(i).getValue() - vacantSitesSecond.get(h).getValue()
-                            < minDist) {
-                        minDist = path.getDist() - vacantSitesFirst.get(i).getValue() - vacantSitesSecond.get(h)
-                                .getValue();
-                        moveX = path.getStepX();
-                        moveY = path.getStepY();
+                }
+            }
+
+            List<Tour> beam = new ArrayList<>();
+            for (int i = 0; i < Math.min(first.size(), beamWidth); i++) {
+                beam.add(new Tour(null, first.get(i).getKey(), -first.get(i).getValue(), null));
+            }
+            Tour best = null;
+            Tour deepest = null;
+            boolean expired = false;
+            for (int level = 2; level <= tourDepth && !expired; level++) {
+                List<Tour> next = new ArrayList<>();
+                int remaining = tourDepth - level;
+                for (int t = 0; t < beam.size() && !expired; t++) {
+                    Tour tour = beam.get(t);
+                    for (int i = 0; i < candidates; i++) {
+                        // Whatever was found so far goes once the budget is spent, as long as there is something
+                        if (timed && deepest != null && System.nanoTime() >= deadline) {
+                            expired = true;
+                            break;
+                        }
+                        BuildingSite site = second.get(i).getKey();
+                        if (tour.contains(site)) {
+                            continue;
+                        }
+                        Tour extended;
+                        if (level == 2) {
+                            GoToNewSiteRule.Path path = GoToNewSiteRule.findPath(myQueen.getX(),
+                                    myQueen.getY(),
+                                    tour.getSite(),
+                                    Optional.of(site),
+                                    gameState);
+                            extended = new Tour(tour, site, tour.getCost() + path.getDist() - second.get(i)
+                                    .getValue(), path);
+                        } else {
+                            extended = new Tour(tour,
+                                    site,
+                                    tour.getCost() + Math.pow(LATER_LEG_WEIGHT, level - 2) * leg(gameState,
+                                            tour.getSite(),
+                                            second.get(i)),
+                                    tour.getPath());
+                        }
+                        if (best != null && extended.getCost() + remaining * minLeg >= best.getCost()) {
+                            continue;
+                        }
+                        next.add(extended);
+                        if (remaining == 0) {
+                            best = extended;
+                        }
                     }
                 }
+                if (next.isEmpty()) {
+                    break;
+                }
+                next.sort(Tour.BY_COST);
+                beam = next.subList(0, Math.min(next.size(), beamWidth));
+                deepest = beam.get(0);
             }
-            //noinspection FloatingPointEquality
-            if (minDist == Double.MAX_VALUE) {
-                Path path = findPath(myQueen.getX(),
+            // Tours stop short of the depth when the candidates or the budget run out
+            Tour chosen = best != null ? best : deepest;
+            if (chosen == null) {
+                return GoToNewSiteRule.findPath(myQueen.getX(),
                         myQueen.getY(),
-                        vacantSitesFirst.get(0).getKey(),
+                        first.get(0).getKey(),
                         Optional.empty(),
                         gameState);
-                return Optional.of(new MoveBuilder().setX(path.getStepX()).setY(path.getStepY()));
             }
-            return Optional.of(new MoveBuilder().setX(moveX).setY(moveY));
+            return chosen.getPath();
         }
 
-        @Override
-        public int priority() {
-            return 0;
+        private static double leg(GameState gameState, BuildingSite from, SimpleEntry<BuildingSite, Double> to) {
+            BuildingSite site = to.getKey();
+            return gameState.getContactToSiteDist(from.getId(), site.getId()) - site.getRadius() - QUEEN_RADIUS
+                    - CONTACT_RANGE - to.getValue();
+        }
+
+        static class Tour {
+
+            static final Comparator<Tour> BY_COST = new Comparator<Tour>() {
+                @Override
+                public int compare(Tour a, Tour b) {
+                    return Double.compare(a.getCost(), b.getCost());
+                }
+            };
+
+            private final Tour previous;
+            private final BuildingSite site;
+            private final double cost;
+            // Path to the first site of the tour, known from the second site on
+            private final GoToNewSiteRule.Path path;
+
+            public Tour(Tour previous, BuildingSite site, double cost, GoToNewSiteRule.Path path) {
+                this.previous = previous;
+                this.site = site;
+                this.cost = cost;
+                this.path = path;
+            }
+
+            public BuildingSite getSite() {
+                return site;
+            }
+
+            public double getCost() {
+                return cost;
+            }
+
+            public GoToNewSiteRule.Path getPath() {
+                return path;
+            }
+
+            public boolean contains(BuildingSite other) {
+                for (Tour tour = this; tour != null; tour = tour.previous) {
+                    if (tour.site.getId() == other.getId()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
         }
     }
 
     static class BuildStructureRule implements Rule {
 
-        private static final int BARRACKS_REPLACEMENT_THRESHOLD_DIST = 400;
-        private static final int SURROUNDING_THRESHOLD = 400;
-        private static final int COMFORT_TOWERS_NUMBER = 2;
-
-        private static class BuildingDecision {
+        static class BuildingDecision {
 
             private final StructureType structureType;
             private final BarracksType barracksType;
@@ -516,59 +753,42 @@ class Player {
             }
         }
 
+        /**
+         * Same as {@link #computeBuildingDecision(BuildingSite, GameState, boolean)}, memoized for the current turn.
+         */
         public static Optional<BuildingDecision> buildingDecision(BuildingSite site,
                                                                   GameState gameState,
                                                                   boolean second) {
+            return gameState.getBuildingDecisionCache().get(site, gameState, second);
+        }
+
+        static Optional<BuildingDecision> computeBuildingDecision(BuildingSite site,
+                                                                  GameState gameState,
+                                                                  boolean second) {
             if (site.getOwner() == Owner.ENEMY && site.getStructureType() == StructureType.TOWER) {
                 return Optional.empty();
             }
 
             Unit myQueen = gameState.getMyQueen();
             Unit enemyQueen = gameState.getEnemyQueen();
-            int myBarracksCount = 0;
-            int myGiantCount = 0;
-            int enemyBarracksCount = 0;
-            int myMinesCount = 0;
-            int myTowersCount = 0;
+            BuildingDecisionCache cache = gameState.getBuildingDecisionCache();
+            cache.countStructures(gameState);
+            int myBarracksCount = cache.getMyBarracksCount();
+            int myGiantCount = cache.getMyGiantCount();
+            int enemyBarracksCount = cache.getEnemyBarracksCount();
+            int myMinesCount = cache.getMyMinesCount();
+            int myTowersCount = cache.getMyTowersCount();
             int emptySurroundings = 0;
-            double closestEnemyBarracksDist = Double.MAX_VALUE;
-            double closestMyBarracksDist = Double.MAX_VALUE;
-            double dist;
-            BuildingSite closestEnemyBarracksOpt = null;
-            BuildingSite closestMyBarracksOpt = null;
-            for (BuildingSite s : gameState.getBuildingSites()) {
-                if (s.getStructureType() == StructureType.BARRACKS && s.getBarracksType() == BarracksType.KNIGHT
-                        && s.getOwner() == Owner.FRIENDLY) {
-                    myBarracksCount++;
-                    dist = Utils.dist(enemyQueen.getX(), enemyQueen.getY(), s.getX(), s.getY());
-                    if (dist < closestMyBarracksDist) {
-                        closestMyBarracksDist = dist;
-                        closestMyBarracksOpt = s;
-                    }
-                } else if (s.getStructureType() == StructureType.BARRACKS && s.getBarracksType() == BarracksType.KNIGHT
-                        && s.getOwner() == Owner.ENEMY) {
-                    enemyBarracksCount++;
-                    dist = Utils.dist(myQueen.getX(), myQueen.getY(), s.getX(), s.getY());
-                    if (dist < closestEnemyBarracksDist) {
-                        closestEnemyBarracksDist = dist;
-                        closestEnemyBarracksOpt = s;
-                    }
-                } else if (s.getStructureType() == StructureType.BARRACKS && s.getBarracksType() == BarracksType.GIANT
-                        && s.getOwner() == Owner.FRIENDLY) {
-                    myGiantCount++;
-                } else if (s.getStructureType() == StructureType.MINE && s.getOwner() == Owner.FRIENDLY) {
-                    myMinesCount++;
-                } else if (s.getStructureType() == StructureType.TOWER && s.getOwner() == Owner.FRIENDLY) {
-                    myTowersCount++;
-                } else if (s.getStructureType() == StructureType.NONE) {
-                    if (Utils.dist(s.getX(), s.getY(), site.getX(), site.getY()) < SURROUNDING_THRESHOLD) {
-                        emptySurroundings++;
-                    }
+            for (int i = 0; i < gameState.getSiteCount(); i++) {
+                int id = gameState.getSiteIdAt(i);
+                if (gameState.getSiteStructureType(id) == StructureType.NONE
+                        && gameState.getSiteDist(id, site.getId()) < gameState.getParams().getSurroundingThreshold()) {
+                    emptySurroundings++;
                 }
             }
 
-            Optional<BuildingSite> closestEnemyBarracks = Optional.ofNullable(closestEnemyBarracksOpt);
-            Optional<BuildingSite> closestMyBarracks = Optional.ofNullable(closestMyBarracksOpt);
+            Optional<BuildingSite> closestEnemyBarracks = cache.getClosestEnemyBarracks();
+            Optional<BuildingSite> closestMyBarracks = cache.getClosestMyBarracks();
             double distToEnemyQueen = Utils.dist(gameState.getEnemyQueen().getX(),
                     gameState.getEnemyQueen().getY(),
                     site.getX(),
@@ -578,38 +798,26 @@ class Player {
                     gameState.getMycornerY(),
                     enemyQueen.getX(),
                     enemyQueen.getY());
-            Optional<Double> myBarracksDistToEnemyQueen =
-                    closestMyBarracks.map(buildingSite -> Utils.dist(buildingSite.getX(),
-                            buildingSite.getY(),
-                            enemyQueen.getX(),
-                            enemyQueen.getY()));
-
-            double enemyKnightsBonus = Double.MAX_VALUE;
-            Optional<Unit> closestEnemyKnight = Optional.empty();
-            boolean applyKnightBonus = false;
-            for (Unit unit : gameState.getUnits()) {
-                if (unit.getUnitType() != UnitType.KNIGHT || unit.getOwner() != Owner.ENEMY) {
-                    continue;
-                }
-                double bonus =
-                        Utils.dist(unit.getX(), unit.getY(), site.getX(), site.getY()) / KNIGHT_SPEED * QUEEN_SPEED;
-                if (enemyKnightsBonus > bonus) {
-                    enemyKnightsBonus = bonus;
-                    closestEnemyKnight = Optional.of(unit);
-                    applyKnightBonus = true;
-                }
-            }
-
-            if (!applyKnightBonus) {
-                enemyKnightsBonus = 0;
-            }
+            double myBarracksDistToEnemyQueen = closestMyBarracks.isPresent() ? Utils.dist(closestMyBarracks.get()
+                    .getX(), closestMyBarracks.get().getY(), enemyQueen.getX(), enemyQueen.getY()) : 0;
+            int barracksReplacementDist = gameState.getParams().getBarracksReplacementDist();
+
+            Optional<Unit> closestEnemyKnight =
+                    gameState.getSpatialIndex().nearestUnit(site.getX(), site.getY(), Owner.ENEMY, UnitType.KNIGHT);
+            boolean applyKnightBonus = closestEnemyKnight.isPresent();
+            double enemyKnightsBonus = applyKnightBonus ? Utils.dist(closestEnemyKnight.get().getX(),
+                    closestEnemyKnight.get().getY(),
+                    site.getX(),
+                    site.getY()) / KNIGHT_SPEED * QUEEN_SPEED : 0.0;
 
             if (site.getStructureType() == StructureType.MINE) {
                 if (applyKnightBonus && towersOnPath(gameState,
                         gameState.getMyQueen().getX(),
                         gameState.getMyQueen().getY(),
-                        closestEnemyBarracks.map(BuildingSite::getX).orElse(closestEnemyKnight.get().getX()),
-                        closestEnemyBarracks.map(BuildingSite::getY).orElse(closestEnemyKnight.get().getY()),
+                        closestEnemyBarracks.isPresent() ? closestEnemyBarracks.get().getX() :
+                                closestEnemyKnight.get().getX(),
+                        closestEnemyBarracks.isPresent() ? closestEnemyBarracks.get().getY() :
+                                closestEnemyKnight.get().getY(),
                         null) < comfortTowersNumber(gameState)) {
                     return Optional.of(new BuildingDecision(StructureType.TOWER,
                             null,
@@ -634,7 +842,7 @@ class Player {
                     site.getY(),
                     closestEnemyBarracks.get().getX(),
                     closestEnemyBarracks.get().getY(),
-                    site) >= comfortTowersNumber(gameState) && site.getGold().orElse(1) > 0;
+                    site) >= comfortTowersNumber(gameState) && site.getGoldOrElse(1) > 0;
 
             if (site.getStructureType() == StructureType.TOWER) {
                 // Integer division intended
@@ -660,8 +868,8 @@ class Player {
                     return Optional.of(new BuildingDecision(StructureType.TOWER,
                             null,
                             emptySurroundings * QUEEN_SPEED + enemyKnightsBonus));
-                } else if (myBarracksCount > 0 && myBarracksDistToEnemyQueen.isPresent()
-                        && myBarracksDistToEnemyQueen.get() - distToEnemyQueen >= BARRACKS_REPLACEMENT_THRESHOLD_DIST) {
+                } else if (myBarracksCount > 0 && closestMyBarracks.isPresent()
+                        && myBarracksDistToEnemyQueen - distToEnemyQueen >= barracksReplacementDist) {
                     return Optional.of(new BuildingDecision(StructureType.BARRACKS,
                             BarracksType.KNIGHT,
                             0 + enemyKnightsBonus));
@@ -682,15 +890,15 @@ class Player {
                     return Optional.of(new BuildingDecision(StructureType.BARRACKS,
                             BarracksType.GIANT,
                             (maxDistToEnemyQueen - distToEnemyQueen) / 2 + enemyKnightsBonus));
-                } else if (myBarracksCount > 0 && myBarracksDistToEnemyQueen.isPresent()
-                        && myBarracksDistToEnemyQueen.get() - distToEnemyQueen >= BARRACKS_REPLACEMENT_THRESHOLD_DIST) {
+                } else if (myBarracksCount > 0 && closestMyBarracks.isPresent()
+                        && myBarracksDistToEnemyQueen - distToEnemyQueen >= barracksReplacementDist) {
                     return Optional.of(new BuildingDecision(StructureType.BARRACKS,
                             BarracksType.KNIGHT,
                             (maxDistToEnemyQueen - distToEnemyQueen) / 2 + enemyKnightsBonus));
-                } else if (site.getGold().orElse(1) > 0) {
+                } else if (site.getGoldOrElse(1) > 0) {
                     return Optional.of(new BuildingDecision(StructureType.MINE,
                             null,
-                            (site.getMaxMineSize().orElse(1) - 1) * QUEEN_SPEED + enemyKnightsBonus));
+                            (site.getMaxMineSizeOrElse(1) - 1) * QUEEN_SPEED + enemyKnightsBonus));
                 } else {
                     return Optional.of(new BuildingDecision(StructureType.TOWER,
                             null,
@@ -704,7 +912,7 @@ class Player {
             if (gameState.getEnemyGold() < KNIGHT_COST && gameState.getEnemyOverallIncome() == 0) {
                 return 0;
             } else {
-                return COMFORT_TOWERS_NUMBER;
+                return gameState.getParams().getComfortTowersNumber();
             }
         }
 
@@ -714,37 +922,22 @@ class Player {
                                                                 int x,
                                                                 int y,
                                                                 GameState gameState) {
-            double minDist = Double.MAX_VALUE;
-            BuildingSite closest = null;
-            for (BuildingSite site : gameState.getBuildingSites()) {
-                if (site.getStructureType() != type || site.getBarracksType() != barracksType
-                        || site.getOwner() != owner) {
-                    continue;
-                }
-                double dist = Utils.dist(x, y, site.getX(), site.getY());
-                if (dist < minDist) {
-                    minDist = dist;
-                    closest = site;
-                }
-            }
-            return Optional.ofNullable(closest);
+            return gameState.getSpatialIndex().nearestSite(x, y, type, barracksType, owner);
         }
 
         public static int towersOnPath(GameState gameState, int x1, int y1, int x2, int y2, BuildingSite ignoreTower) {
             int count = 0;
-            for (BuildingSite site : gameState.getBuildingSites()) {
-                if (site.getStructureType() != StructureType.TOWER || site.getOwner() != Owner.FRIENDLY || (
-                        ignoreTower != null && site.getId() == ignoreTower.getId())) {
+            CoverageRaster myTowers = gameState.getTowerRaster(Owner.FRIENDLY);
+            myTowers.selectOnSegment(x1, y1, x2, y2);
+            for (int id = myTowers.nextCandidate(0); id != -1; id = myTowers.nextCandidate(id + 1)) {
+                if (ignoreTower != null && id == ignoreTower.getId()) {
                     continue;
                 }
-                if (Utils.dist(x1, y1, site.getX(), site.getY()) <= site.getTowerRange()
-                        || Utils.dist(x2, y2, site.getX(), site.getY()) <= site.getTowerRange() || Utils.isObstackle(x1,
-                        y1,
-                        x2,
-                        y2,
-                        site.getX(),
-                        site.getY(),
-                        site.getTowerRange())) {
+                int x = gameState.getSiteX(id);
+                int y = gameState.getSiteY(id);
+                int towerRange = gameState.getSiteTowerRange(id);
+                if (Utils.withinRange(x1, y1, x, y, towerRange) || Utils.withinRange(x2, y2, x, y, towerRange)
+                        || Utils.segmentHitsCircle(x1, y1, x2, y2, x, y, towerRange)) {
                     count++;
                 }
             }
@@ -765,7 +958,7 @@ class Player {
 
             if (!decision.isPresent() || decision.get().getStructureType() == site.getStructureType()) {
                 if (site.getOwner() == Owner.FRIENDLY && site.getStructureType() == StructureType.MINE
-                        && site.getMaxMineSize().orElse(0) > site.getIncomeRate() && !RunFromKnightsRule.isPanicMode(
+                        && site.getMaxMineSizeOrElse(0) > site.getIncomeRate() && !RunFromKnightsRule.isPanicMode(
                         gameState)) {
                     return Optional.of(new MoveBuilder().setSiteId(touchSite.get().getId())
                             .setStructureType(StructureType.MINE));
@@ -784,30 +977,184 @@ class Player {
                     .setSiteId(site.getId()));
         }
 
+        @Override
+        public boolean isApplicable(GameState gameState) {
+            return gameState.getTouchedSiteOpt().isPresent();
+        }
+
         @Override
         public int priority() {
             return 3;
         }
     }
 
-    static class GiveWayToKnightRule {
+    /**
+     * Building decisions of the current turn by site id and the {@code second} flag, together with the structure
+     * counts they share. Everything a decision depends on is fixed for the turn, so the cache is only invalidated by
+     * {@link GameState#initTurn}. A decision can only be found again within the turn, so hits and misses are counted
+     * per turn too.
+     */
+    static class BuildingDecisionCache {
+
+        private final List<Optional<BuildStructureRule.BuildingDecision>> decisions;
+        private boolean counted;
+        private int myBarracksCount;
+        private int myGiantCount;
+        private int enemyBarracksCount;
+        private int myMinesCount;
+        private int myTowersCount;
+        private Optional<BuildingSite> closestMyBarracks;
+        private Optional<BuildingSite> closestEnemyBarracks;
+        private long closestVersion = -1;
+        private int closestMyQueenX, closestMyQueenY, closestEnemyQueenX, closestEnemyQueenY;
+        private int closestMyBarracksId = -1;
+        private int closestEnemyBarracksId = -1;
+        private long hits;
+        private long misses;
+
+        public BuildingDecisionCache(int maxSiteId) {
+            decisions = new ArrayList<>(Collections.nCopies((maxSiteId + 1) * 2,
+                    (Optional<BuildStructureRule.BuildingDecision>) null));
+        }
+
+        public Optional<BuildStructureRule.BuildingDecision> get(BuildingSite site,
+                                                                 GameState gameState,
+                                                                 boolean second) {
+            int key = site.getId() * 2 + (second ? 1 : 0);
+            Optional<BuildStructureRule.BuildingDecision> decision = decisions.get(key);
+            if (decision != null) {
+                hits++;
+                return decision;
+            }
+            misses++;
+            decision = BuildStructureRule.computeBuildingDecision(site, gameState, second);
+            decisions.set(key, decision);
+            return decision;
+        }
 
-        private static final double STEP_CHUNKS = 5;
+        public void invalidate() {
+            Collections.fill(decisions, null);
+            counted = false;
+            hits = 0;
+            misses = 0;
+        }
 
-        private static boolean isInWay(Unit knight, Unit queen, int nextX, int nextY, int steps) {
-            boolean result = false;
-            for (int step = 1; step <= steps; step++) {
-                double mod = KNIGHT_SPEED * step * 1.0 / STEP_CHUNKS / Utils.dist(queen.getX(),
-                        queen.getY(),
-                        knight.getX(),
-                        knight.getY());
-                int kNextX = knight.getX() + (int) (mod * (queen.getX() - knight.getX()));
-                int kNextY = knight.getY() + (int) (mod * (queen.getY() - knight.getY()));
-                result = result || (Utils.dist(kNextX, kNextY, nextX, nextY) < KNIGHT_RADIUS + QUEEN_RADIUS);
+        /**
+         * Counts structures of both players and finds the knight barracks closest to the opposing queen, once a turn.
+         * The closest barracks only change with the structures or the queens' positions, so they are looked up again
+         * only then.
+         */
+        public void countStructures(GameState gameState) {
+            if (counted) {
+                return;
+            }
+            myBarracksCount = gameState.getStructureCount(Owner.FRIENDLY, StructureType.BARRACKS, BarracksType.KNIGHT);
+            enemyBarracksCount =
+                    gameState.getStructureCount(Owner.ENEMY, StructureType.BARRACKS, BarracksType.KNIGHT);
+            myGiantCount = gameState.getStructureCount(Owner.FRIENDLY, StructureType.BARRACKS, BarracksType.GIANT);
+            myMinesCount = gameState.getStructureCount(Owner.FRIENDLY, StructureType.MINE, BarracksType.NONE);
+            myTowersCount = gameState.getStructureCount(Owner.FRIENDLY, StructureType.TOWER, BarracksType.NONE);
+            Unit myQueen = gameState.getMyQueen();
+            Unit enemyQueen = gameState.getEnemyQueen();
+            if (closestVersion != gameState.getTurnChanges().getStructuresVersion()
+                    || closestMyQueenX != myQueen.getX() || closestMyQueenY != myQueen.getY()
+                    || closestEnemyQueenX != enemyQueen.getX() || closestEnemyQueenY != enemyQueen.getY()) {
+                closestVersion = gameState.getTurnChanges().getStructuresVersion();
+                closestMyQueenX = myQueen.getX();
+                closestMyQueenY = myQueen.getY();
+                closestEnemyQueenX = enemyQueen.getX();
+                closestEnemyQueenY = enemyQueen.getY();
+                Optional<BuildingSite> myBarracks = gameState.getSpatialIndex()
+                        .nearestSite(enemyQueen.getX(),
+                                enemyQueen.getY(),
+                                StructureType.BARRACKS,
+                                BarracksType.KNIGHT,
+                                Owner.FRIENDLY);
+                closestMyBarracksId = myBarracks.isPresent() ? myBarracks.get().getId() : -1;
+                Optional<BuildingSite> enemyBarracks = gameState.getSpatialIndex()
+                        .nearestSite(myQueen.getX(),
+                                myQueen.getY(),
+                                StructureType.BARRACKS,
+                                BarracksType.KNIGHT,
+                                Owner.ENEMY);
+                closestEnemyBarracksId = enemyBarracks.isPresent() ? enemyBarracks.get().getId() : -1;
             }
-            return result;
+            // Sites are views of the state being decided, a copy has its own, so only the ids are kept
+            closestMyBarracks = closestMyBarracksId == -1 ?
+                    Optional.empty() : Optional.of(gameState.getBuildingSiteById(closestMyBarracksId));
+            closestEnemyBarracks = closestEnemyBarracksId == -1 ?
+                    Optional.empty() : Optional.of(gameState.getBuildingSiteById(closestEnemyBarracksId));
+            counted = true;
+        }
+
+        public int getMyBarracksCount() {
+            return myBarracksCount;
+        }
+
+        public int getMyGiantCount() {
+            return myGiantCount;
+        }
+
+        public int getEnemyBarracksCount() {
+            return enemyBarracksCount;
+        }
+
+        public int getMyMinesCount() {
+            return myMinesCount;
+        }
+
+        public int getMyTowersCount() {
+            return myTowersCount;
+        }
+
+        public Optional<BuildingSite> getClosestMyBarracks() {
+            return closestMyBarracks;
+        }
+
+        public Optional<BuildingSite> getClosestEnemyBarracks() {
+            return closestEnemyBarracks;
+        }
+
+        public long getHits() {
+            return hits;
         }
 
+        public long getMisses() {
+            return misses;
+        }
+    }
+
+    /**
+     * Moves the queen out of the way of friendly knights heading for the enemy queen. Over its next move a knight
+     * sweeps a capsule: the segment it travels inflated by the knight and queen radii. The rule picks the reachable
+     * point outside all capsules that is closest to where the queen wanted to step. That point is either the
+     * projection of the wanted step onto a boundary of the free area or a corner where two boundaries (capsules, the
+     * queen's reach, the arena) meet, so only those are evaluated, then snapped to the nearest free whole pixel.
+     */
+    static class GiveWayToKnightRule {
+
+        private static final int CLEARANCE = KNIGHT_RADIUS + QUEEN_RADIUS;
+        private static final double EPS = 1e-6;
+        private static final int MAX_SNAP_RING = 8;
+        private static final int MAX_SNAPPED_CANDIDATES = 8;
+
+        // Capsules as (ax, ay, bx, by) segments, all inflated by CLEARANCE
+        private double[] capsules = new double[4 * 8];
+        private int capsuleCount;
+        // Boundary pieces of the free area as (x1, y1, x2, y2) segments and (x, y, r) circles
+        private double[] segments = new double[4 * 32];
+        private int segmentCount;
+        private double[] circles = new double[3 * 32];
+        private int circleCount;
+        // Free candidate points as (x, y, distance to the wanted step)
+        private double[] candidates = new double[3 * 64];
+        private int candidateCount;
+
+        private int queenX, queenY;
+        private int preferedX, preferedY;
+        private double bestDist;
+        private int bestX, bestY;
+
         public Optional<MoveBuilder> makeMove(Move preferedMove, GameState gameState) {
             if (preferedMove.getX() == null) {
                 return Optional.empty();
@@ -815,305 +1162,2968 @@ class Player {
             Unit myQueen = gameState.getMyQueen();
             double k =
                     QUEEN_SPEED / Utils.dist(myQueen.getX(), myQueen.getY(), preferedMove.getX(), preferedMove.getY());
-            int preferedX = myQueen.getX() + (int) ((preferedMove.getX() - myQueen.getX()) * k);
-            int preferedY = myQueen.getY() + (int) ((preferedMove.getY() - myQueen.getY()) * k);
+            queenX = myQueen.getX();
+            queenY = myQueen.getY();
+            preferedX = myQueen.getX() + (int) ((preferedMove.getX() - myQueen.getX()) * k);
+            preferedY = myQueen.getY() + (int) ((preferedMove.getY() - myQueen.getY()) * k);
 
-            Unit enemyQueen = gameState.getEnemyQueen();
-            for (Unit unit : gameState.getUnits()) {
-                if (unit.getOwner() != Owner.FRIENDLY || unit.getUnitType() != UnitType.KNIGHT) {
-                    continue;
+            collectCapsules(gameState);
+            if (!isBlocked(preferedX, preferedY)) {
+                return Optional.empty();
+            }
+            collectBoundaries();
+
+            candidateCount = 0;
+            consider(queenX, queenY);
+            for (int i = 0; i < segmentCount; i++) {
+                int s = i * 4;
+                double t = segmentProjection(preferedX,
+                        preferedY,
+                        segments[s],
+                        segments[s + 1],
+                        segments[s + 2],
+                        segments[s + 3]);
+                consider(segments[s] + t * (segments[s + 2] - segments[s]),
+                        segments[s + 1] + t * (segments[s + 3] - segments[s + 1]));
+                for (int h = i + 1; h < segmentCount; h++) {
+                    intersectSegments(s, h * 4);
                 }
-
-                if (isInWay(unit, enemyQueen, preferedX, preferedY, 5)) {
-                    double minDist = Double.MAX_VALUE;
-                    int bestNextX = 0;
-                    int bestNextY = 0;
-                    for (int x1 = -QUEEN_SPEED; x1 <= QUEEN_SPEED; x1++) {
-                        for (int y1 = -QUEEN_SPEED; y1 <= QUEEN_SPEED; y1++) {
-                            int newX = myQueen.getX() + x1;
-                            int newY = myQueen.getY() + y1;
-                            if (newX < 0 || newX > GRID_WIDTH || newY < 0 || newY > GRID_HEIGHT
-                                    || Utils.dist(myQueen.getX(), myQueen.getY(), newX, newY) > QUEEN_SPEED) {
-                                continue;
-                            }
-                            if (isInWay(unit, enemyQueen, newX, newY, 5)) {
-                                continue;
-                            }
-                            double dist = Utils.dist(newX, newY, preferedX, preferedY);
-                            if (minDist > dist) {
-                                minDist = dist;
-                                bestNextX = newX;
-                                bestNextY = newY;
-                            }
-                        }
-                    }
-                    //noinspection FloatingPointEquality
-                    if (minDist != Double.MAX_VALUE) {
-                        return Optional.of(new MoveBuilder().setX(bestNextX).setY(bestNextY));
-                    }
+                for (int h = 0; h < circleCount; h++) {
+                    intersectSegmentCircle(s, h * 3);
                 }
             }
-            return Optional.empty();
-        }
-    }
-
-    static class TrainUnitsRule implements Rule {
-
-        @Override
-        public Optional<MoveBuilder> makeMove(GameState gameState) {
-            List<Integer> trainSites = new ArrayList<>();
-            int gold = gameState.getGoldLeft();
-
-            List<BuildingSite> knightBarracks = gameState.getBuildingSites()
-                    .stream()
-                    .filter(x -> x.getOwner() == Owner.FRIENDLY && x.getBarracksType() == BarracksType.KNIGHT)
-                    .sorted(Comparator.comparingDouble(x -> Utils.dist(x.getX(),
-                            x.getY(),
-                            gameState.getEnemyQueen().getX(),
-                            gameState.getEnemyQueen().getY())))
-                    .collect(Collectors.toList());
-            for (BuildingSite site : knightBarracks) {
-                if (gold >= KNIGHT_COST) {
-                    gold -= KNIGHT_COST;
-                    trainSites.add(site.getId());
+            for (int i = 0; i < circleCount; i++) {
+                int c = i * 3;
+                double dist = Utils.dist(preferedX, preferedY, circles[c], circles[c + 1]);
+                if (dist > 0) {
+                    consider(circles[c] + (preferedX - circles[c]) * circles[c + 2] / dist,
+                            circles[c + 1] + (preferedY - circles[c + 1]) * circles[c + 2] / dist);
+                }
+                for (int h = i + 1; h < circleCount; h++) {
+                    intersectCircles(c, h * 3);
                 }
             }
-            for (BuildingSite site : gameState.getBuildingSites()) {
-                if (site.getOwner() != Owner.FRIENDLY || site.getBarracksType() != BarracksType.GIANT) {
-                    continue;
+
+            // Snap the closest candidates to whole pixels until no remaining candidate can do better
+            bestDist = Double.MAX_VALUE;
+            for (int i = 0; i < Math.min(candidateCount, MAX_SNAPPED_CANDIDATES); i++) {
+                int closest = i;
+                for (int h = i + 1; h < candidateCount; h++) {
+                    if (candidates[h * 3 + 2] < candidates[closest * 3 + 2]) {
+                        closest = h;
+                    }
                 }
-                if (gold >= GIANT_COST) {
-                    gold -= GIANT_COST;
-                    trainSites.add(site.getId());
+                swapCandidates(i, closest);
+                if (candidates[i * 3 + 2] > bestDist) {
+                    break;
                 }
+                snap(candidates[i * 3], candidates[i * 3 + 1]);
             }
-            if (!trainSites.isEmpty()) {
-                return Optional.of(new MoveBuilder().setTrainInSites(trainSites));
-            }
-            return Optional.empty();
-        }
 
-        @Override
-        public int priority() {
-            return 0;
+            //noinspection FloatingPointEquality
+            if (bestDist == Double.MAX_VALUE) {
+                return Optional.empty();
+            }
+            return Optional.of(new MoveBuilder().setX(bestX).setY(bestY));
         }
-    }
 
-    static class TurnEngine {
-
-        private static GiveWayToKnightRule giveWayToKnightRule = new GiveWayToKnightRule();
-        private static List<Rule> queenRules =
-                Arrays.asList(new GoToNewSiteRule(), new BuildStructureRule(), new RunFromKnightsRule());
-
-        private static Optional<MoveBuilder> bestPriorityMove(GameState gameState, List<Rule> rules) {
-            int currentPriority = Integer.MIN_VALUE;
-            MoveBuilder moveBuilder = null;
-            for (Rule rule : rules) {
-                if (currentPriority > rule.priority()) {
+        private void collectCapsules(GameState gameState) {
+            capsuleCount = 0;
+            TrajectoryTable trajectories = gameState.getTrajectories();
+            double stepChunks = gameState.getParams().getStepChunks();
+            for (int i = 0; i < gameState.getUnitCount(); i++) {
+                if (gameState.getUnitOwner(i) != Owner.FRIENDLY || gameState.getUnitType(i) != UnitType.KNIGHT) {
                     continue;
                 }
-                Optional<MoveBuilder> move = rule.makeMove(gameState);
-                if (move.isPresent()) {
-                    currentPriority = rule.priority();
-                    moveBuilder = move.get();
+                double x = trajectories.getX(i, 0);
+                double y = trajectories.getY(i, 0);
+                double bx = trajectories.getX(i, 1);
+                double by = trajectories.getY(i, 1);
+                double ax = x + (bx - x) / stepChunks;
+                double ay = y + (by - y) / stepChunks;
+                // Only knights whose sweep reaches the queen's next position matter
+                if (segmentDist(queenX, queenY, ax, ay, bx, by) >= QUEEN_SPEED + CLEARANCE + 1) {
+                    continue;
                 }
+                if (capsules.length < (capsuleCount + 1) * 4) {
+                    capsules = Arrays.copyOf(capsules, capsules.length * 2);
+                }
+                int c = capsuleCount * 4;
+                capsules[c] = ax;
+                capsules[c + 1] = ay;
+                capsules[c + 2] = bx;
+                capsules[c + 3] = by;
+                capsuleCount++;
             }
-            return Optional.ofNullable(moveBuilder);
         }
 
-        public static Move findMove(GameState gameState) {
-            Optional<MoveBuilder> queenMoveOpt = bestPriorityMove(gameState, queenRules);
-            if (queenMoveOpt.isPresent()) {
-                Optional<MoveBuilder> subMove =
-                        giveWayToKnightRule.makeMove(queenMoveOpt.get().createMove(), gameState);
-                if (subMove.isPresent()) {
-                    queenMoveOpt = subMove;
+        private void collectBoundaries() {
+            segmentCount = 0;
+            circleCount = 0;
+            double r = CLEARANCE;
+            for (int i = 0; i < capsuleCount; i++) {
+                int c = i * 4;
+                double ax = capsules[c];
+                double ay = capsules[c + 1];
+                double bx = capsules[c + 2];
+                double by = capsules[c + 3];
+                double len = Utils.dist(ax, ay, bx, by);
+                if (len > 0) {
+                    double nx = -(by - ay) / len * r;
+                    double ny = (bx - ax) / len * r;
+                    addSegment(ax + nx, ay + ny, bx + nx, by + ny);
+                    addSegment(ax - nx, ay - ny, bx - nx, by - ny);
+                }
+                addCircle(ax, ay, r);
+                addCircle(bx, by, r);
+            }
+            addCircle(queenX, queenY, QUEEN_SPEED);
+            addSegment(0, 0, GRID_WIDTH, 0);
+            addSegment(0, GRID_HEIGHT, GRID_WIDTH, GRID_HEIGHT);
+            addSegment(0, 0, 0, GRID_HEIGHT);
+            addSegment(GRID_WIDTH, 0, GRID_WIDTH, GRID_HEIGHT);
+        }
+
+        private void addSegment(double x1, double y1, double x2, double y2) {
+            if (segments.length < (segmentCount + 1) * 4) {
+                segments = Arrays.copyOf(segments, segments.length * 2);
+            }
+            int s = segmentCount * 4;
+            segments[s] = x1;
+            segments[s + 1] = y1;
+            segments[s + 2] = x2;
+            segments[s + 3] = y2;
+            segmentCount++;
+        }
+
+        private void addCircle(double x, double y, double r) {
+            if (circles.length < (circleCount + 1) * 3) {
+                circles = Arrays.copyOf(circles, circles.length * 2);
+            }
+            int c = circleCount * 3;
+            circles[c] = x;
+            circles[c + 1] = y;
+            circles[c + 2] = r;
+            circleCount++;
+        }
+
+        private void intersectSegments(int s1, int s2) {
+            double dx1 = segments[s1 + 2] - segments[s1];
+            double dy1 = segments[s1 + 3] - segments[s1 + 1];
+            double dx2 = segments[s2 + 2] - segments[s2];
+            double dy2 = segments[s2 + 3] - segments[s2 + 1];
+            double denom = dx1 * dy2 - dy1 * dx2;
+            if (denom == 0) {
+                return;
+            }
+            double ox = segments[s2] - segments[s1];
+            double oy = segments[s2 + 1] - segments[s1 + 1];
+            double t = (ox * dy2 - oy * dx2) / denom;
+            double u = (ox * dy1 - oy * dx1) / denom;
+            if (t >= 0 && t <= 1 && u >= 0 && u <= 1) {
+                consider(segments[s1] + t * dx1, segments[s1 + 1] + t * dy1);
+            }
+        }
+
+        private void intersectSegmentCircle(int s, int c) {
+            double dx = segments[s + 2] - segments[s];
+            double dy = segments[s + 3] - segments[s + 1];
+            double fx = segments[s] - circles[c];
+            double fy = segments[s + 1] - circles[c + 1];
+            double a = dx * dx + dy * dy;
+            double b = 2 * (fx * dx + fy * dy);
+            double cc = fx * fx + fy * fy - circles[c + 2] * circles[c + 2];
+            double discriminant = b * b - 4 * a * cc;
+            if (a == 0 || discriminant < 0) {
+                return;
+            }
+            double root = Math.sqrt(discriminant);
+            for (int sign = -1; sign <= 1; sign += 2) {
+                double t = (-b + sign * root) / (2 * a);
+                if (t >= 0 && t <= 1) {
+                    consider(segments[s] + t * dx, segments[s + 1] + t * dy);
+                }
+            }
+        }
+
+        private void intersectCircles(int c1, int c2) {
+            double dist = Utils.dist(circles[c1], circles[c1 + 1], circles[c2], circles[c2 + 1]);
+            double r1 = circles[c1 + 2];
+            double r2 = circles[c2 + 2];
+            if (dist == 0 || dist > r1 + r2 || dist < Math.abs(r1 - r2)) {
+                return;
+            }
+            double a = (r1 * r1 - r2 * r2 + dist * dist) / (2 * dist);
+            double h = Math.sqrt(Math.max(r1 * r1 - a * a, 0));
+            double ux = (circles[c2] - circles[c1]) / dist;
+            double uy = (circles[c2 + 1] - circles[c1 + 1]) / dist;
+            double mx = circles[c1] + a * ux;
+            double my = circles[c1 + 1] + a * uy;
+            consider(mx - h * uy, my + h * ux);
+            consider(mx + h * uy, my - h * ux);
+        }
+
+        private void consider(double x, double y) {
+            if (x < -EPS || x > GRID_WIDTH + EPS || y < -EPS || y > GRID_HEIGHT + EPS
+                    || Utils.dist(x, y, queenX, queenY) > QUEEN_SPEED + EPS) {
+                return;
+            }
+            for (int i = 0; i < capsuleCount; i++) {
+                int c = i * 4;
+                if (segmentDist(x, y, capsules[c], capsules[c + 1], capsules[c + 2], capsules[c + 3])
+                        < CLEARANCE - EPS) {
+                    return;
+                }
+            }
+            if (candidates.length < (candidateCount + 1) * 3) {
+                candidates = Arrays.copyOf(candidates, candidates.length * 2);
+            }
+            int c = candidateCount * 3;
+            candidates[c] = x;
+            candidates[c + 1] = y;
+            candidates[c + 2] = Utils.dist(x, y, preferedX, preferedY);
+            candidateCount++;
+        }
+
+        private void swapCandidates(int a, int b) {
+            for (int i = 0; i < 3; i++) {
+                double tmp = candidates[a * 3 + i];
+                candidates[a * 3 + i] = candidates[b * 3 + i];
+                candidates[b * 3 + i] = tmp;
+            }
+        }
+
+        /**
+         * Keeps the best reachable unblocked whole pixel near a free point. Free corners can be thin wedges, so rings
+         * of pixels around the point are checked until one has a free pixel, plus one more ring.
+         */
+        private void snap(double x, double y) {
+            int roundX = (int) Math.round(x);
+            int roundY = (int) Math.round(y);
+            int lastRing = MAX_SNAP_RING;
+            for (int ring = 0; ring <= lastRing; ring++) {
+                for (int newX = roundX - ring; newX <= roundX + ring; newX++) {
+                    int step = (newX == roundX - ring || newX == roundX + ring) ? 1 : Math.max(ring * 2, 1);
+                    for (int newY = roundY - ring; newY <= roundY + ring; newY += step) {
+                        if (trySnapped(newX, newY)) {
+                            lastRing = Math.min(lastRing, ring + 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean trySnapped(int newX, int newY) {
+            if (newX < 0 || newX > GRID_WIDTH || newY < 0 || newY > GRID_HEIGHT
+                    || (newX - queenX) * (newX - queenX) + (newY - queenY) * (newY - queenY)
+                    > QUEEN_SPEED * QUEEN_SPEED || isBlocked(newX, newY)) {
+                return false;
+            }
+            double dist = Utils.dist(newX, newY, preferedX, preferedY);
+            if (dist < bestDist || (dist == bestDist && (newX < bestX || (newX == bestX && newY < bestY)))) {
+                bestDist = dist;
+                bestX = newX;
+                bestY = newY;
+            }
+            return true;
+        }
+
+        private boolean isBlocked(int x, int y) {
+            for (int i = 0; i < capsuleCount; i++) {
+                int c = i * 4;
+                if (segmentDist(x, y, capsules[c], capsules[c + 1], capsules[c + 2], capsules[c + 3]) < CLEARANCE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static double segmentProjection(double x, double y, double x1, double y1, double x2, double y2) {
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            double lenSq = dx * dx + dy * dy;
+            if (lenSq == 0) {
+                return 0;
+            }
+            return Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lenSq));
+        }
+
+        private static double segmentDist(double x, double y, double x1, double y1, double x2, double y2) {
+            double t = segmentProjection(x, y, x1, y1, x2, y2);
+            return Utils.dist(x, y, x1 + t * (x2 - x1), y1 + t * (y2 - y1));
+        }
+    }
+
+    static class TrainUnitsRule implements Rule {
+
+        private final List<BuildingSite> knightBarracks = new ArrayList<>();
+        // Refilled every turn, the move built from it takes a copy
+        private final List<Integer> trainSites = new ArrayList<>();
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private final Optional<MoveBuilder> trainMove = Optional.of(new MoveBuilder().setTrainInSites(trainSites));
+        private final BarracksOrder barracksOrder = new BarracksOrder();
+
+        /**
+         * Orders barracks by their distance to a point.
+         */
+        static class BarracksOrder implements Comparator<BuildingSite> {
+
+            private int toX, toY;
+
+            public void setTo(int x, int y) {
+                this.toX = x;
+                this.toY = y;
+            }
+
+            @Override
+            public int compare(BuildingSite a, BuildingSite b) {
+                return Double.compare(Utils.dist(a.getX(), a.getY(), toX, toY),
+                        Utils.dist(b.getX(), b.getY(), toX, toY));
+            }
+        }
+
+        @Override
+        public Optional<MoveBuilder> makeMove(GameState gameState) {
+            trainSites.clear();
+            int gold = gameState.getGoldLeft();
+
+            knightBarracks.clear();
+            for (BuildingSite site : gameState.getBuildingSites()) {
+                if (site.getOwner() == Owner.FRIENDLY && site.getBarracksType() == BarracksType.KNIGHT) {
+                    knightBarracks.add(site);
+                }
+            }
+            barracksOrder.setTo(gameState.getEnemyQueen().getX(), gameState.getEnemyQueen().getY());
+            knightBarracks.sort(barracksOrder);
+            for (int i = 0; i < knightBarracks.size(); i++) {
+                if (gold >= KNIGHT_COST) {
+                    gold -= KNIGHT_COST;
+                    trainSites.add(knightBarracks.get(i).getId());
+                }
+            }
+            for (BuildingSite site : gameState.getBuildingSites()) {
+                if (site.getOwner() != Owner.FRIENDLY || site.getBarracksType() != BarracksType.GIANT) {
+                    continue;
+                }
+                if (gold >= GIANT_COST) {
+                    gold -= GIANT_COST;
+                    trainSites.add(site.getId());
+                }
+            }
+            if (!trainSites.isEmpty()) {
+                return trainMove;
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public int priority() {
+            return 0;
+        }
+    }
+
+    static class TurnEngine {
+
+        private final List<Rule> queenRules;
+        private final Optional<GiveWayToKnightRule> giveWayToKnightRule;
+        private final List<Rule> structureRules = Collections.singletonList(new TrainUnitsRule());
+        // offline:begin
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private Optional<RuleProfiler> profiler = Optional.empty();
+        // Rule that produced the move bestPriorityMove returned last
+        private Class<?> producer;
+        // offline:end
+
+        public static TurnEngine create() {
+            return create(Arrays.asList(new GoToNewSiteRule(), new BuildStructureRule(), new RunFromKnightsRule()),
+                    true);
+        }
+
+        /**
+         * Engine with its own rule instances, so engines can decide turns of different games concurrently.
+         */
+        public static TurnEngine create(List<Rule> queenRules, boolean giveWayToKnights) {
+            return new TurnEngine(queenRules,
+                    giveWayToKnights ? Optional.of(new GiveWayToKnightRule()) : Optional.empty());
+        }
+
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        public TurnEngine(List<Rule> queenRules, Optional<GiveWayToKnightRule> giveWayToKnightRule) {
+            this.queenRules = schedule(queenRules);
+            this.giveWayToKnightRule = giveWayToKnightRule;
+        }
+
+        /**
+         * Orders rules so that the first one producing a move is the one that wins: by descending priority and, as a
+         * later rule used to override an earlier one of the same priority, in reverse declaration order among equals.
+         */
+        static List<Rule> schedule(List<Rule> rules) {
+            List<Rule> scheduled = new ArrayList<>(rules);
+            Collections.reverse(scheduled);
+            scheduled.sort(new Comparator<Rule>() {
+                @Override
+                public int compare(Rule a, Rule b) {
+                    return Integer.compare(b.priority(), a.priority());
+                }
+            });
+            return scheduled;
+        }
+
+        // offline:begin
+        /**
+         * Records every rule run by this engine from now on.
+         */
+        public void setProfiler(RuleProfiler profiler) {
+            this.profiler = Optional.of(profiler);
+        }
+
+        // offline:end
+        /**
+         * Runs scheduled rules until one produces a move.
+         */
+        private Optional<MoveBuilder> bestPriorityMove(GameState gameState, List<Rule> rules) {
+            for (int i = 0; i < rules.size(); i++) {
+                Rule rule = rules.get(i);
+                if (!rule.isApplicable(gameState)) {
+                    continue;
+                }
+                // offline:begin
+                if (profiler.isPresent()) {
+                    profiler.get().start();
+                }
+                // offline:end
+                Optional<MoveBuilder> move = rule.makeMove(gameState);
+                // offline:begin
+                if (profiler.isPresent()) {
+                    profiler.get().stop(rule.getClass().getSimpleName(), move.isPresent());
+                }
+                producer = rule.getClass();
+                // offline:end
+                if (move.isPresent()) {
+                    return move;
+                }
+            }
+            return Optional.empty();
+        }
+
+        // offline:begin
+        /**
+         * Move of every applicable queen rule that produces one, in schedule order, without training.
+         */
+        public List<Move> queenProposals(GameState gameState) {
+            List<Move> proposals = new ArrayList<>();
+            for (Rule rule : queenRules) {
+                if (!rule.isApplicable(gameState)) {
+                    continue;
+                }
+                Optional<MoveBuilder> move = rule.makeMove(gameState);
+                if (move.isPresent()) {
+                    proposals.add(move.get().createMove());
+                }
+            }
+            return proposals;
+        }
+
+        // offline:end
+        public Move findMove(GameState gameState) {
+            Optional<MoveBuilder> queenMoveOpt = bestPriorityMove(gameState, queenRules);
+            // offline:begin
+            Class<?> queenMoveProducer = producer;
+            // offline:end
+            if (queenMoveOpt.isPresent() && giveWayToKnightRule.isPresent()
+                    && gameState.getTurnBudget().level() != DegradationLevel.MINIMAL) {
+                Move preferredMove = queenMoveOpt.get().createMove();
+                // offline:begin
+                if (profiler.isPresent()) {
+                    profiler.get().start();
+                }
+                // offline:end
+                Optional<MoveBuilder> subMove = giveWayToKnightRule.get().makeMove(preferredMove, gameState);
+                // offline:begin
+                if (profiler.isPresent()) {
+                    profiler.get().stop(GiveWayToKnightRule.class.getSimpleName(), subMove.isPresent());
+                }
+                // offline:end
+                if (subMove.isPresent()) {
+                    queenMoveOpt = subMove;
+                    // offline:begin
+                    queenMoveProducer = GiveWayToKnightRule.class;
+                    // offline:end
+                }
+            }
+            Optional<MoveBuilder> structureMoveOpt = bestPriorityMove(gameState, structureRules);
+            // offline:begin
+            // The first queen rule to produce a move only wins if give-way doesn't replace it, training always goes
+            if (profiler.isPresent()) {
+                if (queenMoveOpt.isPresent()) {
+                    profiler.get().won(queenMoveProducer.getSimpleName());
+                }
+                if (structureMoveOpt.isPresent()) {
+                    profiler.get().won(producer.getSimpleName());
+                }
+            }
+            // offline:end
+            MoveBuilder queenMove = queenMoveOpt.isPresent() ? queenMoveOpt.get() : new MoveBuilder();
+            queenMove.setTrainInSites(structureMoveOpt.isPresent() ?
+                    structureMoveOpt.get().getTrainInSites() : Collections.<Integer>emptyList());
+            return queenMove.createMove();
+        }
+    }
+
+    /**
+     * Runs the rules on made up turns of the real map before the first turn is read, so the first real turns find the
+     * code loaded and compiled. The turns have random structures and units and are played by a throwaway engine on
+     * throwaway game states, the real game doesn't see any of it.
+     */
+    static class Warmup {
+
+        static final long BUDGET_NANOS = 300_000_000L;
+        private static final int GAME_TURNS = 50;
+        private static final int MAX_UNITS = 10;
+
+        private final List<BuildingSiteStatic> buildingSiteStatics;
+        private final Random random;
+
+        public static Warmup create(List<BuildingSiteStatic> buildingSiteStatics) {
+            return new Warmup(buildingSiteStatics, new Random(0));
+        }
+
+        public Warmup(List<BuildingSiteStatic> buildingSiteStatics, Random random) {
+            this.buildingSiteStatics = buildingSiteStatics;
+            this.random = random;
+        }
+
+        /**
+         * Plays made up turns until the budget runs out, the rules see the remaining budget as their turn budget.
+         *
+         * @return number of turns played
+         */
+        public int run(long budgetNanos) {
+            long start = System.nanoTime();
+            int turns = 0;
+            while (System.nanoTime() - start < budgetNanos) {
+                GameState gameState = GameState.create(buildingSiteStatics);
+                TurnEngine turnEngine = TurnEngine.create();
+                for (int i = 0; i < GAME_TURNS; i++) {
+                    long left = budgetNanos - (System.nanoTime() - start);
+                    if (left <= 0) {
+                        break;
+                    }
+                    gameState.getTurnBudget().start(left);
+                    initRandomTurn(gameState);
+                    turnEngine.findMove(gameState);
+                    turns++;
+                }
+            }
+            return turns;
+        }
+
+        private void initRandomTurn(GameState gameState) {
+            List<BuildingSite> buildingSites = new ArrayList<>(buildingSiteStatics.size());
+            for (BuildingSiteStatic siteStatic : buildingSiteStatics) {
+                Owner owner = random.nextBoolean() ? Owner.FRIENDLY : Owner.ENEMY;
+                int gold = random.nextInt(4) == 0 ? -1 : random.nextInt(250);
+                int maxMineSize = random.nextInt(3) + 1;
+                switch (random.nextInt(6)) {
+                    case 0:
+                        buildingSites.add(BuildingSite.create(siteStatic,
+                                StructureType.MINE,
+                                owner,
+                                0,
+                                gold,
+                                maxMineSize,
+                                0,
+                                0,
+                                random.nextInt(maxMineSize) + 1,
+                                BarracksType.NONE));
+                        break;
+                    case 1:
+                        buildingSites.add(BuildingSite.create(siteStatic,
+                                StructureType.TOWER,
+                                owner,
+                                0,
+                                gold,
+                                maxMineSize,
+                                random.nextInt(800) + 1,
+                                random.nextInt(400) + 100,
+                                0,
+                                BarracksType.NONE));
+                        break;
+                    case 2:
+                        buildingSites.add(BuildingSite.create(siteStatic,
+                                StructureType.BARRACKS,
+                                owner,
+                                random.nextInt(KNIGHT_TRAIN_TURNS + 1),
+                                gold,
+                                maxMineSize,
+                                0,
+                                0,
+                                0,
+                                random.nextBoolean() ? BarracksType.KNIGHT : BarracksType.GIANT));
+                        break;
+                    default:
+                        buildingSites.add(BuildingSite.create(siteStatic,
+                                StructureType.NONE,
+                                Owner.NONE,
+                                0,
+                                gold,
+                                maxMineSize,
+                                0,
+                                0,
+                                0,
+                                BarracksType.NONE));
+                }
+            }
+
+            List<Unit> units = new ArrayList<>(MAX_UNITS + 2);
+            int touchedSite = -1;
+            int queenX = random.nextInt(GRID_WIDTH + 1);
+            int queenY = random.nextInt(GRID_HEIGHT + 1);
+            if (random.nextInt(3) == 0) {
+                BuildingSiteStatic site = buildingSiteStatics.get(random.nextInt(buildingSiteStatics.size()));
+                touchedSite = site.getId();
+                queenX = Math.min(site.getX() + site.getRadius() + QUEEN_RADIUS, GRID_WIDTH);
+                queenY = site.getY();
+            }
+            units.add(Unit.create(queenX, queenY, Owner.FRIENDLY, UnitType.QUEEN, random.nextInt(200) + 1));
+            units.add(Unit.create(random.nextInt(GRID_WIDTH + 1),
+                    random.nextInt(GRID_HEIGHT + 1),
+                    Owner.ENEMY,
+                    UnitType.QUEEN,
+                    random.nextInt(200) + 1));
+            int knights = random.nextInt(MAX_UNITS + 1);
+            for (int i = 0; i < knights; i++) {
+                units.add(Unit.create(random.nextInt(GRID_WIDTH + 1),
+                        random.nextInt(GRID_HEIGHT + 1),
+                        random.nextBoolean() ? Owner.FRIENDLY : Owner.ENEMY,
+                        UnitType.KNIGHT,
+                        random.nextInt(25) + 1));
+            }
+            gameState.initTurn(random.nextInt(300), touchedSite, buildingSites, units);
+        }
+    }
+
+    // offline:begin
+    /**
+     * Collects, for every rule, how long {@code makeMove} took, how many bytes it allocated, whether it produced a move
+     * and whether that move was the one played. Allocation is read from the thread's allocation counter, where the JVM
+     * doesn't provide one it is recorded as 0.
+     */
+    static class RuleProfiler {
+
+        private final Map<String, RuleStats> stats = new LinkedHashMap<>();
+        private final ThreadMXBean threadBean;
+        private final boolean allocationSupported;
+        private long startNanos;
+        private long startBytes;
+
+        public static RuleProfiler create() {
+            return new RuleProfiler((ThreadMXBean) ManagementFactory.getThreadMXBean());
+        }
+
+        public RuleProfiler(ThreadMXBean threadBean) {
+            this.threadBean = threadBean;
+            this.allocationSupported =
+                    threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled();
+        }
+
+        public void start() {
+            startBytes = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        public void stop(String rule, boolean produced) {
+            long nanos = System.nanoTime() - startNanos;
+            long bytes = allocatedBytes() - startBytes;
+            RuleStats ruleStats = getStats(rule);
+            ruleStats.nanos.record(nanos);
+            ruleStats.bytes.record(bytes);
+            ruleStats.calls++;
+            if (produced) {
+                ruleStats.produced++;
+            }
+        }
+
+        public void won(String rule) {
+            getStats(rule).won++;
+        }
+
+        public RuleStats getStats(String rule) {
+            return stats.computeIfAbsent(rule, x -> new RuleStats());
+        }
+
+        private long allocatedBytes() {
+            return allocationSupported ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+        }
+
+        public void dump(PrintStream out) {
+            for (Map.Entry<String, RuleStats> entry : stats.entrySet()) {
+                RuleStats ruleStats = entry.getValue();
+                out.println(String.format(
+                        "%s calls %d produced %d won %d | us p50 %d p90 %d p99 %d max %d | bytes p50 %d p99 %d max %d",
+                        entry.getKey(),
+                        ruleStats.calls,
+                        ruleStats.produced,
+                        ruleStats.won,
+                        ruleStats.nanos.percentile(0.5) / 1000,
+                        ruleStats.nanos.percentile(0.9) / 1000,
+                        ruleStats.nanos.percentile(0.99) / 1000,
+                        ruleStats.nanos.getMax() / 1000,
+                        ruleStats.bytes.percentile(0.5),
+                        ruleStats.bytes.percentile(0.99),
+                        ruleStats.bytes.getMax()));
+            }
+            out.flush();
+        }
+
+        static class RuleStats {
+
+            private final Histogram nanos = new Histogram();
+            private final Histogram bytes = new Histogram();
+            private long calls;
+            private long produced;
+            private long won;
+
+            public Histogram getNanos() {
+                return nanos;
+            }
+
+            public Histogram getBytes() {
+                return bytes;
+            }
+
+            public long getCalls() {
+                return calls;
+            }
+
+            public long getProduced() {
+                return produced;
+            }
+
+            public long getWon() {
+                return won;
+            }
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values in the spirit of HdrHistogram: every power of two is split into
+     * {@code 2^SUB_BUCKET_BITS} equal buckets, so values are kept with about 12% precision over the whole long range.
+     */
+    static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts[bucket(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Highest value of the bucket holding the given quantile, never above the recorded maximum.
+         */
+        public long percentile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketMax(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Adds every value recorded by {@code other} to this histogram.
+         */
+        public void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long bucketMax(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+        }
+    }
+    // offline:end
+
+    enum DegradationLevel {
+        FULL,
+        REDUCED,
+        MINIMAL
+    }
+
+    /**
+     * Time allowance of the current turn, counted from the moment its first line arrived. Rules ask it for the
+     * evaluation level they can still afford; within a turn the level only goes down. Until a turn is started the
+     * budget is unlimited.
+     */
+    static class TurnBudget {
+
+        static final long FIRST_TURN_NANOS = 900_000_000L;
+        static final long TURN_NANOS = 40_000_000L;
+        private static final double REDUCED_AFTER = 0.5;
+        private static final double MINIMAL_AFTER = 0.8;
+
+        private boolean enabled = true;
+        private boolean started = false;
+        private long startNanos;
+        private long budgetNanos = Long.MAX_VALUE;
+        private long spentBeforeFirstTurnNanos = 0;
+        private DegradationLevel worstLevel = DegradationLevel.FULL;
+
+        public void startTurn() {
+            start(started ? TURN_NANOS : FIRST_TURN_NANOS - spentBeforeFirstTurnNanos);
+        }
+
+        /**
+         * Takes time spent before the first turn was read out of its allowance, the turn's clock was already running.
+         */
+        public void spendBeforeFirstTurn(long nanos) {
+            spentBeforeFirstTurnNanos = nanos;
+        }
+
+        public void start(long budgetNanos) {
+            startNanos = System.nanoTime();
+            this.budgetNanos = enabled ? budgetNanos : Long.MAX_VALUE;
+            started = true;
+            worstLevel = DegradationLevel.FULL;
+        }
+
+        public void disable() {
+            enabled = false;
+            budgetNanos = Long.MAX_VALUE;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        // offline:begin
+        /**
+         * Whether the current turn has a deadline, it has none before the first turn is started or once disabled.
+         */
+        public boolean isLimited() {
+            return budgetNanos != Long.MAX_VALUE;
+        }
+        // offline:end
+
+        public long elapsedNanos() {
+            return System.nanoTime() - startNanos;
+        }
+
+        public boolean isExpired() {
+            return started && elapsedNanos() >= budgetNanos;
+        }
+
+        public DegradationLevel level() {
+            if (!started || worstLevel == DegradationLevel.MINIMAL) {
+                return worstLevel;
+            }
+            long elapsed = elapsedNanos();
+            DegradationLevel level;
+            if (elapsed < budgetNanos * REDUCED_AFTER) {
+                level = DegradationLevel.FULL;
+            } else if (elapsed < budgetNanos * MINIMAL_AFTER) {
+                level = DegradationLevel.REDUCED;
+            } else {
+                level = DegradationLevel.MINIMAL;
+            }
+            if (level.ordinal() > worstLevel.ordinal()) {
+                worstLevel = level;
+            }
+            return worstLevel;
+        }
+
+        public DegradationLevel getWorstLevel() {
+            return worstLevel;
+        }
+    }
+
+    static class GameState {
+
+        static final Owner[] OWNERS = Owner.values();
+        static final StructureType[] STRUCTURE_TYPES = StructureType.values();
+        static final BarracksType[] BARRACKS_TYPES = BarracksType.values();
+        static final UnitType[] UNIT_TYPES = UnitType.values();
+
+        private final List<BuildingSiteStatic> buildingSiteStatics;
+        private final Params params;
+        private final BuildingSiteStatic[] buildingSiteStaticById;
+        // Sites never move, so everything between a pair of sites is computed once, indexed by site id
+        private final double[][] siteDist;
+        private final double[][] contactX;
+        private final double[][] contactY;
+        private final double[][] contactToSiteDist;
+        private final int maxSiteRadius;
+        private final SpatialIndex spatialIndex = new SpatialIndex();
+        private TrajectoryTable trajectories = new TrajectoryTable();
+        private final TurnBudget turnBudget = new TurnBudget();
+        private final BuildingDecisionCache buildingDecisionCache;
+        private PathFinder pathFinder;
+        // Turn state as primitive columns. Site rows are site ids and siteOrder keeps the order of the turn input,
+        // unit rows are positions in the turn input. The sites and units handed out are views over the rows, so the
+        // columns are the only copy of the turn
+        private int[] siteOrder;
+        private final int[] siteX, siteY, siteRadius;
+        private final SiteColumns siteColumns;
+        private int[] enemyIncomeRate;
+        // Aggregates kept up to date from the per-turn diff of the site columns
+        private final TurnChanges turnChanges;
+        private int[] structureCounts = new int[OWNERS.length * STRUCTURE_TYPES.length * BARRACKS_TYPES.length];
+        private int[] myTowerCoverage;
+        private final CoverageRaster myTowerRaster;
+        private final CoverageRaster enemyTowerRaster;
+        private int[] enemyEconomySites;
+        // Set while the columns are shared with a copy, see ownColumns()
+        private boolean columnsShared;
+        private int enemyEconomySiteCount;
+        private int contactQueenX = -1;
+        private int contactQueenY = -1;
+        private int contactSiteId = -1;
+        private int unitCount;
+        private final UnitColumns unitColumns;
+        private final BuildingSite[] buildingSiteById;
+        private final List<BuildingSite> buildingSites = new ArrayList<>();
+        // Views of every row the columns ever held, units lists the first unitCount of them
+        private final List<Unit> unitViews = new ArrayList<>();
+        private final List<Unit> units = new ArrayList<>();
+        private int goldLeft;
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private Optional<BuildingSite> touchedSiteOpt;
+        // Every site view wrapped once, so the touched site doesn't allocate an optional
+        private final List<Optional<BuildingSite>> siteOpts;
+        private Unit myQueen;
+        private Unit enemyQueen;
+        private int lastMyQueenX, lastMyQueenY, lastEnemyQueenX, lastEnemyQueenY;
+        private int myCornerX = -1;
+        private int mycornerY = -1;
+        private int overallIncome = 0;
+        private int enemyGold = 100;
+        private int enemyOverallIncome = 0;
+
+        public static GameState create(List<BuildingSiteStatic> buildingSiteStatics) {
+            return new GameState(buildingSiteStatics, Params.DEFAULTS);
+        }
+
+        public static GameState create(List<BuildingSiteStatic> buildingSiteStatics, Params params) {
+            return new GameState(buildingSiteStatics, params);
+        }
+
+        public GameState(List<BuildingSiteStatic> buildingSiteStatics, Params params) {
+            this.buildingSiteStatics = buildingSiteStatics;
+            this.params = params;
+            int maxId = -1;
+            int maxRadius = 0;
+            for (BuildingSiteStatic site : buildingSiteStatics) {
+                maxId = Math.max(maxId, site.getId());
+                maxRadius = Math.max(maxRadius, site.getRadius());
+            }
+            maxSiteRadius = maxRadius;
+            buildingSiteStaticById = new BuildingSiteStatic[maxId + 1];
+            buildingDecisionCache = new BuildingDecisionCache(maxId);
+            buildingSiteById = new BuildingSite[maxId + 1];
+            siteOpts = new ArrayList<>(Collections.nCopies(maxId + 1, null));
+            siteOrder = new int[buildingSiteStatics.size()];
+            siteX = new int[maxId + 1];
+            siteY = new int[maxId + 1];
+            siteRadius = new int[maxId + 1];
+            siteColumns = new SiteColumns(maxId + 1);
+            unitColumns = new UnitColumns(0);
+            enemyIncomeRate = new int[maxId + 1];
+            turnChanges = new TurnChanges(maxId);
+            myTowerCoverage = new int[maxId + 1];
+            myTowerRaster = new CoverageRaster(maxId);
+            enemyTowerRaster = new CoverageRaster(maxId);
+            enemyEconomySites = new int[buildingSiteStatics.size()];
+            // Columns start out as a board of vacant sites, the first turn is diffed against it
+            structureCounts[structureKey(Owner.NONE, StructureType.NONE, BarracksType.NONE)] =
+                    buildingSiteStatics.size();
+            for (BuildingSiteStatic site : buildingSiteStatics) {
+                buildingSiteStaticById[site.getId()] = site;
+                siteX[site.getId()] = site.getX();
+                siteY[site.getId()] = site.getY();
+                siteRadius[site.getId()] = site.getRadius();
+            }
+            createSiteViews();
+            siteDist = new double[maxId + 1][maxId + 1];
+            contactX = new double[maxId + 1][maxId + 1];
+            contactY = new double[maxId + 1][maxId + 1];
+            contactToSiteDist = new double[maxId + 1][maxId + 1];
+            for (BuildingSiteStatic from : buildingSiteStatics) {
+                for (BuildingSiteStatic to : buildingSiteStatics) {
+                    int a = from.getId();
+                    int b = to.getId();
+                    siteDist[a][b] = Utils.dist(from.getX(), from.getY(), to.getX(), to.getY());
+                    if (a == b) {
+                        continue;
+                    }
+                    double k = (from.getRadius() + QUEEN_RADIUS) / Utils.dist(to.getX(),
+                            to.getY(),
+                            from.getX(),
+                            from.getY());
+                    contactX[a][b] = ((to.getX() - from.getX()) * k) + from.getX();
+                    contactY[a][b] = ((to.getY() - from.getY()) * k) + from.getY();
+                    contactToSiteDist[a][b] = Utils.dist(contactX[a][b], contactY[a][b], to.getX(), to.getY());
+                }
+            }
+        }
+
+        // offline:begin
+        private GameState(GameState other) {
+            buildingSiteStatics = other.buildingSiteStatics;
+            params = other.params;
+            buildingSiteStaticById = other.buildingSiteStaticById;
+            siteDist = other.siteDist;
+            contactX = other.contactX;
+            contactY = other.contactY;
+            contactToSiteDist = other.contactToSiteDist;
+            maxSiteRadius = other.maxSiteRadius;
+            turnBudget.disable();
+            buildingDecisionCache = new BuildingDecisionCache(buildingSiteStaticById.length - 1);
+            pathFinder = other.pathFinder == null ? null : other.pathFinder.copy();
+            siteX = other.siteX;
+            siteY = other.siteY;
+            siteRadius = other.siteRadius;
+            siteOrder = other.siteOrder;
+            siteColumns = new SiteColumns(other.siteColumns);
+            enemyIncomeRate = other.enemyIncomeRate;
+            turnChanges = other.turnChanges.copy();
+            structureCounts = other.structureCounts;
+            myTowerCoverage = other.myTowerCoverage;
+            myTowerRaster = other.myTowerRaster.copy();
+            enemyTowerRaster = other.enemyTowerRaster.copy();
+            trajectories = other.trajectories.copy();
+            enemyEconomySites = other.enemyEconomySites;
+            enemyEconomySiteCount = other.enemyEconomySiteCount;
+            contactQueenX = other.contactQueenX;
+            contactQueenY = other.contactQueenY;
+            contactSiteId = other.contactSiteId;
+            unitCount = other.unitCount;
+            unitColumns = new UnitColumns(other.unitColumns);
+            buildingSiteById = new BuildingSite[buildingSiteStaticById.length];
+            siteOpts = new ArrayList<>(Collections.nCopies(buildingSiteStaticById.length, null));
+            createSiteViews();
+            if (!other.buildingSites.isEmpty()) {
+                listSites();
+            }
+            listUnits();
+            goldLeft = other.goldLeft;
+            touchedSiteOpt = other.touchedSiteOpt == null || !other.touchedSiteOpt.isPresent()
+                    ? other.touchedSiteOpt
+                    : siteOpts.get(other.touchedSiteOpt.get().getId());
+            myQueen = other.myQueen == null ? null : units.get(other.myQueen.row);
+            enemyQueen = other.enemyQueen == null ? null : units.get(other.enemyQueen.row);
+            lastMyQueenX = other.lastMyQueenX;
+            lastMyQueenY = other.lastMyQueenY;
+            lastEnemyQueenX = other.lastEnemyQueenX;
+            lastEnemyQueenY = other.lastEnemyQueenY;
+            myCornerX = other.myCornerX;
+            mycornerY = other.mycornerY;
+            overallIncome = other.overallIncome;
+            enemyGold = other.enemyGold;
+            enemyOverallIncome = other.enemyOverallIncome;
+            columnsShared = true;
+            other.columnsShared = true;
+            if (!buildingSites.isEmpty()) {
+                spatialIndex.rebuild(buildingSites, units);
+            }
+        }
+
+        /**
+         * Copy of the state to play turns ahead on, its turns are then fed through {@link #initTurn} like real ones.
+         * Tables that never change are shared, the turn columns and tower rasters are shared too until either side
+         * starts a new turn, so a copy that is only read costs its own views over the columns, a few small objects and
+         * a rebuild of the spatial index.
+         * The copy's turn budget is disabled.
+         */
+        public GameState copy() {
+            return new GameState(this);
+        }
+        // offline:end
+
+        /**
+         * Takes private copies of the columns before the first write after {@link #copy()}.
+         */
+        private void ownColumns() {
+            if (!columnsShared) {
+                return;
+            }
+            siteOrder = siteOrder.clone();
+            siteColumns.own();
+            enemyIncomeRate = enemyIncomeRate.clone();
+            structureCounts = structureCounts.clone();
+            myTowerCoverage = myTowerCoverage.clone();
+            enemyEconomySites = enemyEconomySites.clone();
+            unitColumns.own();
+            columnsShared = false;
+        }
+
+        /**
+         * Views over the site rows, created once since a site's row is its id.
+         */
+        private void createSiteViews() {
+            for (BuildingSiteStatic site : buildingSiteStatics) {
+                BuildingSite view = new BuildingSite(site, siteColumns, site.getId());
+                buildingSiteById[site.getId()] = view;
+                siteOpts.set(site.getId(), Optional.of(view));
+            }
+        }
+
+        private void listSites() {
+            buildingSites.clear();
+            for (int id : siteOrder) {
+                buildingSites.add(buildingSiteById[id]);
+            }
+        }
+
+        private void listUnits() {
+            while (unitViews.size() < unitCount) {
+                unitViews.add(new Unit(unitColumns, unitViews.size()));
+            }
+            units.clear();
+            for (int i = 0; i < unitCount; i++) {
+                units.add(unitViews.get(i));
+            }
+        }
+
+        public double getSiteDist(int siteIdA, int siteIdB) {
+            return siteDist[siteIdA][siteIdB];
+        }
+
+        /**
+         * Point where the queen touches site {@code fromSiteId} when standing on the straight line to the center of
+         * site {@code towardsSiteId}.
+         */
+        public double getContactX(int fromSiteId, int towardsSiteId) {
+            return contactX[fromSiteId][towardsSiteId];
+        }
+
+        public double getContactY(int fromSiteId, int towardsSiteId) {
+            return contactY[fromSiteId][towardsSiteId];
+        }
+
+        /**
+         * Distance from the contact point of {@link #getContactX(int, int)} to the center of {@code towardsSiteId}.
+         */
+        public double getContactToSiteDist(int fromSiteId, int towardsSiteId) {
+            return contactToSiteDist[fromSiteId][towardsSiteId];
+        }
+
+        public List<BuildingSiteStatic> getBuildingSiteStatics() {
+            return buildingSiteStatics;
+        }
+
+        public List<BuildingSite> getBuildingSites() {
+            return buildingSites;
+        }
+
+        public Params getParams() {
+            return params;
+        }
+
+        public TrajectoryTable getTrajectories() {
+            return trajectories;
+        }
+
+        public SpatialIndex getSpatialIndex() {
+            return spatialIndex;
+        }
+
+        public TurnBudget getTurnBudget() {
+            return turnBudget;
+        }
+
+        public BuildingDecisionCache getBuildingDecisionCache() {
+            return buildingDecisionCache;
+        }
+
+        /**
+         * Built on first use, many games never need to go round a site.
+         */
+        public PathFinder getPathFinder() {
+            if (pathFinder == null) {
+                pathFinder = PathFinder.create(buildingSiteStatics);
+            }
+            return pathFinder;
+        }
+
+        public TurnChanges getTurnChanges() {
+            return turnChanges;
+        }
+
+        /**
+         * Number of sites with the given owner, structure and barracks type.
+         */
+        public int getStructureCount(Owner owner, StructureType structureType, BarracksType barracksType) {
+            return structureCounts[structureKey(owner, structureType, barracksType)];
+        }
+
+        /**
+         * Whether a friendly tower's range reaches the center of the site.
+         */
+        public boolean isCoveredByMyTower(int siteId) {
+            return myTowerCoverage[siteId] > 0;
+        }
+
+        /**
+         * Raster of the tower ranges of the owner, {@link Owner#FRIENDLY} or {@link Owner#ENEMY}.
+         */
+        public CoverageRaster getTowerRaster(Owner owner) {
+            return owner == Owner.FRIENDLY ? myTowerRaster : enemyTowerRaster;
+        }
+
+        private static int structureKey(Owner owner, StructureType structureType, BarracksType barracksType) {
+            return structureKey(owner.ordinal(), structureType.ordinal(), barracksType.ordinal());
+        }
+
+        private static int structureKey(int owner, int structureType, int barracksType) {
+            return (owner * STRUCTURE_TYPES.length + structureType) * BARRACKS_TYPES.length + barracksType;
+        }
+
+        public List<Unit> getUnits() {
+            return units;
+        }
+
+        public int getGoldLeft() {
+            return goldLeft;
+        }
+
+        public Optional<BuildingSite> getTouchedSiteOpt() {
+            return touchedSiteOpt;
+        }
+
+        public BuildingSiteStatic getBuildingSiteStaticById(int id) {
+            return buildingSiteStaticById[id];
+        }
+
+        public BuildingSite getBuildingSiteById(int id) {
+            return buildingSiteById[id];
+        }
+
+        public int getSiteCount() {
+            return siteOrder.length;
+        }
+
+        /**
+         * Id of the site at position {@code i} of the turn input.
+         */
+        public int getSiteIdAt(int i) {
+            return siteOrder[i];
+        }
+
+        public int getSiteX(int id) {
+            return siteX[id];
+        }
+
+        public int getSiteY(int id) {
+            return siteY[id];
+        }
+
+        public int getSiteRadius(int id) {
+            return siteRadius[id];
+        }
+
+        public Owner getSiteOwner(int id) {
+            return OWNERS[siteColumns.owner[id]];
+        }
+
+        public StructureType getSiteStructureType(int id) {
+            return STRUCTURE_TYPES[siteColumns.structureType[id]];
+        }
+
+        public BarracksType getSiteBarracksType(int id) {
+            return BARRACKS_TYPES[siteColumns.barracksType[id]];
+        }
+
+        public int getSiteTowerHP(int id) {
+            return siteColumns.towerHP[id];
+        }
+
+        public int getSiteTowerRange(int id) {
+            return siteColumns.towerRange[id];
+        }
+
+        public int getSiteUntilTrain(int id) {
+            return siteColumns.untilTrain[id];
+        }
+
+        public int getSiteGold(int id) {
+            return siteColumns.gold[id];
+        }
+
+        public int getSiteMaxMineSize(int id) {
+            return siteColumns.maxMineSize[id];
+        }
+
+        public int getSiteIncomeRate(int id) {
+            return siteColumns.incomeRate[id];
+        }
+
+        public int getUnitCount() {
+            return unitCount;
+        }
+
+        public int getUnitX(int i) {
+            return unitColumns.x[i];
+        }
+
+        public int getUnitY(int i) {
+            return unitColumns.y[i];
+        }
+
+        public Owner getUnitOwner(int i) {
+            return OWNERS[unitColumns.owner[i]];
+        }
+
+        public UnitType getUnitType(int i) {
+            return UNIT_TYPES[unitColumns.type[i]];
+        }
+
+        public int getUnitHP(int i) {
+            return unitColumns.hp[i];
+        }
+
+        public Unit getMyQueen() {
+            return myQueen;
+        }
+
+        public Unit getEnemyQueen() {
+            return enemyQueen;
+        }
+
+        public int getMyCornerX() {
+            return myCornerX;
+        }
+
+        public int getMycornerY() {
+            return mycornerY;
+        }
+
+        public int getOverallIncome() {
+            return overallIncome;
+        }
+
+        public int getEnemyGold() {
+            return enemyGold;
+        }
+
+        public int getEnemyOverallIncome() {
+            return enemyOverallIncome;
+        }
+
+        /**
+         * Only enemy mines and barracks change the estimate, the income rate of other sites is reset when they stop
+         * being an enemy mine. They are still visited in input order because the estimate is clamped after each site.
+         */
+        private void updateEnemyGold(boolean enemyQueenStayed) {
+            this.enemyOverallIncome = 0;
+            for (int i = 0; i < enemyEconomySiteCount; i++) {
+                int id = enemyEconomySites[i];
+                StructureType structureType = getSiteStructureType(id);
+                Owner owner = getSiteOwner(id);
+                if (structureType == StructureType.MINE && owner == Owner.ENEMY) {
+                    if (enemyIncomeRate[id] == 0) {
+                        enemyIncomeRate[id] = 1;
+                    } else {
+                        if (enemyQueenStayed && Utils.inContact(enemyQueen.getX(),
+                                enemyQueen.getY(),
+                                QUEEN_RADIUS,
+                                siteX[id],
+                                siteY[id],
+                                siteRadius[id])) {
+                            enemyIncomeRate[id]++;
+                        }
+                    }
+                    enemyGold += enemyIncomeRate[id];
+                    this.enemyOverallIncome += siteColumns.incomeRate[id];
+                }
+                if (structureType == StructureType.BARRACKS && owner == Owner.ENEMY) {
+                    switch (getSiteBarracksType(id)) {
+                        case KNIGHT:
+                            if (KNIGHT_TRAIN_TURNS == siteColumns.untilTrain[id]) {
+                                enemyGold -= KNIGHT_COST;
+                            }
+                            break;
+                        case ARCHER:
+                            if (ARCHER_TRAIN_TURNS == siteColumns.untilTrain[id]) {
+                                enemyGold -= ARCHER_COST;
+                            }
+                            break;
+                        case GIANT:
+                            if (GIANT_TRAIN_TURNS == siteColumns.untilTrain[id]) {
+                                enemyGold -= GIANT_COST;
+                            }
+                            break;
+                        default:
+                            throw new RuntimeException("Unknown barracks type");
+                    }
+                }
+                enemyGold = Math.max(enemyGold, 0);
+            }
+        }
+
+        /**
+         * Reads the turn into the columns. The sites and units passed in are only read here, the state hands out its
+         * own views afterwards, and they may be the state's own views of the previous turn in the same order.
+         */
+        public void initTurn(int gold, int touchedSite, List<BuildingSite> turnSites, List<Unit> turnUnits) {
+            goldLeft = gold;
+            turnChanges.clear();
+            ownColumns();
+            fillColumns(turnSites, turnUnits);
+            buildingDecisionCache.invalidate();
+            // Views show the new turn already, so the previous positions are kept as ints
+            boolean firstTurn = this.myQueen == null;
+            this.myQueen = null;
+            this.enemyQueen = null;
+            for (int i = unitCount - 1; i >= 0; i--) {
+                if (unitColumns.type[i] == UnitType.QUEEN.ordinal()) {
+                    if (unitColumns.owner[i] == Owner.FRIENDLY.ordinal()) {
+                        myQueen = units.get(i);
+                    } else if (unitColumns.owner[i] == Owner.ENEMY.ordinal()) {
+                        enemyQueen = units.get(i);
+                    }
+                }
+            }
+            if (myQueen == null || enemyQueen == null) {
+                throw new RuntimeException("Queen is missing");
+            }
+            turnChanges.myQueenMoved = firstTurn || lastMyQueenX != myQueen.getX() || lastMyQueenY != myQueen.getY();
+            turnChanges.enemyQueenMoved = firstTurn || lastEnemyQueenX != enemyQueen.getX()
+                    || lastEnemyQueenY != enemyQueen.getY();
+            lastMyQueenX = myQueen.getX();
+            lastMyQueenY = myQueen.getY();
+            lastEnemyQueenX = enemyQueen.getX();
+            lastEnemyQueenY = enemyQueen.getY();
+            spatialIndex.rebuild(buildingSites, units);
+            if (touchedSite == -1) {
+                // Sites never move, so the site in contact only changes with the queen's position
+                if (contactQueenX != myQueen.getX() || contactQueenY != myQueen.getY()) {
+                    contactQueenX = myQueen.getX();
+                    contactQueenY = myQueen.getY();
+                    contactSiteId = spatialIndex.lastSiteIdInContact(myQueen.getX(),
+                            myQueen.getY(),
+                            QUEEN_RADIUS,
+                            maxSiteRadius);
+                }
+                touchedSiteOpt = contactSiteId == -1 ? Optional.empty() : siteOpts.get(contactSiteId);
+            } else {
+                touchedSiteOpt = siteOpts.get(touchedSite);
+            }
+            if (myCornerX == -1) {
+                if (myQueen.getX() < GRID_WIDTH / 2) {
+                    myCornerX = 0;
+                    mycornerY = 0;
+                } else {
+                    myCornerX = GRID_WIDTH;
+                    mycornerY = GRID_HEIGHT;
+                }
+            }
+            updateEnemyGold(!turnChanges.enemyQueenMoved);
+            trajectories.build(this);
+        }
+
+        /**
+         * Reads the turn into the columns, diffing the sites against the previous turn on the way. Only changed sites
+         * touch the structure counts, the income, the tower coverage and the enemy economy sites.
+         */
+        private void fillColumns(List<BuildingSite> turnSites, List<Unit> turnUnits) {
+            if (turnSites.size() != siteOrder.length) {
+                throw new RuntimeException("Unexpected number of sites");
+            }
+            SiteColumns columns = siteColumns;
+            boolean orderChanged = buildingSites.isEmpty();
+            for (int i = 0; i < siteOrder.length; i++) {
+                BuildingSite site = turnSites.get(i);
+                int id = site.getId();
+                if (siteOrder[i] != id) {
+                    siteOrder[i] = id;
+                    orderChanged = true;
+                    turnChanges.structuresChanged = true;
+                }
+                int owner = site.getOwner().ordinal();
+                int structureType = site.getStructureType().ordinal();
+                int barracksType = site.getBarracksType().ordinal();
+                int towerHP = site.getTowerHP();
+                int towerRange = site.getTowerRange();
+                int untilTrain = site.getUntilTrain();
+                int gold = site.getGoldOrElse(-1);
+                int maxMineSize = site.getMaxMineSizeOrElse(-1);
+                int incomeRate = site.getIncomeRate();
+                boolean structureChanged = owner != columns.owner[id] || structureType != columns.structureType[id]
+                        || barracksType != columns.barracksType[id];
+                if (!structureChanged && towerHP == columns.towerHP[id] && towerRange == columns.towerRange[id]
+                        && untilTrain == columns.untilTrain[id] && gold == columns.gold[id]
+                        && maxMineSize == columns.maxMineSize[id] && incomeRate == columns.incomeRate[id]) {
+                    continue;
+                }
+                turnChanges.siteChanged(id);
+                boolean wasMyTower = columns.owner[id] == Owner.FRIENDLY.ordinal()
+                        && columns.structureType[id] == StructureType.TOWER.ordinal();
+                boolean isMyTower =
+                        owner == Owner.FRIENDLY.ordinal() && structureType == StructureType.TOWER.ordinal();
+                if ((wasMyTower || isMyTower) && (structureChanged || towerRange != columns.towerRange[id])) {
+                    turnChanges.myTowersChanged = true;
+                    if (wasMyTower) {
+                        cover(id, columns.towerRange[id], -1);
+                    }
+                    if (isMyTower) {
+                        cover(id, towerRange, 1);
+                    }
+                }
+                if (columns.structureType[id] == StructureType.TOWER.ordinal() && structureChanged) {
+                    getTowerRaster(OWNERS[columns.owner[id]]).update(id, siteX[id], siteY[id], 0);
+                }
+                if (structureType == StructureType.TOWER.ordinal()) {
+                    getTowerRaster(OWNERS[owner]).update(id, siteX[id], siteY[id], towerRange);
+                }
+                if (structureChanged) {
+                    turnChanges.structuresChanged = true;
+                    structureCounts[structureKey(columns.owner[id], columns.structureType[id],
+                            columns.barracksType[id])]--;
+                    structureCounts[structureKey(owner, structureType, barracksType)]++;
+                    // Whatever it was, it isn't the same enemy mine anymore
+                    enemyIncomeRate[id] = 0;
+                }
+                overallIncome += incomeRate - columns.incomeRate[id];
+                columns.owner[id] = owner;
+                columns.structureType[id] = structureType;
+                columns.barracksType[id] = barracksType;
+                columns.towerHP[id] = towerHP;
+                columns.towerRange[id] = towerRange;
+                columns.untilTrain[id] = untilTrain;
+                columns.gold[id] = gold;
+                columns.maxMineSize[id] = maxMineSize;
+                columns.incomeRate[id] = incomeRate;
+            }
+            if (orderChanged) {
+                listSites();
+            }
+            if (turnChanges.structuresChanged) {
+                turnChanges.structuresVersion++;
+                enemyEconomySiteCount = 0;
+                for (int id : siteOrder) {
+                    int structureType = columns.structureType[id];
+                    if (columns.owner[id] == Owner.ENEMY.ordinal() && (structureType == StructureType.MINE.ordinal()
+                            || structureType == StructureType.BARRACKS.ordinal())) {
+                        enemyEconomySites[enemyEconomySiteCount++] = id;
+                    }
+                }
+            }
+            unitCount = turnUnits.size();
+            unitColumns.ensureCapacity(unitCount);
+            for (int i = 0; i < unitCount; i++) {
+                Unit unit = turnUnits.get(i);
+                int x = unit.getX();
+                int y = unit.getY();
+                int owner = unit.getOwner().ordinal();
+                int type = unit.getUnitType().ordinal();
+                int hp = unit.getHp();
+                unitColumns.x[i] = x;
+                unitColumns.y[i] = y;
+                unitColumns.owner[i] = owner;
+                unitColumns.type[i] = type;
+                unitColumns.hp[i] = hp;
+            }
+            listUnits();
+        }
+
+        private void cover(int towerId, int towerRange, int delta) {
+            for (BuildingSiteStatic site : buildingSiteStatics) {
+                if (siteDist[towerId][site.getId()] <= towerRange) {
+                    myTowerCoverage[site.getId()] += delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * What changed in the turn input since the previous turn, so rules can skip work that depends on unchanged parts
+     * only. The first turn is compared against a board of vacant sites.
+     */
+    static class TurnChanges {
+
+        private final boolean[] siteChanged;
+        private final int[] changedSiteIds;
+        private int changedSiteCount;
+        private boolean structuresChanged;
+        private boolean myTowersChanged;
+        private boolean myQueenMoved;
+        private boolean enemyQueenMoved;
+        private long structuresVersion;
+
+        public TurnChanges(int maxSiteId) {
+            siteChanged = new boolean[maxSiteId + 1];
+            changedSiteIds = new int[maxSiteId + 1];
+        }
+
+        // offline:begin
+        TurnChanges copy() {
+            TurnChanges copy = new TurnChanges(siteChanged.length - 1);
+            System.arraycopy(siteChanged, 0, copy.siteChanged, 0, siteChanged.length);
+            System.arraycopy(changedSiteIds, 0, copy.changedSiteIds, 0, changedSiteCount);
+            copy.changedSiteCount = changedSiteCount;
+            copy.structuresChanged = structuresChanged;
+            copy.myTowersChanged = myTowersChanged;
+            copy.myQueenMoved = myQueenMoved;
+            copy.enemyQueenMoved = enemyQueenMoved;
+            copy.structuresVersion = structuresVersion;
+            return copy;
+        }
+        // offline:end
+
+        void clear() {
+            for (int i = 0; i < changedSiteCount; i++) {
+                siteChanged[changedSiteIds[i]] = false;
+            }
+            changedSiteCount = 0;
+            structuresChanged = false;
+            myTowersChanged = false;
+            myQueenMoved = false;
+            enemyQueenMoved = false;
+        }
+
+        void siteChanged(int id) {
+            siteChanged[id] = true;
+            changedSiteIds[changedSiteCount++] = id;
+        }
+
+        public int getChangedSiteCount() {
+            return changedSiteCount;
+        }
+
+        public int getChangedSiteId(int i) {
+            return changedSiteIds[i];
+        }
+
+        public boolean isSiteChanged(int id) {
+            return siteChanged[id];
+        }
+
+        /**
+         * Whether any site changed owner, structure or barracks type.
+         */
+        public boolean isStructuresChanged() {
+            return structuresChanged;
+        }
+
+        /**
+         * Whether a friendly tower appeared, disappeared or changed range.
+         */
+        public boolean isMyTowersChanged() {
+            return myTowersChanged;
+        }
+
+        public boolean isMyQueenMoved() {
+            return myQueenMoved;
+        }
+
+        public boolean isEnemyQueenMoved() {
+            return enemyQueenMoved;
+        }
+
+        /**
+         * Bumped on every turn where {@link #isStructuresChanged()}, for results kept across several turns.
+         */
+        public long getStructuresVersion() {
+            return structuresVersion;
+        }
+    }
+
+    /**
+     * Where each unit is expected to be over the next {@link #HORIZON} turns, rebuilt once a turn by
+     * {@link GameState#initTurn} and indexed like its unit columns. Knights walk straight at the opposing queen as she
+     * stands now and stop on contact, the way the referee moves them. Other units are kept where they are.
+     */
+    static class TrajectoryTable {
+
+        static final int HORIZON = 5;
+
+        private int unitCount;
+        private double[] x = new double[0], y = new double[0];
+
+        void build(GameState gameState) {
+            unitCount = gameState.getUnitCount();
+            if (x.length < unitCount * (HORIZON + 1)) {
+                x = new double[unitCount * (HORIZON + 1) * 2];
+                y = new double[x.length];
+            }
+            for (int i = 0; i < unitCount; i++) {
+                int unitX = gameState.getUnitX(i);
+                int unitY = gameState.getUnitY(i);
+                double dirX = 0;
+                double dirY = 0;
+                double reach = 0;
+                if (gameState.getUnitType(i) == UnitType.KNIGHT) {
+                    Unit target = gameState.getUnitOwner(i) == Owner.FRIENDLY ?
+                            gameState.getEnemyQueen() : gameState.getMyQueen();
+                    double dist = Utils.dist(unitX, unitY, target.getX(), target.getY());
+                    if (dist > 0) {
+                        dirX = (target.getX() - unitX) / dist;
+                        dirY = (target.getY() - unitY) / dist;
+                    }
+                    reach = Math.max(0, dist - KNIGHT_RADIUS - QUEEN_RADIUS);
+                }
+                int row = i * (HORIZON + 1);
+                for (int step = 0; step <= HORIZON; step++) {
+                    double travel = Math.min(step * KNIGHT_SPEED, reach);
+                    x[row + step] = unitX + dirX * travel;
+                    y[row + step] = unitY + dirY * travel;
+                }
+            }
+        }
+
+        // offline:begin
+        TrajectoryTable copy() {
+            TrajectoryTable copy = new TrajectoryTable();
+            copy.unitCount = unitCount;
+            copy.x = x.clone();
+            copy.y = y.clone();
+            return copy;
+        }
+        // offline:end
+
+        /**
+         * Expected x of the unit after the given number of turns, 0 being now.
+         */
+        public double getX(int unit, int step) {
+            return x[unit * (HORIZON + 1) + step];
+        }
+
+        /**
+         * Expected y of the unit after the given number of turns, 0 being now.
+         */
+        public double getY(int unit, int step) {
+            return y[unit * (HORIZON + 1) + step];
+        }
+    }
+
+    /**
+     * Uniform grid over the arena, rebuilt every turn. Units and sites are bucketed by the cell of their center;
+     * inside a cell they keep the order of the turn input, so queries break ties exactly as a linear scan would.
+     */
+    static class SpatialIndex {
+
+        static final int CELL_SIZE = 100;
+        static final int COLS = GRID_WIDTH / CELL_SIZE + 1;
+        static final int ROWS = GRID_HEIGHT / CELL_SIZE + 1;
+
+        private List<Unit> units = Collections.emptyList();
+        private List<BuildingSite> sites = Collections.emptyList();
+        private final int[] unitCellStart = new int[COLS * ROWS + 1];
+        private final int[] siteCellStart = new int[COLS * ROWS + 1];
+        private int[] unitsByCell = new int[0];
+        private int[] sitesByCell = new int[0];
+        private int[] cellOf = new int[0];
+
+        public void rebuild(List<BuildingSite> sites, List<Unit> units) {
+            this.sites = sites;
+            this.units = units;
+            if (unitsByCell.length < units.size()) {
+                unitsByCell = new int[units.size() * 2];
+            }
+            if (sitesByCell.length < sites.size()) {
+                sitesByCell = new int[sites.size()];
+            }
+            if (cellOf.length < Math.max(units.size(), sites.size())) {
+                cellOf = new int[Math.max(units.size(), sites.size()) * 2];
+            }
+            for (int i = 0; i < units.size(); i++) {
+                cellOf[i] = cell(units.get(i).getX(), units.get(i).getY());
+            }
+            bucket(units.size(), unitCellStart, unitsByCell);
+            for (int i = 0; i < sites.size(); i++) {
+                cellOf[i] = cell(sites.get(i).getX(), sites.get(i).getY());
+            }
+            bucket(sites.size(), siteCellStart, sitesByCell);
+        }
+
+        /**
+         * Whether there is a unit of the given owner and type strictly closer than {@code dist} to the point.
+         */
+        public boolean hasUnitCloserThan(int x, int y, int dist, Owner owner, UnitType unitType) {
+            int fromCol = col(x - dist);
+            int toCol = col(x + dist);
+            int toRow = row(y + dist);
+            for (int r = row(y - dist); r <= toRow; r++) {
+                for (int c = fromCol; c <= toCol; c++) {
+                    int cell = r * COLS + c;
+                    for (int i = unitCellStart[cell]; i < unitCellStart[cell + 1]; i++) {
+                        Unit unit = units.get(unitsByCell[i]);
+                        if (unit.getOwner() == owner && unit.getUnitType() == unitType
+                                && Utils.closerThan(x, y, unit.getX(), unit.getY(), dist)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds to {@code out} every unit of the given owner and type strictly closer than {@code dist} to the point.
+         */
+        public List<Unit> unitsCloserThan(int x, int y, double dist, Owner owner, UnitType unitType, List<Unit> out) {
+            int fromCol = col(x - dist);
+            int toCol = col(x + dist);
+            int toRow = row(y + dist);
+            for (int r = row(y - dist); r <= toRow; r++) {
+                for (int c = fromCol; c <= toCol; c++) {
+                    int cell = r * COLS + c;
+                    for (int i = unitCellStart[cell]; i < unitCellStart[cell + 1]; i++) {
+                        Unit unit = units.get(unitsByCell[i]);
+                        if (unit.getOwner() == owner && unit.getUnitType() == unitType
+                                && Utils.dist(x, y, unit.getX(), unit.getY()) < dist) {
+                            out.add(unit);
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+
+        /**
+         * Closest unit of the given owner and type, the earliest one in the turn input on ties.
+         */
+        public Optional<Unit> nearestUnit(int x, int y, Owner owner, UnitType unitType) {
+            int centerCol = col(x);
+            int centerRow = row(y);
+            double bestDist = Double.MAX_VALUE;
+            int best = -1;
+            for (int ring = 0; ring < Math.max(COLS, ROWS); ring++) {
+                if ((ring - 1) * (double) CELL_SIZE > bestDist) {
+                    break;
+                }
+                for (int r = Math.max(centerRow - ring, 0); r <= Math.min(centerRow + ring, ROWS - 1); r++) {
+                    int step = (r == centerRow - ring || r == centerRow + ring) ? 1 : Math.max(ring * 2, 1);
+                    for (int c = centerCol - ring; c <= centerCol + ring; c += step) {
+                        if (c < 0 || c >= COLS) {
+                            continue;
+                        }
+                        int cell = r * COLS + c;
+                        for (int i = unitCellStart[cell]; i < unitCellStart[cell + 1]; i++) {
+                            int index = unitsByCell[i];
+                            Unit unit = units.get(index);
+                            if (unit.getOwner() != owner || unit.getUnitType() != unitType) {
+                                continue;
+                            }
+                            double dist = Utils.dist(x, y, unit.getX(), unit.getY());
+                            if (dist < bestDist || (dist == bestDist && index < best)) {
+                                bestDist = dist;
+                                best = index;
+                            }
+                        }
+                    }
+                }
+            }
+            return best == -1 ? Optional.empty() : Optional.of(units.get(best));
+        }
+
+        /**
+         * Closest site with the given structure, the earliest one in the turn input on ties.
+         */
+        public Optional<BuildingSite> nearestSite(int x,
+                                                  int y,
+                                                  StructureType structureType,
+                                                  BarracksType barracksType,
+                                                  Owner owner) {
+            int centerCol = col(x);
+            int centerRow = row(y);
+            double bestDist = Double.MAX_VALUE;
+            int best = -1;
+            for (int ring = 0; ring < Math.max(COLS, ROWS); ring++) {
+                if ((ring - 1) * (double) CELL_SIZE > bestDist) {
+                    break;
+                }
+                for (int r = Math.max(centerRow - ring, 0); r <= Math.min(centerRow + ring, ROWS - 1); r++) {
+                    int step = (r == centerRow - ring || r == centerRow + ring) ? 1 : Math.max(ring * 2, 1);
+                    for (int c = centerCol - ring; c <= centerCol + ring; c += step) {
+                        if (c < 0 || c >= COLS) {
+                            continue;
+                        }
+                        int cell = r * COLS + c;
+                        for (int i = siteCellStart[cell]; i < siteCellStart[cell + 1]; i++) {
+                            int index = sitesByCell[i];
+                            BuildingSite site = sites.get(index);
+                            if (site.getStructureType() != structureType || site.getBarracksType() != barracksType
+                                    || site.getOwner() != owner) {
+                                continue;
+                            }
+                            double dist = Utils.dist(x, y, site.getX(), site.getY());
+                            if (dist < bestDist || (dist == bestDist && index < best)) {
+                                bestDist = dist;
+                                best = index;
+                            }
+                        }
+                    }
+                }
+            }
+            return best == -1 ? Optional.empty() : Optional.of(sites.get(best));
+        }
+
+        /**
+         * Id of the site touched by a circle of the given radius, the latest one in the turn input if several are
+         * touched, or -1.
+         */
+        public int lastSiteIdInContact(int x, int y, int radius, int maxSiteRadius) {
+            int reach = radius + maxSiteRadius + CONTACT_RANGE;
+            int fromCol = col(x - reach);
+            int toCol = col(x + reach);
+            int toRow = row(y + reach);
+            int best = -1;
+            for (int r = row(y - reach); r <= toRow; r++) {
+                for (int c = fromCol; c <= toCol; c++) {
+                    int cell = r * COLS + c;
+                    for (int i = siteCellStart[cell]; i < siteCellStart[cell + 1]; i++) {
+                        int index = sitesByCell[i];
+                        BuildingSite site = sites.get(index);
+                        if (index > best && Utils.inContact(x, y, radius, site.getX(), site.getY(), site.getRadius())) {
+                            best = index;
+                        }
+                    }
+                }
+            }
+            return best == -1 ? -1 : sites.get(best).getId();
+        }
+
+        private void bucket(int n, int[] cellStart, int[] byCell) {
+            Arrays.fill(cellStart, 0);
+            for (int i = 0; i < n; i++) {
+                cellStart[cellOf[i] + 1]++;
+            }
+            for (int cell = 0; cell < COLS * ROWS; cell++) {
+                cellStart[cell + 1] += cellStart[cell];
+            }
+            for (int i = 0; i < n; i++) {
+                byCell[cellStart[cellOf[i]]++] = i;
+            }
+            // Filling shifted every start to the next cell's start, shift back
+            for (int cell = COLS * ROWS; cell > 0; cell--) {
+                cellStart[cell] = cellStart[cell - 1];
+            }
+            cellStart[0] = 0;
+        }
+
+        private static int cell(int x, int y) {
+            return row(y) * COLS + col(x);
+        }
+
+        private static int col(double x) {
+            return Math.min(Math.max((int) Math.floor(x / CELL_SIZE), 0), COLS - 1);
+        }
+
+        private static int row(double y) {
+            return Math.min(Math.max((int) Math.floor(y / CELL_SIZE), 0), ROWS - 1);
+        }
+    }
+
+    /**
+     * Coarse raster of the tower ranges of one owner. Every cell keeps a bitmask of the towers whose range, grown by
+     * half a cell, reaches into it, so the mask of a cell is a superset of the towers covering any point of the cell.
+     * Queries only select candidate towers, callers still run the exact test on them.
+     */
+    static class CoverageRaster {
+
+        static final int CELL_SIZE = 10;
+        static final int COLS = GRID_WIDTH / CELL_SIZE + 1;
+        static final int ROWS = GRID_HEIGHT / CELL_SIZE + 1;
+        // Ranges are drawn rounded up to this step, so a decaying tower is only redrawn every few turns
+        static final int RADIUS_STEP = 4 * CELL_SIZE;
+
+        private final int words;
+        private long[] cells;
+        private int[] drawnX;
+        private int[] drawnY;
+        private int[] drawnRadius;
+        private final long[] candidates;
+        // Set while the cells are shared with a copy, whichever side draws first takes its own
+        private boolean shared;
+
+        public CoverageRaster(int maxSiteId) {
+            words = (maxSiteId >> 6) + 1;
+            cells = new long[COLS * ROWS * words];
+            drawnX = new int[maxSiteId + 1];
+            drawnY = new int[maxSiteId + 1];
+            drawnRadius = new int[maxSiteId + 1];
+            candidates = new long[words];
+        }
+
+        // offline:begin
+        private CoverageRaster(CoverageRaster other) {
+            words = other.words;
+            cells = other.cells;
+            drawnX = other.drawnX;
+            drawnY = other.drawnY;
+            drawnRadius = other.drawnRadius;
+            candidates = new long[words];
+            shared = true;
+            other.shared = true;
+        }
+
+        /**
+         * Raster with the same towers, the cells are only copied when either raster changes.
+         */
+        public CoverageRaster copy() {
+            return new CoverageRaster(this);
+        }
+        // offline:end
+
+        /**
+         * Sets the range of the tower on site {@code towerId}, a range of 0 removes the tower.
+         */
+        public void update(int towerId, int x, int y, int towerRange) {
+            int radius = towerRange <= 0 ? 0 :
+                    (towerRange + CELL_SIZE / 2 + 1 + RADIUS_STEP - 1) / RADIUS_STEP * RADIUS_STEP;
+            if (radius == drawnRadius[towerId] && x == drawnX[towerId] && y == drawnY[towerId]) {
+                return;
+            }
+            if (shared) {
+                cells = cells.clone();
+                drawnX = drawnX.clone();
+                drawnY = drawnY.clone();
+                drawnRadius = drawnRadius.clone();
+                shared = false;
+            }
+            if (drawnRadius[towerId] > 0) {
+                draw(towerId, drawnX[towerId], drawnY[towerId], drawnRadius[towerId], false);
+            }
+            if (radius > 0) {
+                draw(towerId, x, y, radius, true);
+            }
+            drawnX[towerId] = x;
+            drawnY[towerId] = y;
+            drawnRadius[towerId] = radius;
+        }
+
+        /**
+         * Selects the towers that may cover the point, see {@link #nextCandidate(int)}.
+         */
+        public void selectAt(int x, int y) {
+            Arrays.fill(candidates, 0);
+            or(cell(x, y));
+        }
+
+        /**
+         * Selects the towers that may cover any point of the segment. The segment is sampled at most a cell apart,
+         * every point of it is then within half a cell of a sampled cell.
+         */
+        public void selectOnSegment(int x1, int y1, int x2, int y2) {
+            Arrays.fill(candidates, 0);
+            int steps = Math.max((int) Math.ceil(Utils.dist(x1, y1, x2, y2) / CELL_SIZE), 1);
+            int prevCell = -1;
+            for (int i = 0; i <= steps; i++) {
+                int cell = cell(x1 + (x2 - x1) * (double) i / steps, y1 + (y2 - y1) * (double) i / steps);
+                if (cell != prevCell) {
+                    or(cell);
+                    prevCell = cell;
+                }
+            }
+        }
+
+        /**
+         * Smallest selected tower id not less than {@code fromId}, or -1.
+         */
+        public int nextCandidate(int fromId) {
+            int word = fromId >> 6;
+            if (word >= words) {
+                return -1;
+            }
+            long bits = candidates[word] & (-1L << fromId);
+            while (bits == 0) {
+                if (++word == words) {
+                    return -1;
+                }
+                bits = candidates[word];
+            }
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        private void or(int cell) {
+            for (int w = 0; w < words; w++) {
+                candidates[w] |= cells[cell * words + w];
+            }
+        }
+
+        private void draw(int towerId, int x, int y, int radius, boolean set) {
+            int word = towerId >> 6;
+            long bit = 1L << towerId;
+            int toRow = row(y + radius);
+            for (int r = row(y - radius); r <= toRow; r++) {
+                // Closest point of the row to the center, the cells of the row within reach form one span
+                int dy = Math.max(Math.max(r * CELL_SIZE - y, y - (r + 1) * CELL_SIZE), 0);
+                if (dy > radius) {
+                    continue;
+                }
+                int halfWidth = (int) Math.sqrt((double) radius * radius - dy * dy) + 1;
+                int toCol = col(x + halfWidth);
+                for (int c = col(x - halfWidth); c <= toCol; c++) {
+                    int i = (r * COLS + c) * words + word;
+                    cells[i] = set ? cells[i] | bit : cells[i] & ~bit;
+                }
+            }
+        }
+
+        private static int cell(double x, double y) {
+            return row(y) * COLS + col(x);
+        }
+
+        private static int col(double x) {
+            return Math.min(Math.max((int) Math.floor(x / CELL_SIZE), 0), COLS - 1);
+        }
+
+        private static int row(double y) {
+            return Math.min(Math.max((int) Math.floor(y / CELL_SIZE), 0), ROWS - 1);
+        }
+    }
+
+    /**
+     * Queen routes around the building sites over a visibility graph. Every site is inflated by the queen's radius
+     * and wrapped in a polygon of {@link #NODES_PER_SITE} corners lying just outside of it, corners that see each
+     * other are connected. Sites never move, so the graph is built once per game. Routes to contact with a site are
+     * found with A* and kept across turns for as long as the queen stays on them.
+     */
+    static class PathFinder {
+
+        static final int NODES_PER_SITE = 12;
+        // How far the queen may be off a kept route, rounding her position every turn moves her about a pixel
+        static final double ROUTE_TOLERANCE = 2;
+
+        private final int[] siteX;
+        private final int[] siteY;
+        private final int[] siteReach;
+        private final int[] siteIndexById;
+        private final int nodeCount;
+        private final int[] nodeX;
+        private final int[] nodeY;
+        private final int[][] edges;
+        private final double[][] edgeDist;
+        private final Route[] routes;
+        // Whether the center of a site is in plain sight from a node, by site index, filled on the first query
+        private final boolean[][] seesSite;
+        // A* state, the start is node nodeCount and the goal node nodeCount + 1
+        private final double[] g;
+        private final double[] h;
+        private final int[] parent;
+        private final boolean[] closed;
+
+        public static PathFinder create(List<BuildingSiteStatic> buildingSiteStatics) {
+            return new PathFinder(buildingSiteStatics);
+        }
+
+        public PathFinder(List<BuildingSiteStatic> buildingSiteStatics) {
+            int sites = buildingSiteStatics.size();
+            siteX = new int[sites];
+            siteY = new int[sites];
+            siteReach = new int[sites];
+            int maxId = -1;
+            for (int i = 0; i < sites; i++) {
+                BuildingSiteStatic site = buildingSiteStatics.get(i);
+                siteX[i] = site.getX();
+                siteY[i] = site.getY();
+                siteReach[i] = site.getRadius() + QUEEN_RADIUS;
+                maxId = Math.max(maxId, site.getId());
+            }
+            siteIndexById = new int[maxId + 1];
+            for (int i = 0; i < sites; i++) {
+                siteIndexById[buildingSiteStatics.get(i).getId()] = i;
+            }
+            routes = new Route[maxId + 1];
+            seesSite = new boolean[sites][];
+
+            int[] xs = new int[sites * NODES_PER_SITE];
+            int[] ys = new int[sites * NODES_PER_SITE];
+            int count = 0;
+            for (int i = 0; i < sites; i++) {
+                // Corners of a polygon around the inflated site, pushed out by a pixel against rounding
+                double cornerDist = siteReach[i] / Math.cos(Math.PI / NODES_PER_SITE) + 1;
+                for (int k = 0; k < NODES_PER_SITE; k++) {
+                    double angle = 2 * Math.PI * k / NODES_PER_SITE;
+                    int x = (int) Math.round(siteX[i] + cornerDist * Math.cos(angle));
+                    int y = (int) Math.round(siteY[i] + cornerDist * Math.sin(angle));
+                    if (x < 0 || x > GRID_WIDTH || y < 0 || y > GRID_HEIGHT || insideSite(x, y)) {
+                        continue;
+                    }
+                    xs[count] = x;
+                    ys[count] = y;
+                    count++;
+                }
+            }
+            nodeCount = count;
+            nodeX = Arrays.copyOf(xs, count);
+            nodeY = Arrays.copyOf(ys, count);
+            int[][] adjacent = new int[count][count];
+            int[] degree = new int[count];
+            for (int a = 0; a < count; a++) {
+                for (int b = a + 1; b < count; b++) {
+                    if (isVisible(nodeX[a], nodeY[a], nodeX[b], nodeY[b], -1)) {
+                        adjacent[a][degree[a]++] = b;
+                        adjacent[b][degree[b]++] = a;
+                    }
+                }
+            }
+            edges = new int[count][];
+            edgeDist = new double[count][];
+            for (int a = 0; a < count; a++) {
+                edges[a] = Arrays.copyOf(adjacent[a], degree[a]);
+                edgeDist[a] = new double[degree[a]];
+                for (int e = 0; e < degree[a]; e++) {
+                    edgeDist[a][e] = Utils.dist(nodeX[a], nodeY[a], nodeX[edges[a][e]], nodeY[edges[a][e]]);
+                }
+            }
+            g = new double[count + 2];
+            h = new double[count + 2];
+            parent = new int[count + 2];
+            closed = new boolean[count + 2];
+        }
+
+        // offline:begin
+        private PathFinder(PathFinder other) {
+            siteX = other.siteX;
+            siteY = other.siteY;
+            siteReach = other.siteReach;
+            siteIndexById = other.siteIndexById;
+            nodeCount = other.nodeCount;
+            nodeX = other.nodeX;
+            nodeY = other.nodeY;
+            edges = other.edges;
+            edgeDist = other.edgeDist;
+            seesSite = other.seesSite;
+            routes = new Route[other.routes.length];
+            g = new double[nodeCount + 2];
+            h = new double[nodeCount + 2];
+            parent = new int[nodeCount + 2];
+            closed = new boolean[nodeCount + 2];
+        }
+
+        /**
+         * Finder sharing the graph, which never changes, but keeping its own routes. Rows of the site visibility
+         * table are the same whoever fills them, so it is shared too.
+         */
+        public PathFinder copy() {
+            return new PathFinder(this);
+        }
+        // offline:end
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * Shortest route from the point to contact with the site, empty if the site can't be reached. A route is
+         * only kept for later turns when {@code keep} is set, that is when it starts at the queen.
+         */
+        public Optional<Route> route(int fromX, int fromY, int targetSiteId, boolean keep) {
+            Route route = keep ? routes[targetSiteId] : null;
+            if (route == null || !route.follow(fromX, fromY)) {
+                route = search(fromX, fromY, siteIndexById[targetSiteId]);
+            }
+            if (keep) {
+                routes[targetSiteId] = route;
+            }
+            if (route == null) {
+                return Optional.empty();
+            }
+            route.aim(fromX, fromY);
+            return Optional.of(route);
+        }
+
+        private Route search(int fromX, int fromY, int target) {
+            int start = nodeCount;
+            int goal = nodeCount + 1;
+            double contactReach = siteReach[target] + CONTACT_RANGE;
+            if (seesSite[target] == null) {
+                seesSite[target] = new boolean[nodeCount];
+                for (int v = 0; v < nodeCount; v++) {
+                    seesSite[target][v] = isVisible(nodeX[v], nodeY[v], siteX[target], siteY[target], target);
+                }
+            }
+            Arrays.fill(g, Double.MAX_VALUE);
+            Arrays.fill(closed, false);
+            for (int i = 0; i < goal; i++) {
+                h[i] = Math.max(Utils.dist(x(i, fromX), y(i, fromY), siteX[target], siteY[target]) - contactReach, 0);
+            }
+            h[goal] = 0;
+            g[start] = 0;
+            while (true) {
+                int u = -1;
+                double bestF = Double.MAX_VALUE;
+                for (int i = 0; i <= goal; i++) {
+                    if (closed[i] || g[i] == Double.MAX_VALUE) {
+                        continue;
+                    }
+                    double f = g[i] + h[i];
+                    if (f < bestF) {
+                        bestF = f;
+                        u = i;
+                    }
+                }
+                if (u == -1) {
+                    return null;
+                }
+                if (u == goal) {
+                    break;
+                }
+                closed[u] = true;
+                int ux = x(u, fromX);
+                int uy = y(u, fromY);
+                if (u == start ? isVisible(ux, uy, siteX[target], siteY[target], target) : seesSite[target][u]) {
+                    relax(u, goal, Math.max(Utils.dist(ux, uy, siteX[target], siteY[target]) - contactReach, 0));
+                }
+                if (u == start) {
+                    for (int v = 0; v < nodeCount; v++) {
+                        if (isVisible(ux, uy, nodeX[v], nodeY[v], -1)) {
+                            relax(u, v, Utils.dist(ux, uy, nodeX[v], nodeY[v]));
+                        }
+                    }
+                } else {
+                    for (int e = 0; e < edges[u].length; e++) {
+                        relax(u, edges[u][e], edgeDist[u][e]);
+                    }
+                }
+            }
+            int length = 0;
+            for (int v = parent[goal]; v != start; v = parent[v]) {
+                length++;
+            }
+            if (length == 0) {
+                return null;
+            }
+            int[] xs = new int[length];
+            int[] ys = new int[length];
+            for (int v = parent[goal], i = length - 1; v != start; v = parent[v], i--) {
+                xs[i] = nodeX[v];
+                ys[i] = nodeY[v];
+            }
+            return new Route(xs, ys, siteX[target], siteY[target], fromX, fromY);
+        }
+
+        private void relax(int u, int v, double dist) {
+            if (!closed[v] && g[u] + dist < g[v]) {
+                g[v] = g[u] + dist;
+                parent[v] = u;
+            }
+        }
+
+        private int x(int node, int fromX) {
+            return node == nodeCount ? fromX : nodeX[node];
+        }
+
+        private int y(int node, int fromY) {
+            return node == nodeCount ? fromY : nodeY[node];
+        }
+
+        /**
+         * Same test as the straight line check of {@link GoToNewSiteRule#findPath}, so a route always ends where
+         * the target is in plain sight.
+         */
+        private boolean isVisible(int x1, int y1, int x2, int y2, int ignoreSite) {
+            int minX = Math.min(x1, x2);
+            int maxX = Math.max(x1, x2);
+            int minY = Math.min(y1, y2);
+            int maxY = Math.max(y1, y2);
+            for (int i = 0; i < siteX.length; i++) {
+                if (i == ignoreSite || siteX[i] + siteReach[i] < minX || siteX[i] - siteReach[i] > maxX
+                        || siteY[i] + siteReach[i] < minY || siteY[i] - siteReach[i] > maxY) {
+                    continue;
+                }
+                if (Utils.segmentHitsCircle(x1, y1, x2, y2, siteX[i], siteY[i], siteReach[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean insideSite(int x, int y) {
+            for (int i = 0; i < siteX.length; i++) {
+                if (Utils.closerThan(x, y, siteX[i], siteY[i], siteReach[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Waypoints up to the point from where the target site is in plain sight.
+         */
+        static class Route {
+
+            private final int[] x;
+            private final int[] y;
+            private final int targetX;
+            private final int targetY;
+            // Length of the route from each waypoint to the last one
+            private final double[] distToEnd;
+            private int next;
+            private int legFromX;
+            private int legFromY;
+            private int stepX;
+            private int stepY;
+
+            public Route(int[] x, int[] y, int targetX, int targetY, int fromX, int fromY) {
+                this.x = x;
+                this.y = y;
+                this.targetX = targetX;
+                this.targetY = targetY;
+                distToEnd = new double[x.length];
+                for (int i = x.length - 2; i >= 0; i--) {
+                    distToEnd[i] = distToEnd[i + 1] + Utils.dist(x[i], y[i], x[i + 1], y[i + 1]);
+                }
+                legFromX = fromX;
+                legFromY = fromY;
+            }
+
+            /**
+             * Where to head this turn, a full queen step along the route and on towards the target site.
+             */
+            public int getStepX() {
+                return stepX;
+            }
+
+            public int getStepY() {
+                return stepY;
+            }
+
+            public int getEndX() {
+                return x[x.length - 1];
+            }
+
+            public int getEndY() {
+                return y[y.length - 1];
+            }
+
+            public double getDist(int fromX, int fromY) {
+                return Utils.dist(fromX, fromY, x[next], y[next]) + distToEnd[next];
+            }
+
+            /**
+             * Moves on to the leg the queen is on, false once she is off the route or past its last waypoint.
+             */
+            boolean follow(int queenX, int queenY) {
+                for (int i = next; i < x.length; i++) {
+                    int fromX = i == next ? legFromX : x[i - 1];
+                    int fromY = i == next ? legFromY : y[i - 1];
+                    if (Utils.distSegmentPoint(fromX, fromY, x[i], y[i], queenX, queenY) <= ROUTE_TOLERANCE) {
+                        legFromX = fromX;
+                        legFromY = fromY;
+                        next = i;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Aims a queen step ahead, a waypoint closer than that would waste the rest of the turn's move. Cutting
+             * the corner at a waypoint dips a few pixels into the site at most.
+             */
+            void aim(int fromX, int fromY) {
+                double left = QUEEN_SPEED;
+                double px = fromX;
+                double py = fromY;
+                for (int i = next; i <= x.length; i++) {
+                    double nx = i < x.length ? x[i] : targetX;
+                    double ny = i < y.length ? y[i] : targetY;
+                    double leg = Utils.dist(px, py, nx, ny);
+                    if (leg >= left || i == x.length) {
+                        double k = leg == 0 ? 0 : Math.min(left / leg, 1);
+                        stepX = (int) Math.round(px + (nx - px) * k);
+                        stepY = (int) Math.round(py + (ny - py) * k);
+                        return;
+                    }
+                    left -= leg;
+                    px = nx;
+                    py = ny;
                 }
             }
-            List<Rule> structureRules = Collections.singletonList(new TrainUnitsRule());
-            Optional<MoveBuilder> structureMoveOpt = bestPriorityMove(gameState, structureRules);
-            MoveBuilder queenMove = queenMoveOpt.orElse(new MoveBuilder());
-            queenMove.setTrainInSites(structureMoveOpt.map(MoveBuilder::getTrainInSites)
-                    .orElse(Collections.emptyList()));
-            return queenMove.createMove();
         }
     }
 
-    static class GameState {
+    /**
+     * Integers of the game input, in the order the referee sends them.
+     */
+    interface IntInput {
 
-        private final List<BuildingSiteStatic> buildingSiteStatics;
-        private final Map<Integer, BuildingSiteStatic> buildingSiteStaticById;
-        private List<BuildingSite> buildingSites;
-        private Map<Integer, BuildingSite> buildingSiteById;
-        private List<Unit> units;
-        private int goldLeft;
-        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-        private Optional<BuildingSite> touchedSiteOpt;
-        private Unit myQueen;
-        private Unit enemyQueen;
-        private int myCornerX = -1;
-        private int mycornerY = -1;
-        private int overallIncome = 0;
-        private int enemyGold = 100;
-        private Map<Integer, Integer> incomeRate = new HashMap<>();
-        private int enemyOverallIncome = 0;
+        boolean hasNext();
 
-        public static GameState create(List<BuildingSiteStatic> buildingSiteStatics) {
-            return new GameState(buildingSiteStatics);
+        int nextInt();
+    }
+
+    /**
+     * Parses whitespace separated decimal integers straight out of a byte stream.
+     */
+    static class TextIntInput implements IntInput {
+
+        private final InputStream in;
+        private final byte[] inBuf = new byte[1 << 16];
+        private int inPos = 0;
+        private int inLen = 0;
+
+        public TextIntInput(InputStream in) {
+            this.in = in;
         }
 
-        public GameState(List<BuildingSiteStatic> buildingSiteStatics) {
-            this.buildingSiteStatics = buildingSiteStatics;
-            buildingSiteStaticById = buildingSiteStatics.stream()
-                    .collect(Collectors.toMap(BuildingSiteStatic::getId, Function.identity()));
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                if (inPos == inLen && !fill()) {
+                    return false;
+                }
+                if (inBuf[inPos] > ' ') {
+                    return true;
+                }
+                inPos++;
+            }
         }
 
-        public List<BuildingSite> getBuildingSites() {
-            return buildingSites;
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new UncheckedIOException(new EOFException("Unexpected end of input"));
+            }
+            boolean negative = inBuf[inPos] == '-';
+            if (negative) {
+                inPos++;
+            }
+            int value = 0;
+            while (inPos < inLen || fill()) {
+                byte c = inBuf[inPos];
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                inPos++;
+            }
+            return negative ? -value : value;
         }
 
-        public List<Unit> getUnits() {
-            return units;
+        private boolean fill() {
+            try {
+                inLen = in.read(inBuf, 0, inBuf.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            inPos = 0;
+            if (inLen <= 0) {
+                inLen = 0;
+                return false;
+            }
+            return true;
         }
+    }
 
-        public int getGoldLeft() {
-            return goldLeft;
+    // offline:begin
+    /**
+     * Appends the integers read from the game input and the moves answered to a binary replay file. The file is a
+     * sequence of records, each a big-endian int count n followed by n ints: the record kind and its payload. A game
+     * starts with a {@link #STATICS} record holding the building site block, then every turn adds a {@link #TURN}
+     * record with the integers of the turn and a {@link #MOVE} record with the answer as encoded by
+     * {@link #encodeMove(Move)}. Records are only ever appended, so several games can share a file.
+     */
+    static class ReplayRecorder {
+
+        static final int STATICS = 0;
+        static final int TURN = 1;
+        static final int MOVE = 2;
+
+        private final DataOutputStream out;
+        private int[] record = new int[1 << 10];
+        private int length = 0;
+
+        public static ReplayRecorder create(OutputStream out) {
+            return new ReplayRecorder(out);
         }
 
-        public Optional<BuildingSite> getTouchedSiteOpt() {
-            return touchedSiteOpt;
+        public ReplayRecorder(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
         }
 
-        public BuildingSiteStatic getBuildingSiteStaticById(int id) {
-            return buildingSiteStaticById.get(id);
+        public void add(int value) {
+            if (length == record.length) {
+                record = Arrays.copyOf(record, record.length * 2);
+            }
+            record[length++] = value;
         }
 
-        public BuildingSite getBuildingSiteById(int id) {
-            return buildingSiteById.get(id);
+        /**
+         * Writes the integers added since the previous record as a record of the given kind.
+         */
+        public void endRecord(int kind) {
+            try {
+                out.writeInt(length + 1);
+                out.writeInt(kind);
+                for (int i = 0; i < length; i++) {
+                    out.writeInt(record[i]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            length = 0;
         }
 
-        public Unit getMyQueen() {
-            return myQueen;
+        public void recordMove(Move move) {
+            for (int value : encodeMove(move)) {
+                add(value);
+            }
+            endRecord(MOVE);
         }
 
-        public Unit getEnemyQueen() {
-            return enemyQueen;
+        public void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
 
-        public int getMyCornerX() {
-            return myCornerX;
+        /**
+         * Move as {action, x, y, site id, structure type, barracks type, number of sites to train in, site ids...},
+         * the action is 0 for WAIT, 1 for MOVE and 2 for BUILD, enums are ordinals and absent values are -1.
+         */
+        public static int[] encodeMove(Move move) {
+            List<Integer> trainInSites = move.getTrainInSites();
+            int[] encoded = new int[7 + trainInSites.size()];
+            Arrays.fill(encoded, 0, 6, -1);
+            if (move.getX() != null) {
+                encoded[0] = 1;
+                encoded[1] = move.getX();
+                encoded[2] = move.getY();
+            } else if (move.getStructureType() != null) {
+                encoded[0] = 2;
+                encoded[3] = move.getSiteId();
+                encoded[4] = move.getStructureType().ordinal();
+                encoded[5] = move.getBarracksType() == null ? -1 : move.getBarracksType().ordinal();
+            } else {
+                encoded[0] = 0;
+            }
+            encoded[6] = trainInSites.size();
+            for (int i = 0; i < trainInSites.size(); i++) {
+                encoded[7 + i] = trainInSites.get(i);
+            }
+            return encoded;
         }
+    }
+    // offline:end
+
+    /**
+     * Referee protocol over raw byte buffers: integers are parsed straight from a reusable input buffer and commands
+     * are rendered into a reusable output buffer that is written once per turn.
+     */
+    static class ProtocolCodec {
+
+        private static final byte[][] STRUCTURE_TYPE_NAMES = enumNames(StructureType.values());
+        private static final byte[][] BARRACKS_TYPE_NAMES = enumNames(BarracksType.values());
+        private static final byte[] WAIT = ascii("WAIT");
+        private static final byte[] MOVE = ascii("MOVE ");
+        private static final byte[] BUILD = ascii("BUILD ");
+        private static final byte[] TRAIN = ascii("\nTRAIN");
+
+        private final IntInput in;
+        private final OutputStream out;
+        private final byte[] outBuf = new byte[1 << 10];
+        private int outLen = 0;
+        private final byte[] digits = new byte[11];
+        private final List<BuildingSite> sitePool = new ArrayList<>();
+        private final List<BuildingSite> buildingSites = new ArrayList<>();
+        private final List<Unit> unitPool = new ArrayList<>();
+        private final List<Unit> units = new ArrayList<>();
+        // offline:begin
+        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+        private Optional<ReplayRecorder> recorder = Optional.empty();
+        // offline:end
 
-        public int getMycornerY() {
-            return mycornerY;
+        public static ProtocolCodec create(InputStream in, OutputStream out) {
+            return new ProtocolCodec(new TextIntInput(in), out);
         }
 
-        public int getOverallIncome() {
-            return overallIncome;
+        public static ProtocolCodec create(IntInput in, OutputStream out) {
+            return new ProtocolCodec(in, out);
         }
 
-        public int getEnemyGold() {
-            return enemyGold;
+        public ProtocolCodec(IntInput in, OutputStream out) {
+            this.in = in;
+            this.out = out;
         }
 
-        public int getEnemyOverallIncome() {
-            return enemyOverallIncome;
+        // offline:begin
+        /**
+         * Starts recording everything read and written from now on.
+         */
+        public void setRecorder(ReplayRecorder recorder) {
+            this.recorder = Optional.of(recorder);
         }
 
-        private void updateEnemyGold(Unit prevEnemyQueen, Unit curEnemyQueen) {
-            this.enemyOverallIncome = 0;
-            for (BuildingSite site : buildingSites) {
-                if (site.getStructureType() == StructureType.MINE && site.getOwner() == Owner.ENEMY) {
-                    if (incomeRate.getOrDefault(site.getId(), 0) == 0) {
-                        incomeRate.put(site.getId(), 1);
-                    } else {
-                        if (prevEnemyQueen.getX() == curEnemyQueen.getX()
-                                && prevEnemyQueen.getY() == curEnemyQueen.getY() &&
-                                Utils.dist(curEnemyQueen.getX(), curEnemyQueen.getY(), site.getX(), site.getY())
-                                        - site.getRadius() - QUEEN_RADIUS < CONTACT_RANGE) {
-                            incomeRate.put(site.getId(), incomeRate.get(site.getId()) + 1);
-                        }
-                    }
-                    enemyGold += incomeRate.get(site.getId());
-                    this.enemyOverallIncome += site.getIncomeRate();
-                } else {
-                    incomeRate.put(site.getId(), 0);
+        // offline:end
+        public List<BuildingSiteStatic> readBuildingSiteStatics() {
+            List<BuildingSiteStatic> buildingSiteStatics = new ArrayList<>();
+            int numSites = readInt();
+            for (int i = 0; i < numSites; i++) {
+                int siteId = readInt();
+                int x = readInt();
+                int y = readInt();
+                int radius = readInt();
+                buildingSiteStatics.add(BuildingSiteStatic.create(siteId, x, y, radius));
+            }
+            // offline:begin
+            if (recorder.isPresent()) {
+                recorder.get().endRecord(ReplayRecorder.STATICS);
+            }
+            // offline:end
+            return buildingSiteStatics;
+        }
+
+        /**
+         * Reads one turn and applies it to the game state. The sites and units handed to the game state are the
+         * codec's own, overwritten by the next turn, so once the pools have grown a turn is read without allocating.
+         *
+         * @return false if the input ended before the turn started
+         */
+        public boolean readTurn(GameState gameState) {
+            if (!in.hasNext()) {
+                return false;
+            }
+            gameState.getTurnBudget().startTurn();
+            int gold = readInt();
+            int touchedSite = readInt();
+            int numSites = gameState.getBuildingSiteStatics().size();
+            buildingSites.clear();
+            for (int i = 0; i < numSites; i++) {
+                int siteId = readInt();
+                int mineGold = readInt();
+                int maxMineSize = readInt();
+                int structureType = readInt();
+                int owner = readInt();
+                int param1 = readInt();
+                int param2 = readInt();
+                StructureType stType = StructureType.fromId(structureType);
+                if (sitePool.size() == i) {
+                    sitePool.add(BuildingSite.create(null,
+                            StructureType.NONE,
+                            Owner.NONE,
+                            0,
+                            -1,
+                            -1,
+                            0,
+                            0,
+                            0,
+                            BarracksType.NONE));
                 }
-                if (site.getStructureType() == StructureType.BARRACKS && site.getOwner() == Owner.ENEMY) {
-                    switch (site.getBarracksType()) {
-                        case KNIGHT:
-                            if (KNIGHT_TRAIN_TURNS == site.getUntilTrain()) {
-                                enemyGold -= KNIGHT_COST;
-                            }
-                            break;
-                        case ARCHER:
-                            if (ARCHER_TRAIN_TURNS == site.getUntilTrain()) {
-                                enemyGold -= ARCHER_COST;
-                            }
-                            break;
-                        case GIANT:
-                            if (GIANT_TRAIN_TURNS == site.getUntilTrain()) {
-                                enemyGold -= GIANT_COST;
-                            }
-                            break;
-                        default:
-                            throw new RuntimeException("Unknown barracks type");
-                    }
+                BuildingSite site = sitePool.get(i);
+                site.reset(gameState.getBuildingSiteStaticById(siteId),
+                        stType,
+                        Owner.fromId(owner),
+                        stType == StructureType.BARRACKS ? param1 : 0,
+                        mineGold,
+                        maxMineSize,
+                        stType == StructureType.TOWER ? param1 : 0,
+                        stType == StructureType.TOWER ? param2 : 0,
+                        stType == StructureType.MINE ? param1 : 0,
+                        stType == StructureType.BARRACKS ? BarracksType.fromId(param2) : BarracksType.NONE);
+                buildingSites.add(site);
+            }
+            int numUnits = readInt();
+            units.clear();
+            for (int i = 0; i < numUnits; i++) {
+                int x = readInt();
+                int y = readInt();
+                int owner = readInt();
+                int unitType = readInt();
+                int health = readInt();
+                if (unitPool.size() == i) {
+                    unitPool.add(Unit.create(0, 0, Owner.NONE, UnitType.QUEEN, 0));
                 }
-                enemyGold = Math.max(enemyGold, 0);
+                Unit unit = unitPool.get(i);
+                unit.reset(x, y, Owner.fromId(owner), UnitType.fromId(unitType), health);
+                units.add(unit);
             }
+            // offline:begin
+            if (recorder.isPresent()) {
+                recorder.get().endRecord(ReplayRecorder.TURN);
+            }
+            // offline:end
+
+            gameState.initTurn(gold, touchedSite, buildingSites, units);
+            return true;
         }
 
-        public void initTurn(int gold,
-                             int touchedSite,
-                             @SuppressWarnings("ParameterHidesMemberVariable") List<BuildingSite> buildingSites,
-                             @SuppressWarnings("ParameterHidesMemberVariable") List<Unit> units) {
-            buildingSiteById =
-                    buildingSites.stream().collect(Collectors.toMap(BuildingSite::getId, Function.identity()));
-            goldLeft = gold;
-            this.buildingSites = buildingSites;
-            this.units = units;
-            //noinspection ConstantConditions
-            this.myQueen = units.stream()
-                    .filter(x -> x.getOwner() == Owner.FRIENDLY && x.getUnitType() == UnitType.QUEEN)
-                    .findFirst()
-                    .get();
-            if (touchedSite == -1) {
-                touchedSiteOpt = Optional.empty();
-                for (BuildingSite site : buildingSites) {
-                    if (Utils.dist(myQueen.getX(), myQueen.getY(), site.getX(), site.getY()) - site.getRadius()
-                            - QUEEN_RADIUS < CONTACT_RANGE) {
-                        touchedSiteOpt = Optional.of(site);
-                    }
-                }
+        public void writeMove(Move move) {
+            // offline:begin
+            if (recorder.isPresent()) {
+                recorder.get().recordMove(move);
+            }
+            // offline:end
+            if (move.getX() == null && move.getStructureType() == null) {
+                write(WAIT);
+            } else if (move.getX() != null) {
+                write(MOVE);
+                writeInt(move.getX());
+                writeByte(' ');
+                writeInt(move.getY());
             } else {
-                touchedSiteOpt = Optional.of(getBuildingSiteById(touchedSite));
+                write(BUILD);
+                writeInt(move.getSiteId());
+                writeByte(' ');
+                write(STRUCTURE_TYPE_NAMES[move.getStructureType().ordinal()]);
+                if (move.getStructureType() == StructureType.BARRACKS) {
+                    writeByte('-');
+                    write(BARRACKS_TYPE_NAMES[move.getBarracksType().ordinal()]);
+                }
             }
-            Unit prevEnemyQueen = this.enemyQueen;
-            //noinspection ConstantConditions
-            this.enemyQueen = units.stream()
-                    .filter(x -> x.getOwner() == Owner.ENEMY && x.getUnitType() == UnitType.QUEEN)
-                    .findFirst()
-                    .get();
-            //noinspection ConstantConditions
-            this.overallIncome = buildingSites.stream().map(BuildingSite::getIncomeRate).reduce((a, b) -> a + b).get();
-            if (myCornerX == -1) {
-                if (myQueen.getX() < GRID_WIDTH / 2) {
-                    myCornerX = 0;
-                    mycornerY = 0;
-                } else {
-                    myCornerX = GRID_WIDTH;
-                    mycornerY = GRID_HEIGHT;
+            write(TRAIN);
+            List<Integer> trainInSites = move.getTrainInSites();
+            for (int i = 0; i < trainInSites.size(); i++) {
+                writeByte(' ');
+                writeInt(trainInSites.get(i));
+            }
+            writeByte('\n');
+        }
+
+        public void flush() {
+            try {
+                out.write(outBuf, 0, outLen);
+                out.flush();
+                // offline:begin
+                if (recorder.isPresent()) {
+                    recorder.get().flush();
                 }
+                // offline:end
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            outLen = 0;
+        }
+
+        private int readInt() {
+            int value = in.nextInt();
+            // offline:begin
+            if (recorder.isPresent()) {
+                recorder.get().add(value);
+            }
+            // offline:end
+            return value;
+        }
+
+        private void write(byte[] bytes) {
+            System.arraycopy(bytes, 0, outBuf, outLen, bytes.length);
+            outLen += bytes.length;
+        }
+
+        private void writeByte(char c) {
+            outBuf[outLen++] = (byte) c;
+        }
+
+        private void writeInt(int value) {
+            if (value < 0) {
+                writeByte('-');
+                value = -value;
+            }
+            int len = 0;
+            do {
+                digits[len++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (len > 0) {
+                outBuf[outLen++] = digits[--len];
+            }
+        }
+
+        private static byte[] ascii(String s) {
+            return s.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private static byte[][] enumNames(Enum<?>[] values) {
+            byte[][] names = new byte[values.length][];
+            for (Enum<?> value : values) {
+                names[value.ordinal()] = ascii(value.name());
             }
-            updateEnemyGold(prevEnemyQueen, enemyQueen);
+            return names;
         }
     }
 
+    /**
+     * Geometry helpers. Comparisons of integer points against integer thresholds are done on squared distances in
+     * {@code long}, which gives the same answers as comparing square roots while coordinates and thresholds stay within
+     * 2^14 in magnitude, far beyond the arena.
+     */
     static class Utils {
 
+        /**
+         * Same as {@code dist(x1, y1, x2, y2) - r1 - r2 < CONTACT_RANGE}.
+         */
         public static boolean inContact(int x1, int y1, int r1, int x2, int y2, int r2) {
-            return dist(x1, y1, x2, y2) - r1 - r2 < CONTACT_RANGE;
+            return closerThan(x1, y1, x2, y2, r1 + r2 + CONTACT_RANGE);
+        }
+
+        public static long dist2(int x1, int y1, int x2, int y2) {
+            long dx = x1 - x2;
+            long dy = y1 - y2;
+            return dx * dx + dy * dy;
+        }
+
+        /**
+         * Same as {@code dist(x1, y1, x2, y2) <= range}.
+         */
+        public static boolean withinRange(int x1, int y1, int x2, int y2, int range) {
+            return range >= 0 && dist2(x1, y1, x2, y2) <= (long) range * range;
+        }
+
+        /**
+         * Same as {@code dist(x1, y1, x2, y2) < limit}.
+         */
+        public static boolean closerThan(int x1, int y1, int x2, int y2, int limit) {
+            return limit > 0 && dist2(x1, y1, x2, y2) < (long) limit * limit;
+        }
+
+        /**
+         * Whether the point projects strictly inside the segment and lies closer than {@code radius} to its line, so a
+         * circle of that radius around the point cuts the segment somewhere between its ends.
+         */
+        public static boolean segmentHitsCircle(int x1, int y1, int x2, int y2, int x0, int y0, int radius) {
+            long ex = x2 - x1;
+            long ey = y2 - y1;
+            long px = x0 - x1;
+            long py = y0 - y1;
+            long len2 = ex * ex + ey * ey;
+            long dot = ex * px + ey * py;
+            if (radius <= 0 || dot <= 0 || dot >= len2) {
+                return false;
+            }
+            long cross = ey * px - ex * py;
+            return cross * cross < (long) radius * radius * len2;
         }
 
         public static double dist(int x1, int y1, int x2, int y2) {
@@ -1139,14 +4149,13 @@ class Player {
                     (y2 - y1) * (y2 - y1) + (x2 - x1) * (x2 - x1));
         }
 
-        public static boolean isObstackle(int x1, int y1, int x2, int y2, int x0, int y0, int radius) {
-            return distLinePoint(x1, y1, x2, y2, x0, y0) < radius && isProjectedPointOnLineSegment(x1,
-                    y1,
-                    x2,
-                    y2,
-                    x0,
-                    y0);
+        public static double distSegmentPoint(int x1, int y1, int x2, int y2, int x0, int y0) {
+            if (isProjectedPointOnLineSegment(x1, y1, x2, y2, x0, y0)) {
+                return distLinePoint(x1, y1, x2, y2, x0, y0);
+            }
+            return Math.min(dist(x1, y1, x0, y0), dist(x2, y2, x0, y0));
         }
+
     }
 
     static class Move {
@@ -1179,6 +4188,22 @@ class Player {
             return y;
         }
 
+        public Integer getSiteId() {
+            return siteId;
+        }
+
+        public StructureType getStructureType() {
+            return structureType;
+        }
+
+        public BarracksType getBarracksType() {
+            return barracksType;
+        }
+
+        public List<Integer> getTrainInSites() {
+            return trainInSites;
+        }
+
         @Override
         public String toString() {
             final StringBuilder sb = new StringBuilder();
@@ -1241,13 +4266,17 @@ class Player {
             return trainInSites;
         }
 
+        /**
+         * Move with its own copy of the sites to train in, rules may reuse the list they set for the next turn.
+         */
         public Player.Move createMove() {
             return new Player.Move(x,
                     y,
                     siteId,
                     structureType,
                     barracksType,
-                    trainInSites == null ? Collections.emptyList() : trainInSites);
+                    trainInSites == null || trainInSites.isEmpty() ?
+                            Collections.emptyList() : new ArrayList<>(trainInSites));
         }
     }
 
@@ -1271,6 +4300,13 @@ class Player {
                     throw new RuntimeException("Unsupported id");
             }
         }
+
+        /**
+         * Id of the value in the game input, the inverse of {@link #fromId}.
+         */
+        public int getId() {
+            return ordinal() - 1;
+        }
     }
 
     enum Owner {
@@ -1290,6 +4326,13 @@ class Player {
                     throw new RuntimeException("Unsupported id");
             }
         }
+
+        /**
+         * Id of the value in the game input, the inverse of {@link #fromId}.
+         */
+        public int getId() {
+            return ordinal() - 1;
+        }
     }
 
     enum BarracksType {
@@ -1312,6 +4355,13 @@ class Player {
                     throw new RuntimeException("Unsupported id");
             }
         }
+
+        /**
+         * Id of the value in the game input, the inverse of {@link #fromId}.
+         */
+        public int getId() {
+            return ordinal() - 1;
+        }
     }
 
     enum UnitType {
@@ -1334,73 +4384,192 @@ class Player {
                     throw new RuntimeException("Unsupported id");
             }
         }
+
+        /**
+         * Id of the value in the game input, the inverse of {@link #fromId}.
+         */
+        public int getId() {
+            return ordinal() - 1;
+        }
+    }
+
+    /**
+     * Turn state of units as primitive columns, one row per unit and enums stored by ordinal. A {@link Unit} reads and
+     * writes its row.
+     */
+    static class UnitColumns {
+
+        int[] x, y, owner, type, hp;
+
+        UnitColumns(int rows) {
+            x = new int[rows];
+            y = new int[rows];
+            owner = new int[rows];
+            type = new int[rows];
+            hp = new int[rows];
+        }
+
+        // offline:begin
+        /**
+         * Columns sharing the arrays of {@code other} until either side calls {@link #own()}.
+         */
+        UnitColumns(UnitColumns other) {
+            x = other.x;
+            y = other.y;
+            owner = other.owner;
+            type = other.type;
+            hp = other.hp;
+        }
+
+        // offline:end
+        /**
+         * Grows the columns in place, so the units reading them stay valid.
+         */
+        void ensureCapacity(int rows) {
+            if (x.length >= rows) {
+                return;
+            }
+            int capacity = Math.max(rows, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            owner = Arrays.copyOf(owner, capacity);
+            type = Arrays.copyOf(type, capacity);
+            hp = Arrays.copyOf(hp, capacity);
+        }
+
+        void own() {
+            x = x.clone();
+            y = y.clone();
+            owner = owner.clone();
+            type = type.clone();
+            hp = hp.clone();
+        }
+    }
+
+    /**
+     * Turn state of sites as primitive columns, one row per site and enums stored by ordinal. A {@link BuildingSite}
+     * reads and writes its row. The gold and max mine size of a site that isn't visible are -1.
+     */
+    static class SiteColumns {
+
+        int[] owner, structureType, barracksType, untilTrain, gold, maxMineSize, towerHP, towerRange, incomeRate;
+
+        SiteColumns(int rows) {
+            owner = new int[rows];
+            structureType = new int[rows];
+            barracksType = new int[rows];
+            untilTrain = new int[rows];
+            gold = new int[rows];
+            maxMineSize = new int[rows];
+            towerHP = new int[rows];
+            towerRange = new int[rows];
+            incomeRate = new int[rows];
+        }
+
+        // offline:begin
+        /**
+         * Columns sharing the arrays of {@code other} until either side calls {@link #own()}.
+         */
+        SiteColumns(SiteColumns other) {
+            owner = other.owner;
+            structureType = other.structureType;
+            barracksType = other.barracksType;
+            untilTrain = other.untilTrain;
+            gold = other.gold;
+            maxMineSize = other.maxMineSize;
+            towerHP = other.towerHP;
+            towerRange = other.towerRange;
+            incomeRate = other.incomeRate;
+        }
+
+        // offline:end
+        void own() {
+            owner = owner.clone();
+            structureType = structureType.clone();
+            barracksType = barracksType.clone();
+            untilTrain = untilTrain.clone();
+            gold = gold.clone();
+            maxMineSize = maxMineSize.clone();
+            towerHP = towerHP.clone();
+            towerRange = towerRange.clone();
+            incomeRate = incomeRate.clone();
+        }
     }
 
+    /**
+     * A row of {@link UnitColumns}. The units of a game state are views over its columns, a unit created on its own
+     * gets columns of a single row.
+     */
     static class Unit {
 
-        private final int x, y;
-        private final Owner owner;
-        private final UnitType unitType;
-        private final int hp;
+        private final UnitColumns columns;
+        private final int row;
 
         public static Unit create(int x, int y, Owner owner, UnitType unitType, int hp) {
-            return new Unit(x, y, owner, unitType, hp);
+            Unit unit = new Unit(new UnitColumns(1), 0);
+            unit.reset(x, y, owner, unitType, hp);
+            return unit;
         }
 
-        public Unit(int x, int y, Owner owner, UnitType unitType, int hp) {
-            this.x = x;
-            this.y = y;
-            this.owner = owner;
-            this.unitType = unitType;
-            this.hp = hp;
+        Unit(UnitColumns columns, int row) {
+            this.columns = columns;
+            this.row = row;
+        }
+
+        /**
+         * Overwrites the unit with another one, {@link ProtocolCodec} reuses its units from turn to turn.
+         */
+        void reset(int x, int y, Owner owner, UnitType unitType, int hp) {
+            columns.x[row] = x;
+            columns.y[row] = y;
+            columns.owner[row] = owner.ordinal();
+            columns.type[row] = unitType.ordinal();
+            columns.hp[row] = hp;
         }
 
         public int getX() {
-            return x;
+            return columns.x[row];
         }
 
         public int getY() {
-            return y;
+            return columns.y[row];
         }
 
         public Owner getOwner() {
-            return owner;
+            return GameState.OWNERS[columns.owner[row]];
         }
 
         public UnitType getUnitType() {
-            return unitType;
+            return GameState.UNIT_TYPES[columns.type[row]];
         }
 
         public int getHp() {
-            return hp;
+            return columns.hp[row];
         }
     }
 
-    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    /**
+     * A row of {@link SiteColumns}. The sites of a game state are views over its columns, a site created on its own
+     * gets columns of a single row.
+     */
     static class BuildingSite {
 
-        private final BuildingSiteStatic staticInfo;
-        private final StructureType structureType;
-        private final Owner owner;
-        private final int untilTrain;
-        private final Optional<Integer> gold;
-        private final Optional<Integer> maxMineSize;
-        private final int towerHP;
-        private final int towerRange;
-        private final int incomeRate;
-        private final BarracksType barracksType;
+        private BuildingSiteStatic staticInfo;
+        private final SiteColumns columns;
+        private final int row;
 
         public static BuildingSite create(BuildingSiteStatic staticInfo,
                                           StructureType structureType,
                                           Owner owner,
                                           int untilTrain,
-                                          Optional<Integer> gold,
-                                          Optional<Integer> maxMineSize,
+                                          int gold,
+                                          int maxMineSize,
                                           int towerHP,
                                           int towerRange,
                                           int incomeRate,
                                           BarracksType barracksType) {
-            return new BuildingSite(staticInfo,
+            BuildingSite site = new BuildingSite(staticInfo, new SiteColumns(1), 0);
+            site.reset(staticInfo,
                     structureType,
                     owner,
                     untilTrain,
@@ -1410,28 +4579,38 @@ class Player {
                     towerRange,
                     incomeRate,
                     barracksType);
+            return site;
         }
 
-        public BuildingSite(BuildingSiteStatic staticInfo,
-                            StructureType structureType,
-                            Owner owner,
-                            int untilTrain,
-                            Optional<Integer> gold,
-                            Optional<Integer> maxMineSize,
-                            int towerHP,
-                            int towerRange,
-                            int incomeRate,
-                            BarracksType barracksType) {
+        BuildingSite(BuildingSiteStatic staticInfo, SiteColumns columns, int row) {
             this.staticInfo = staticInfo;
-            this.structureType = structureType;
-            this.owner = owner;
-            this.untilTrain = untilTrain;
-            this.gold = gold;
-            this.maxMineSize = maxMineSize;
-            this.towerHP = towerHP;
-            this.towerRange = towerRange;
-            this.incomeRate = incomeRate;
-            this.barracksType = barracksType;
+            this.columns = columns;
+            this.row = row;
+        }
+
+        /**
+         * Overwrites the site with another turn's state, {@link ProtocolCodec} reuses its sites from turn to turn.
+         */
+        void reset(BuildingSiteStatic staticInfo,
+                   StructureType structureType,
+                   Owner owner,
+                   int untilTrain,
+                   int gold,
+                   int maxMineSize,
+                   int towerHP,
+                   int towerRange,
+                   int incomeRate,
+                   BarracksType barracksType) {
+            this.staticInfo = staticInfo;
+            columns.structureType[row] = structureType.ordinal();
+            columns.owner[row] = owner.ordinal();
+            columns.untilTrain[row] = untilTrain;
+            columns.gold[row] = gold;
+            columns.maxMineSize[row] = maxMineSize;
+            columns.towerHP[row] = towerHP;
+            columns.towerRange[row] = towerRange;
+            columns.incomeRate[row] = incomeRate;
+            columns.barracksType[row] = barracksType.ordinal();
         }
 
         public int getId() {
@@ -1451,40 +4630,183 @@ class Player {
         }
 
         public StructureType getStructureType() {
-            return structureType;
+            return GameState.STRUCTURE_TYPES[columns.structureType[row]];
         }
 
         public Owner getOwner() {
-            return owner;
+            return GameState.OWNERS[columns.owner[row]];
         }
 
         public int getUntilTrain() {
-            return untilTrain;
+            return columns.untilTrain[row];
         }
 
-        public Optional<Integer> getGold() {
-            return gold;
+        /**
+         * Gold left in the site, or {@code other} when it isn't visible.
+         */
+        public int getGoldOrElse(int other) {
+            int gold = columns.gold[row];
+            return gold == -1 ? other : gold;
         }
 
-        public Optional<Integer> getMaxMineSize() {
-            return maxMineSize;
+        /**
+         * Max mine size of the site, or {@code other} when it isn't visible.
+         */
+        public int getMaxMineSizeOrElse(int other) {
+            int maxMineSize = columns.maxMineSize[row];
+            return maxMineSize == -1 ? other : maxMineSize;
         }
 
         public int getIncomeRate() {
-            return incomeRate;
+            return columns.incomeRate[row];
         }
 
         public int getTowerHP() {
-            return towerHP;
+            return columns.towerHP[row];
         }
 
         public int getTowerRange() {
-            return towerRange;
+            return columns.towerRange[row];
         }
 
         public BarracksType getBarracksType() {
-            return barracksType;
+            return GameState.BARRACKS_TYPES[columns.barracksType[row]];
+        }
+    }
+
+    /**
+     * Tunable constants of the rules. Every game state carries one, the defaults unless the game was set up with other
+     * values, and the rules read them from there. The offline tuner rewrites the defaults between the markers.
+     */
+    static class Params {
+
+        // tuned:begin
+        static final Params DEFAULTS = new Params(300, 450, 800, 400, 400, 2, 5);
+        // tuned:end
+        // offline:begin
+        static final String[] NAMES = {"panicModeDist",
+                "enemyTerritory",
+                "maxDistToSite",
+                "barracksReplacementDist",
+                "surroundingThreshold",
+                "comfortTowersNumber",
+                "stepChunks"};
+        // offline:end
+
+        // Enemy knights closer than this to the queen make her run
+        private final int panicModeDist;
+        // Sites this close to the enemy's side are not gone for
+        private final int enemyTerritory;
+        private final int maxDistToSite;
+        // How much closer to the enemy queen new knight barracks have to be to replace the current ones
+        private final int barracksReplacementDist;
+        // Sites closer than this count as each other's surroundings
+        private final int surroundingThreshold;
+        private final int comfortTowersNumber;
+        // Pieces a friendly knight's step is cut into when giving way to it
+        private final double stepChunks;
+
+        public static Params create(int panicModeDist,
+                                    int enemyTerritory,
+                                    int maxDistToSite,
+                                    int barracksReplacementDist,
+                                    int surroundingThreshold,
+                                    int comfortTowersNumber,
+                                    double stepChunks) {
+            return new Params(panicModeDist,
+                    enemyTerritory,
+                    maxDistToSite,
+                    barracksReplacementDist,
+                    surroundingThreshold,
+                    comfortTowersNumber,
+                    stepChunks);
+        }
+
+        // offline:begin
+        /**
+         * Params from values in {@link #NAMES} order, integer ones are rounded.
+         */
+        public static Params fromArray(double[] values) {
+            return new Params((int) Math.round(values[0]),
+                    (int) Math.round(values[1]),
+                    (int) Math.round(values[2]),
+                    (int) Math.round(values[3]),
+                    (int) Math.round(values[4]),
+                    (int) Math.round(values[5]),
+                    values[6]);
+        }
+
+        // offline:end
+        public Params(int panicModeDist,
+                      int enemyTerritory,
+                      int maxDistToSite,
+                      int barracksReplacementDist,
+                      int surroundingThreshold,
+                      int comfortTowersNumber,
+                      double stepChunks) {
+            this.panicModeDist = panicModeDist;
+            this.enemyTerritory = enemyTerritory;
+            this.maxDistToSite = maxDistToSite;
+            this.barracksReplacementDist = barracksReplacementDist;
+            this.surroundingThreshold = surroundingThreshold;
+            this.comfortTowersNumber = comfortTowersNumber;
+            this.stepChunks = stepChunks;
+        }
+
+        // offline:begin
+        /**
+         * Values in {@link #NAMES} order.
+         */
+        public double[] toArray() {
+            return new double[]{panicModeDist,
+                    enemyTerritory,
+                    maxDistToSite,
+                    barracksReplacementDist,
+                    surroundingThreshold,
+                    comfortTowersNumber,
+                    stepChunks};
+        }
+
+        // offline:end
+        public int getPanicModeDist() {
+            return panicModeDist;
+        }
+
+        public int getEnemyTerritory() {
+            return enemyTerritory;
+        }
+
+        public int getMaxDistToSite() {
+            return maxDistToSite;
+        }
+
+        public int getBarracksReplacementDist() {
+            return barracksReplacementDist;
+        }
+
+        public int getSurroundingThreshold() {
+            return surroundingThreshold;
+        }
+
+        public int getComfortTowersNumber() {
+            return comfortTowersNumber;
+        }
+
+        public double getStepChunks() {
+            return stepChunks;
+        }
+
+        // offline:begin
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            double[] values = toArray();
+            for (int i = 0; i < NAMES.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(NAMES[i]).append('=').append(values[i]);
+            }
+            return sb.toString();
         }
+        // offline:end
     }
 
     static class BuildingSiteStatic {
@@ -0,0 +1,889 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.BarracksType;
+import com.github.nighturs.codingame.coderoyale.Player.BuildingSite;
+import com.github.nighturs.codingame.coderoyale.Player.BuildingSiteStatic;
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.Owner;
+import com.github.nighturs.codingame.coderoyale.Player.Params;
+import com.github.nighturs.codingame.coderoyale.Player.StructureType;
+import com.github.nighturs.codingame.coderoyale.Player.Unit;
+import com.github.nighturs.codingame.coderoyale.Player.UnitType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.ARCHER_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.ARCHER_RANGE;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.ARCHER_SPEED;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.GIANT_BUST_RATE;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.GIANT_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.GIANT_SPEED;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.KNIGHT_DAMAGE;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.TOWER_CREEP_DAMAGE_MIN;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.TOWER_INITIAL_HP;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.TOWER_MELT_RATE;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.TOWER_QUEEN_DAMAGE_MIN;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.archerDamage;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.creepCost;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.creepCount;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.creepHp;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.creepTrainTurns;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.creepType;
+import static com.github.nighturs.codingame.coderoyale.ForwardModel.towerDamage;
+import static com.github.nighturs.codingame.coderoyale.Player.CONTACT_RANGE;
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_HEIGHT;
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_WIDTH;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.Player.KNIGHT_SPEED;
+import static com.github.nighturs.codingame.coderoyale.Player.MAX_TOWER_HP;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_RADIUS;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_SPEED;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_TOWER_UP;
+
+/**
+ * Headless Code Royale referee for offline play. Generates a mirrored map from a seed and plays two bots on it,
+ * handing each one a {@link GameState} from its own point of view, the way {@link Player#main} would after reading
+ * the turn input. Queen movement and building, mines, towers, barracks training, knights, archers, giants, collisions
+ * and both win conditions follow the game rules; the random parts come from the seed only, so a game between two
+ * deterministic bots always replays the same.
+ */
+public class Referee {
+
+    static final int MAX_TURNS = 200;
+    static final int STARTING_GOLD = 100;
+    static final int QUEEN_MIN_HP = 100;
+    static final int QUEEN_MAX_HP = 200;
+    static final int QUEEN_MASS = 10000;
+    static final int QUEEN_VISION = 300;
+    static final int KNIGHT_MASS = 400;
+    static final int ARCHER_MASS = 900;
+    static final int GIANT_MASS = 2000;
+    static final int MIN_SITE_PAIRS = 6;
+    static final int MAX_SITE_PAIRS = 12;
+    static final int MIN_SITE_RADIUS = 60;
+    static final int MAX_SITE_RADIUS = 90;
+    static final int SITE_GAP = 90;
+    static final int MIN_SITE_GOLD = 200;
+    static final int MAX_SITE_GOLD = 250;
+    static final int SITE_GOLD_INCREASE = 50;
+    static final int SITE_GOLD_INCREASE_DIST_1 = 500;
+    static final int SITE_GOLD_INCREASE_DIST_2 = 200;
+    static final int MAX_MINE_SIZE = 3;
+    static final int COLLISION_ITERATIONS = 10;
+
+    private final long seed;
+    private final List<BuildingSiteStatic> siteStatics = new ArrayList<>();
+    private final List<Site> sites = new ArrayList<>();
+    private final List<Creature> creatures = new ArrayList<>();
+    private final Creature[] queens = new Creature[2];
+    private final int[] gold = new int[2];
+    private final int[] touchedSite = {-1, -1};
+    private int turn;
+
+    /**
+     * Decision maker for one side of a game, called once a turn with that side's view of the game.
+     */
+    interface Bot {
+
+        Move findMove(GameState gameState);
+
+        /**
+         * Params of the game states the bot is handed.
+         */
+        default Params getParams() {
+            return Params.DEFAULTS;
+        }
+    }
+
+    public static Referee create(long seed) {
+        return new Referee(seed);
+    }
+
+    public Referee(long seed) {
+        this.seed = seed;
+        Random random = new Random(seed);
+        generateSites(random);
+        int queenHp = QUEEN_MIN_HP + random.nextInt(QUEEN_MAX_HP - QUEEN_MIN_HP + 1);
+        int x = QUEEN_RADIUS + random.nextInt(GRID_WIDTH / 8);
+        int y = QUEEN_RADIUS + random.nextInt(GRID_HEIGHT - 2 * QUEEN_RADIUS);
+        queens[0] = new Creature(0, null, x, y, queenHp);
+        queens[1] = new Creature(1, null, GRID_WIDTH - x, GRID_HEIGHT - y, queenHp);
+        creatures.add(queens[0]);
+        creatures.add(queens[1]);
+        gold[0] = STARTING_GOLD;
+        gold[1] = STARTING_GOLD;
+        resolveCollisions();
+        roundPositions();
+    }
+
+    private void generateSites(Random random) {
+        int pairs = MIN_SITE_PAIRS + random.nextInt(MAX_SITE_PAIRS - MIN_SITE_PAIRS + 1);
+        int attempts = 0;
+        while (sites.size() < pairs * 2 && attempts++ < 1000) {
+            int radius = MIN_SITE_RADIUS + random.nextInt(MAX_SITE_RADIUS - MIN_SITE_RADIUS + 1);
+            int x = radius + random.nextInt(GRID_WIDTH / 2 - radius);
+            int y = radius + random.nextInt(GRID_HEIGHT - 2 * radius);
+            int mirrorX = GRID_WIDTH - x;
+            int mirrorY = GRID_HEIGHT - y;
+            if (Player.Utils.dist(x, y, mirrorX, mirrorY) < 2 * radius + SITE_GAP) {
+                continue;
+            }
+            boolean free = true;
+            for (Site site : sites) {
+                if (Player.Utils.dist(x, y, site.x, site.y) < radius + site.radius + SITE_GAP) {
+                    free = false;
+                    break;
+                }
+            }
+            if (!free) {
+                continue;
+            }
+            int siteGold = MIN_SITE_GOLD + random.nextInt(MAX_SITE_GOLD - MIN_SITE_GOLD + 1);
+            double distToCenter = Player.Utils.dist(x, y, GRID_WIDTH / 2, GRID_HEIGHT / 2);
+            if (distToCenter < SITE_GOLD_INCREASE_DIST_1) {
+                siteGold += SITE_GOLD_INCREASE;
+            }
+            if (distToCenter < SITE_GOLD_INCREASE_DIST_2) {
+                siteGold += SITE_GOLD_INCREASE;
+            }
+            int maxMineSize = 1 + random.nextInt(MAX_MINE_SIZE);
+            addSite(x, y, radius, siteGold, maxMineSize);
+            addSite(mirrorX, mirrorY, radius, siteGold, maxMineSize);
+        }
+    }
+
+    private void addSite(int x, int y, int radius, int siteGold, int maxMineSize) {
+        int id = sites.size();
+        siteStatics.add(BuildingSiteStatic.create(id, x, y, radius));
+        sites.add(new Site(id, x, y, radius, siteGold, maxMineSize));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public List<BuildingSiteStatic> getSiteStatics() {
+        return siteStatics;
+    }
+
+    public int getTurn() {
+        return turn;
+    }
+
+    /**
+     * Plays the game to the end. A bot that throws loses the game.
+     */
+    public GameResult play(Bot bot0, Bot bot1) {
+        Bot[] bots = {bot0, bot1};
+        GameState[] views = new GameState[2];
+        for (int p = 0; p < 2; p++) {
+            views[p] = GameState.create(siteStatics, bots[p].getParams());
+            views[p].getTurnBudget().disable();
+        }
+        Move[] moves = new Move[2];
+        while (!isOver()) {
+            for (int p = 0; p < 2; p++) {
+                try {
+                    initView(views[p], p);
+                    moves[p] = bots[p].findMove(views[p]);
+                } catch (RuntimeException e) {
+                    return forfeit(p);
+                }
+            }
+            advance(moves[0], moves[1]);
+        }
+        return result();
+    }
+
+    /**
+     * Plays one turn given both players' moves, for hosts that drive the bots themselves.
+     */
+    public void advance(Move move0, Move move1) {
+        step(move0, move1);
+        turn++;
+    }
+
+    public boolean isOver() {
+        return turn >= MAX_TURNS || queens[0].hp <= 0 || queens[1].hp <= 0;
+    }
+
+    public GameResult result() {
+        return GameResult.create(winner(), turn, queens[0].hp, queens[1].hp, false);
+    }
+
+    /**
+     * Ends the game as lost by player {@code p}, for a bot that failed to answer.
+     */
+    public GameResult forfeit(int p) {
+        return GameResult.create(1 - p, turn, queens[0].hp, queens[1].hp, true);
+    }
+
+    private int winner() {
+        if (queens[0].hp == queens[1].hp) {
+            return -1;
+        }
+        return queens[0].hp > queens[1].hp ? 0 : 1;
+    }
+
+    /**
+     * Feeds player {@code p} what its turn input would contain: own structures as FRIENDLY, the opponent's as ENEMY,
+     * gold and mine size only for sites in the queen's sight and the income rate only for own mines.
+     */
+    void initView(GameState gameState, int p) {
+        Creature queen = queens[p];
+        List<BuildingSite> buildingSites = new ArrayList<>(sites.size());
+        for (Site site : sites) {
+            boolean visible = Player.Utils.dist(queen.x, queen.y, site.x, site.y) - site.radius <= QUEEN_VISION;
+            boolean mine = site.structureType == StructureType.MINE;
+            boolean tower = site.structureType == StructureType.TOWER;
+            boolean barracks = site.structureType == StructureType.BARRACKS;
+            buildingSites.add(BuildingSite.create(siteStatics.get(site.id),
+                    site.structureType,
+                    ownerFor(site.owner, p),
+                    barracks ? site.untilTrain : 0,
+                    visible ? site.gold : -1,
+                    visible ? site.maxMineSize : -1,
+                    tower ? site.towerHp : 0,
+                    tower ? towerRange(site) : 0,
+                    mine ? (site.owner == p ? site.incomeRate : -1) : 0,
+                    barracks ? site.barracksType : BarracksType.NONE));
+        }
+        List<Unit> units = new ArrayList<>(creatures.size());
+        for (Creature creature : creatures) {
+            units.add(Unit.create((int) creature.x,
+                    (int) creature.y,
+                    ownerFor(creature.owner, p),
+                    creature.type == null ? UnitType.QUEEN : creature.type,
+                    creature.hp));
+        }
+        gameState.initTurn(gold[p], touchedSite[p], buildingSites, units);
+    }
+
+    /**
+     * Building site lines of the game input as ints in protocol order, the same for both players.
+     */
+    public int[] siteInput() {
+        int[] ints = new int[1 + siteStatics.size() * 4];
+        int i = 0;
+        ints[i++] = siteStatics.size();
+        for (BuildingSiteStatic site : siteStatics) {
+            ints[i++] = site.getId();
+            ints[i++] = site.getX();
+            ints[i++] = site.getY();
+            ints[i++] = site.getRadius();
+        }
+        return ints;
+    }
+
+    /**
+     * Turn input of player {@code p} as ints in protocol order, the view {@link #initView} builds.
+     */
+    public int[] turnInput(int p) {
+        Creature queen = queens[p];
+        int[] ints = new int[2 + sites.size() * 7 + 1 + creatures.size() * 5];
+        int i = 0;
+        ints[i++] = gold[p];
+        ints[i++] = touchedSite[p];
+        for (Site site : sites) {
+            boolean visible = Player.Utils.dist(queen.x, queen.y, site.x, site.y) - site.radius <= QUEEN_VISION;
+            ints[i++] = site.id;
+            ints[i++] = visible ? site.gold : -1;
+            ints[i++] = visible ? site.maxMineSize : -1;
+            ints[i++] = site.structureType.getId();
+            ints[i++] = ownerFor(site.owner, p).getId();
+            switch (site.structureType) {
+                case MINE:
+                    ints[i++] = site.owner == p ? site.incomeRate : -1;
+                    ints[i++] = -1;
+                    break;
+                case TOWER:
+                    ints[i++] = site.towerHp;
+                    ints[i++] = towerRange(site);
+                    break;
+                case BARRACKS:
+                    ints[i++] = site.untilTrain;
+                    ints[i++] = site.barracksType.getId();
+                    break;
+                default:
+                    ints[i++] = -1;
+                    ints[i++] = -1;
+            }
+        }
+        ints[i++] = creatures.size();
+        for (Creature creature : creatures) {
+            ints[i++] = (int) creature.x;
+            ints[i++] = (int) creature.y;
+            ints[i++] = ownerFor(creature.owner, p).getId();
+            ints[i++] = (creature.type == null ? UnitType.QUEEN : creature.type).getId();
+            ints[i++] = creature.hp;
+        }
+        return ints;
+    }
+
+    private static Owner ownerFor(int owner, int p) {
+        if (owner == -1) {
+            return Owner.NONE;
+        }
+        return owner == p ? Owner.FRIENDLY : Owner.ENEMY;
+    }
+
+    /**
+     * Advances the game by one turn given both players' moves.
+     */
+    void step(Move move0, Move move1) {
+        Move[] moves = {move0, move1};
+        for (int p = 0; p < 2; p++) {
+            train(p, moves[p].getTrainInSites());
+        }
+        int[] buildSite = {-1, -1};
+        for (int p = 0; p < 2; p++) {
+            buildSite[p] = queenAction(p, moves[p]);
+        }
+        for (int p = 0; p < 2; p++) {
+            if (buildSite[p] != -1 && buildSite[p] != buildSite[1 - p]) {
+                build(p, sites.get(buildSite[p]), moves[p]);
+            }
+        }
+        moveCreeps();
+        resolveCollisions();
+        fight();
+        updateTowers();
+        ageCreeps();
+        updateBarracks();
+        collectIncome();
+        roundPositions();
+        for (int p = 0; p < 2; p++) {
+            touchedSite[p] = touchedSiteId(queens[p]);
+        }
+    }
+
+    private void train(int p, List<Integer> trainInSites) {
+        int cost = 0;
+        for (int siteId : trainInSites) {
+            Site site = sites.get(siteId);
+            if (site.owner != p || site.structureType != StructureType.BARRACKS || site.untilTrain > 0) {
+                return;
+            }
+            cost += creepCost(site.barracksType);
+        }
+        // Training is all or nothing, like in the game
+        if (cost > gold[p]) {
+            return;
+        }
+        gold[p] -= cost;
+        for (int siteId : trainInSites) {
+            Site site = sites.get(siteId);
+            site.untilTrain = creepTrainTurns(site.barracksType);
+        }
+    }
+
+    /**
+     * Moves the queen for a MOVE or an out of reach BUILD.
+     *
+     * @return id of the site to build on this turn, -1 if none
+     */
+    private int queenAction(int p, Move move) {
+        Creature queen = queens[p];
+        if (move.getX() != null) {
+            queen.moveTowards(move.getX(), move.getY(), QUEEN_SPEED);
+            return -1;
+        }
+        if (move.getStructureType() == null) {
+            return -1;
+        }
+        Site site = sites.get(move.getSiteId());
+        if (touchedSite[p] == site.id) {
+            return site.id;
+        }
+        queen.moveTowards(site.x, site.y, QUEEN_SPEED);
+        return -1;
+    }
+
+    private void build(int p, Site site, Move move) {
+        if (site.owner == 1 - p && site.structureType == StructureType.TOWER) {
+            return;
+        }
+        boolean own = site.owner == p;
+        switch (move.getStructureType()) {
+            case MINE:
+                if (site.gold <= 0) {
+                    return;
+                }
+                if (own && site.structureType == StructureType.MINE) {
+                    site.incomeRate = Math.min(site.incomeRate + 1, site.maxMineSize);
+                } else {
+                    site.reset(p, StructureType.MINE);
+                    site.incomeRate = 1;
+                }
+                break;
+            case TOWER:
+                if (own && site.structureType == StructureType.TOWER) {
+                    site.towerHp = Math.min(site.towerHp + QUEEN_TOWER_UP, MAX_TOWER_HP);
+                } else {
+                    site.reset(p, StructureType.TOWER);
+                    site.towerHp = TOWER_INITIAL_HP;
+                }
+                break;
+            case BARRACKS:
+                if (own && site.structureType == StructureType.BARRACKS
+                        && site.barracksType == move.getBarracksType()) {
+                    return;
+                }
+                site.reset(p, StructureType.BARRACKS);
+                site.barracksType = move.getBarracksType();
+                break;
+            default:
+                throw new RuntimeException("Unknown structure type");
+        }
+    }
+
+    private void moveCreeps() {
+        for (Creature creature : creatures) {
+            if (creature.type == null) {
+                continue;
+            }
+            switch (creature.type) {
+                case KNIGHT: {
+                    Creature enemyQueen = queens[1 - creature.owner];
+                    creature.approach(enemyQueen.x, enemyQueen.y, enemyQueen.radius, 0);
+                    break;
+                }
+                case ARCHER: {
+                    Creature target = closestEnemyCreep(creature);
+                    if (target == null) {
+                        Creature queen = queens[creature.owner];
+                        creature.approach(queen.x, queen.y, queen.radius, 0);
+                    } else {
+                        creature.approach(target.x, target.y, target.radius, creature.range());
+                    }
+                    break;
+                }
+                case GIANT: {
+                    Site target = closestEnemyTower(creature);
+                    if (target != null) {
+                        creature.approach(target.x, target.y, target.radius, 0);
+                    }
+                    break;
+                }
+                default:
+                    throw new RuntimeException("Unknown unit type");
+            }
+        }
+    }
+
+    private void fight() {
+        for (Creature creature : creatures) {
+            if (creature.type == UnitType.KNIGHT) {
+                Creature enemyQueen = queens[1 - creature.owner];
+                if (creature.touches(enemyQueen.x, enemyQueen.y, enemyQueen.radius)) {
+                    enemyQueen.hp -= KNIGHT_DAMAGE;
+                }
+            } else if (creature.type == UnitType.ARCHER) {
+                Creature target = closestEnemyCreep(creature);
+                if (target != null && creature.dist(target.x, target.y) - target.radius - creature.radius
+                        <= creature.range()) {
+                    target.hp -= archerDamage(target.type);
+                }
+            } else if (creature.type == UnitType.GIANT) {
+                Site target = closestEnemyTower(creature);
+                if (target != null && creature.touches(target.x, target.y, target.radius)) {
+                    target.towerHp -= GIANT_BUST_RATE;
+                }
+            }
+        }
+        for (Site site : sites) {
+            if (site.structureType != StructureType.TOWER) {
+                continue;
+            }
+            int range = towerRange(site);
+            Creature target = null;
+            double targetDist = Double.MAX_VALUE;
+            for (Creature creature : creatures) {
+                double dist = creature.dist(site.x, site.y);
+                if (creature.owner != site.owner && creature.type != null && dist < range && dist < targetDist) {
+                    target = creature;
+                    targetDist = dist;
+                }
+            }
+            if (target != null) {
+                target.hp -= towerDamage(TOWER_CREEP_DAMAGE_MIN, range, targetDist);
+                continue;
+            }
+            Creature enemyQueen = queens[1 - site.owner];
+            double dist = enemyQueen.dist(site.x, site.y);
+            if (dist < range) {
+                enemyQueen.hp -= towerDamage(TOWER_QUEEN_DAMAGE_MIN, range, dist);
+            }
+        }
+    }
+
+    private void updateTowers() {
+        for (Site site : sites) {
+            if (site.structureType != StructureType.TOWER) {
+                continue;
+            }
+            site.towerHp -= TOWER_MELT_RATE;
+            if (site.towerHp <= 0) {
+                site.reset(-1, StructureType.NONE);
+            }
+        }
+    }
+
+    private void ageCreeps() {
+        List<Creature> alive = new ArrayList<>(creatures.size());
+        for (Creature creature : creatures) {
+            if (creature.type != null) {
+                creature.hp--;
+            }
+            if (creature.type == null || creature.hp > 0) {
+                alive.add(creature);
+            }
+        }
+        creatures.clear();
+        creatures.addAll(alive);
+    }
+
+    private void updateBarracks() {
+        for (Site site : sites) {
+            if (site.structureType != StructureType.BARRACKS || site.untilTrain == 0) {
+                continue;
+            }
+            site.untilTrain--;
+            if (site.untilTrain == 0) {
+                spawn(site);
+            }
+        }
+    }
+
+    private void spawn(Site site) {
+        UnitType type = creepType(site.barracksType);
+        int count = creepCount(type);
+        Creature enemyQueen = queens[1 - site.owner];
+        double dist = Player.Utils.dist(site.x, site.y, enemyQueen.x, enemyQueen.y);
+        double dirX = dist == 0 ? 1 : (enemyQueen.x - site.x) / dist;
+        double dirY = dist == 0 ? 0 : (enemyQueen.y - site.y) / dist;
+        for (int i = 0; i < count; i++) {
+            Creature creature = new Creature(site.owner, type, 0, 0, creepHp(type));
+            // Fan the new creeps out on the side of the site that faces the enemy queen
+            double angle = (i - (count - 1) / 2.0) * 0.5;
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+            double offset = site.radius + creature.radius;
+            creature.x = site.x + (dirX * cos - dirY * sin) * offset;
+            creature.y = site.y + (dirX * sin + dirY * cos) * offset;
+            creature.clamp();
+            creatures.add(creature);
+        }
+    }
+
+    private void collectIncome() {
+        for (Site site : sites) {
+            if (site.structureType != StructureType.MINE) {
+                continue;
+            }
+            int income = Math.min(site.incomeRate, site.gold);
+            site.gold -= income;
+            gold[site.owner] += income;
+            if (site.gold <= 0) {
+                site.reset(-1, StructureType.NONE);
+            }
+        }
+    }
+
+    private void resolveCollisions() {
+        for (int iteration = 0; iteration < COLLISION_ITERATIONS; iteration++) {
+            boolean moved = false;
+            for (int i = 0; i < creatures.size(); i++) {
+                Creature a = creatures.get(i);
+                for (int j = i + 1; j < creatures.size(); j++) {
+                    Creature b = creatures.get(j);
+                    double dist = a.dist(b.x, b.y);
+                    double overlap = a.radius + b.radius - dist;
+                    if (overlap <= 0) {
+                        continue;
+                    }
+                    double dirX = dist == 0 ? 1 : (b.x - a.x) / dist;
+                    double dirY = dist == 0 ? 0 : (b.y - a.y) / dist;
+                    double shareA = (double) b.mass / (a.mass + b.mass);
+                    a.x -= dirX * overlap * shareA;
+                    a.y -= dirY * overlap * shareA;
+                    b.x += dirX * overlap * (1 - shareA);
+                    b.y += dirY * overlap * (1 - shareA);
+                    moved = true;
+                }
+                for (Site site : sites) {
+                    double dist = a.dist(site.x, site.y);
+                    double overlap = a.radius + site.radius - dist;
+                    if (overlap <= 0) {
+                        continue;
+                    }
+                    double dirX = dist == 0 ? 1 : (a.x - site.x) / dist;
+                    double dirY = dist == 0 ? 0 : (a.y - site.y) / dist;
+                    a.x += dirX * overlap;
+                    a.y += dirY * overlap;
+                    moved = true;
+                }
+                a.clamp();
+            }
+            if (!moved) {
+                break;
+            }
+        }
+    }
+
+    private void roundPositions() {
+        for (Creature creature : creatures) {
+            creature.x = Math.round(creature.x);
+            creature.y = Math.round(creature.y);
+        }
+    }
+
+    private int touchedSiteId(Creature queen) {
+        for (Site site : sites) {
+            if (queen.touches(site.x, site.y, site.radius)) {
+                return site.id;
+            }
+        }
+        return -1;
+    }
+
+    private Creature closestEnemyCreep(Creature creature) {
+        Creature best = null;
+        double bestDist = Double.MAX_VALUE;
+        for (Creature other : creatures) {
+            if (other.owner == creature.owner || other.type == null) {
+                continue;
+            }
+            double dist = creature.dist(other.x, other.y);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = other;
+            }
+        }
+        return best;
+    }
+
+    private Site closestEnemyTower(Creature creature) {
+        Site best = null;
+        double bestDist = Double.MAX_VALUE;
+        for (Site site : sites) {
+            if (site.owner == creature.owner || site.structureType != StructureType.TOWER) {
+                continue;
+            }
+            double dist = creature.dist(site.x, site.y);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = site;
+            }
+        }
+        return best;
+    }
+
+    static int towerRange(Site site) {
+        return ForwardModel.towerRange(site.radius, site.towerHp);
+    }
+
+    static class Site {
+
+        private final int id;
+        private final int x, y;
+        private final int radius;
+        private final int maxMineSize;
+        private int gold;
+        private int owner = -1;
+        private StructureType structureType = StructureType.NONE;
+        private BarracksType barracksType = BarracksType.NONE;
+        private int incomeRate;
+        private int towerHp;
+        private int untilTrain;
+
+        Site(int id, int x, int y, int radius, int gold, int maxMineSize) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.gold = gold;
+            this.maxMineSize = maxMineSize;
+        }
+
+        void reset(int newOwner, StructureType newStructureType) {
+            owner = newOwner;
+            structureType = newStructureType;
+            barracksType = BarracksType.NONE;
+            incomeRate = 0;
+            towerHp = 0;
+            untilTrain = 0;
+        }
+    }
+
+    /**
+     * Queen or creep, a queen has no {@link #type}.
+     */
+    static class Creature {
+
+        private final int owner;
+        private final UnitType type;
+        private final int radius;
+        private final int mass;
+        private final int speed;
+        private double x, y;
+        private int hp;
+
+        Creature(int owner, UnitType type, double x, double y, int hp) {
+            this.owner = owner;
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.hp = hp;
+            if (type == null) {
+                radius = QUEEN_RADIUS;
+                mass = QUEEN_MASS;
+                speed = QUEEN_SPEED;
+            } else {
+                switch (type) {
+                    case KNIGHT:
+                        radius = KNIGHT_RADIUS;
+                        mass = KNIGHT_MASS;
+                        speed = KNIGHT_SPEED;
+                        break;
+                    case ARCHER:
+                        radius = ARCHER_RADIUS;
+                        mass = ARCHER_MASS;
+                        speed = ARCHER_SPEED;
+                        break;
+                    case GIANT:
+                        radius = GIANT_RADIUS;
+                        mass = GIANT_MASS;
+                        speed = GIANT_SPEED;
+                        break;
+                    default:
+                        throw new RuntimeException("Unknown unit type");
+                }
+            }
+        }
+
+        int range() {
+            return type == UnitType.ARCHER ? ARCHER_RANGE : 0;
+        }
+
+        double dist(double toX, double toY) {
+            return Player.Utils.dist(x, y, toX, toY);
+        }
+
+        boolean touches(double toX, double toY, int toRadius) {
+            return dist(toX, toY) - radius - toRadius < CONTACT_RANGE;
+        }
+
+        void moveTowards(double toX, double toY, double maxStep) {
+            double dist = dist(toX, toY);
+            if (dist <= maxStep) {
+                x = toX;
+                y = toY;
+            } else {
+                x += (toX - x) / dist * maxStep;
+                y += (toY - y) / dist * maxStep;
+            }
+            clamp();
+        }
+
+        /**
+         * Moves towards a circle, stopping once within {@code range} of its edge.
+         */
+        void approach(double toX, double toY, int toRadius, int stopRange) {
+            double gap = dist(toX, toY) - radius - toRadius - stopRange;
+            if (gap > 0) {
+                moveTowards(toX, toY, Math.min(speed, gap));
+            }
+        }
+
+        void clamp() {
+            x = Math.max(radius, Math.min(GRID_WIDTH - radius, x));
+            y = Math.max(radius, Math.min(GRID_HEIGHT - radius, y));
+        }
+    }
+
+    static class GameResult {
+
+        private final int winner;
+        private final int turns;
+        private final int queenHp0;
+        private final int queenHp1;
+        private final boolean forfeit;
+
+        public static GameResult create(int winner, int turns, int queenHp0, int queenHp1, boolean forfeit) {
+            return new GameResult(winner, turns, queenHp0, queenHp1, forfeit);
+        }
+
+        public GameResult(int winner, int turns, int queenHp0, int queenHp1, boolean forfeit) {
+            this.winner = winner;
+            this.turns = turns;
+            this.queenHp0 = queenHp0;
+            this.queenHp1 = queenHp1;
+            this.forfeit = forfeit;
+        }
+
+        /**
+         * Index of the winning player, -1 for a draw.
+         */
+        public int getWinner() {
+            return winner;
+        }
+
+        public int getTurns() {
+            return turns;
+        }
+
+        public int getQueenHp0() {
+            return queenHp0;
+        }
+
+        public int getQueenHp1() {
+            return queenHp1;
+        }
+
+        /**
+         * Whether the game ended because a bot threw or, when hosted, answered too late.
+         */
+        public boolean isForfeit() {
+            return forfeit;
+        }
+    }
+
+    /**
+     * Plays {@code args[0]} self-play games (100 by default) on seeds 0, 1, ... and prints the outcome.
+     */
+    public static void main(String[] args) {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int[] wins = new int[2];
+        int draws = 0;
+        int forfeits = 0;
+        long turns = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < games; i++) {
+            GameResult result = Referee.create(i)
+                    .play(Player.TurnEngine.create()::findMove, Player.TurnEngine.create()::findMove);
+            if (result.getWinner() == -1) {
+                draws++;
+            } else {
+                wins[result.getWinner()]++;
+            }
+            if (result.isForfeit()) {
+                forfeits++;
+            }
+            turns += result.getTurns();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d games, player 0 won %d, player 1 won %d, %d draws, %d forfeits",
+                games,
+                wins[0],
+                wins[1],
+                draws,
+                forfeits));
+        System.out.println(String.format("%.1f turns per game, %.0f games per minute",
+                (double) turns / games,
+                games / seconds * 60));
+    }
+}
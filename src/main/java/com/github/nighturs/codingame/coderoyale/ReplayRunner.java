@@ -0,0 +1,137 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.IntInput;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.ProtocolCodec;
+import com.github.nighturs.codingame.coderoyale.Player.ReplayRecorder;
+import com.github.nighturs.codingame.coderoyale.Player.TurnEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Streams replays written by {@link ReplayRecorder} back through {@link GameState#initTurn} and
+ * {@link TurnEngine#findMove}, flagging every turn where the decision differs from the recorded one. Files are
+ * memory mapped and read as int buffers, the turn budget is disabled so results don't depend on machine load.
+ */
+public class ReplayRunner {
+
+    private long turns;
+    private long changedTurns;
+
+    /**
+     * Replays every game of the file.
+     */
+    public void run(File file) {
+        IntBuffer ints;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ProtocolCodec codec = ProtocolCodec.create(new IntBufferInput(ints), new ByteArrayOutputStream());
+        GameState gameState = null;
+        TurnEngine turnEngine = null;
+        Move move = null;
+        int turn = 0;
+        while (ints.hasRemaining()) {
+            int end = ints.get();
+            end += ints.position();
+            int kind = ints.get();
+            switch (kind) {
+                case ReplayRecorder.STATICS:
+                    gameState = GameState.create(codec.readBuildingSiteStatics());
+                    gameState.getTurnBudget().disable();
+                    turnEngine = TurnEngine.create();
+                    turn = 0;
+                    break;
+                case ReplayRecorder.TURN:
+                    if (gameState == null) {
+                        throw new RuntimeException("Turn before the building sites in " + file);
+                    }
+                    codec.readTurn(gameState);
+                    move = turnEngine.findMove(gameState);
+                    turns++;
+                    turn++;
+                    break;
+                case ReplayRecorder.MOVE:
+                    if (move == null) {
+                        throw new RuntimeException("Move before the turn in " + file);
+                    }
+                    int[] recorded = new int[end - ints.position()];
+                    ints.get(recorded);
+                    if (!Arrays.equals(recorded, ReplayRecorder.encodeMove(move))) {
+                        changedTurns++;
+                        System.out.println(String.format("%s turn %d: recorded %s, now %s",
+                                file.getName(),
+                                turn,
+                                Arrays.toString(recorded),
+                                Arrays.toString(ReplayRecorder.encodeMove(move))));
+                    }
+                    move = null;
+                    break;
+                default:
+                    throw new RuntimeException("Unknown record kind " + kind + " in " + file);
+            }
+            if (ints.position() != end) {
+                throw new RuntimeException("Corrupt record ending at int " + ints.position() + " in " + file);
+            }
+        }
+    }
+
+    public long getTurns() {
+        return turns;
+    }
+
+    public long getChangedTurns() {
+        return changedTurns;
+    }
+
+    static class IntBufferInput implements IntInput {
+
+        private final IntBuffer ints;
+
+        public IntBufferInput(IntBuffer ints) {
+            this.ints = ints;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ints.hasRemaining();
+        }
+
+        @Override
+        public int nextInt() {
+            return ints.get();
+        }
+    }
+
+    /**
+     * Usage: {@code ReplayRunner <replay directory>}.
+     */
+    public static void main(String[] args) {
+        File[] files = new File(args[0]).listFiles(File::isFile);
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + args[0]);
+        }
+        Arrays.sort(files);
+        ReplayRunner runner = new ReplayRunner();
+        long start = System.nanoTime();
+        for (File file : files) {
+            runner.run(file);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d files, %d turns, %d changed decisions, %.0f turns/sec",
+                files.length,
+                runner.getTurns(),
+                runner.getChangedTurns(),
+                runner.getTurns() / seconds));
+    }
+}
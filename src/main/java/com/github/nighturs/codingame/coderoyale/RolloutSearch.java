@@ -0,0 +1,169 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.BarracksType;
+import com.github.nighturs.codingame.coderoyale.Player.BuildingSite;
+import com.github.nighturs.codingame.coderoyale.Player.DegradationLevel;
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.MoveBuilder;
+import com.github.nighturs.codingame.coderoyale.Player.Owner;
+import com.github.nighturs.codingame.coderoyale.Player.StructureType;
+import com.github.nighturs.codingame.coderoyale.Player.TurnBudget;
+import com.github.nighturs.codingame.coderoyale.Player.TurnEngine;
+import com.github.nighturs.codingame.coderoyale.Player.Unit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_HEIGHT;
+import static com.github.nighturs.codingame.coderoyale.Player.GRID_WIDTH;
+import static com.github.nighturs.codingame.coderoyale.Player.QUEEN_SPEED;
+
+/**
+ * Looks a few turns ahead before moving the queen. Candidates are the moves proposed by each queen rule, a mine, a
+ * tower and knight barracks on the touched site and moves sampled around the queen and towards random sites. Each
+ * candidate is played for a turn on a {@link ForwardModel} and followed by {@link #ROLLOUT_TURNS} turns where the
+ * rules move the queen, the state reached is then scored. The search keeps sampling until the turn budget drops to
+ * its minimal level, which leaves the rest of the turn for writing the move, and plays the rules' own move unless
+ * every fixed candidate was tried and one of them, or a sampled one, scored better. Offline only, it is played
+ * through {@link Tournament} and not part of the submission.
+ */
+public class RolloutSearch {
+
+    static final int ROLLOUT_TURNS = 6;
+    // Sampled moves per turn, the only limit on the search when the turn has no deadline
+    static final int MAX_SAMPLED_MOVES = 12;
+    // Score a candidate has to beat the rules' move by, smaller gaps are rollout noise
+    static final double SWITCH_MARGIN = 4;
+
+    private final TurnEngine turnEngine;
+    private final TurnEngine rolloutEngine;
+    private final Random random;
+    private ForwardModel model;
+
+    public static RolloutSearch create(TurnEngine turnEngine) {
+        return new RolloutSearch(turnEngine, TurnEngine.create(), new Random(0));
+    }
+
+    /**
+     * Search playing {@code turnEngine}'s moves when it gives up, rollouts use an engine of their own.
+     */
+    public RolloutSearch(TurnEngine turnEngine, TurnEngine rolloutEngine, Random random) {
+        this.turnEngine = turnEngine;
+        this.rolloutEngine = rolloutEngine;
+        this.random = random;
+    }
+
+    public Move findMove(GameState gameState) {
+        Move proposal = turnEngine.findMove(gameState);
+        TurnBudget turnBudget = gameState.getTurnBudget();
+        List<Move> candidates = new ArrayList<>();
+        candidates.add(proposal);
+        // On a copy, rules that lose would otherwise keep routes for later turns that the queen never takes
+        for (Move move : rolloutEngine.queenProposals(gameState.copy())) {
+            addCandidate(candidates, move, proposal);
+        }
+        if (gameState.getTouchedSiteOpt().isPresent()) {
+            BuildingSite site = gameState.getTouchedSiteOpt().get();
+            if (site.getOwner() != Owner.ENEMY || site.getStructureType() != StructureType.TOWER) {
+                addCandidate(candidates,
+                        buildMove(site.getId(), StructureType.MINE, BarracksType.NONE),
+                        proposal);
+                addCandidate(candidates,
+                        buildMove(site.getId(), StructureType.TOWER, BarracksType.NONE),
+                        proposal);
+                addCandidate(candidates,
+                        buildMove(site.getId(), StructureType.BARRACKS, BarracksType.KNIGHT),
+                        proposal);
+            }
+        }
+        if (model == null) {
+            model = ForwardModel.create(gameState);
+        }
+        Move best = proposal;
+        double proposalScore = 0;
+        double bestScore = 0;
+        int fixed = candidates.size();
+        for (int i = 0; turnBudget.isLimited() || i < fixed + MAX_SAMPLED_MOVES; i++) {
+            if (turnBudget.level() == DegradationLevel.MINIMAL) {
+                if (i < fixed) {
+                    return proposal;
+                }
+                break;
+            }
+            Move candidate = i < fixed ? candidates.get(i) : sampleMove(gameState, proposal);
+            double score = rollout(gameState, candidate);
+            if (i == 0) {
+                proposalScore = score;
+                bestScore = score;
+            } else if (score > bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return bestScore > proposalScore + SWITCH_MARGIN ? best : proposal;
+    }
+
+    private double rollout(GameState gameState, Move first) {
+        model.load(gameState);
+        GameState view = gameState.copy();
+        Move move = first;
+        for (int turn = 0; ; turn++) {
+            model.step(move);
+            if (turn == ROLLOUT_TURNS || model.isOver()) {
+                break;
+            }
+            model.writeTurn(view);
+            move = rolloutEngine.findMove(view);
+        }
+        return model.evaluate();
+    }
+
+    private Move sampleMove(GameState gameState, Move proposal) {
+        Unit queen = gameState.getMyQueen();
+        int x;
+        int y;
+        if (random.nextBoolean()) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            x = queen.getX() + (int) Math.round(QUEEN_SPEED * Math.cos(angle));
+            y = queen.getY() + (int) Math.round(QUEEN_SPEED * Math.sin(angle));
+        } else {
+            int siteId = gameState.getSiteIdAt(random.nextInt(gameState.getSiteCount()));
+            x = gameState.getSiteX(siteId);
+            y = gameState.getSiteY(siteId);
+        }
+        return new MoveBuilder().setX(Math.min(Math.max(x, 0), GRID_WIDTH))
+                .setY(Math.min(Math.max(y, 0), GRID_HEIGHT))
+                .setTrainInSites(proposal.getTrainInSites())
+                .createMove();
+    }
+
+    private static Move buildMove(int siteId, StructureType structureType, BarracksType barracksType) {
+        return new MoveBuilder().setSiteId(siteId)
+                .setStructureType(structureType)
+                .setBarracksType(barracksType)
+                .createMove();
+    }
+
+    /**
+     * Adds the queen action of {@code move}, trained as the proposal, unless it is already a candidate.
+     */
+    private static void addCandidate(List<Move> candidates, Move move, Move proposal) {
+        for (Move candidate : candidates) {
+            if (Objects.equals(candidate.getX(), move.getX()) && Objects.equals(candidate.getY(), move.getY())
+                    && Objects.equals(candidate.getSiteId(), move.getSiteId())
+                    && candidate.getStructureType() == move.getStructureType()
+                    && candidate.getBarracksType() == move.getBarracksType()) {
+                return;
+            }
+        }
+        candidates.add(new Move(move.getX(),
+                move.getY(),
+                move.getSiteId(),
+                move.getStructureType(),
+                move.getBarracksType(),
+                proposal.getTrainInSites()));
+    }
+}
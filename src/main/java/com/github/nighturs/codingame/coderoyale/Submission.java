@@ -0,0 +1,137 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Builds the single file pasted into CodinGame from {@code Player.java}. Code between the offline markers (replay
+ * recording, rule profiling, game state copies, the tuner's side of {@link Player.Params}) only serves the offline
+ * tools and is left out, and so are the package declaration, comments, indentation, blank lines and spaces the
+ * compiler doesn't need, which keeps the file under CodinGame's size limit. The source itself is not changed, the
+ * offline tools keep using all of it.
+ */
+public class Submission {
+
+    static final int MAX_CHARS = 100_000;
+    static final String BEGIN_MARKER = "// offline:begin";
+    static final String END_MARKER = "// offline:end";
+    // Characters of operators that a space keeps apart, as in a - -b
+    static final String OPERATORS = "+-*/%&|^!~<>=?:";
+    static final Path SOURCE = Paths.get("src/main/java/com/github/nighturs/codingame/coderoyale/Player.java");
+
+    /**
+     * The submitted form of {@code source}.
+     */
+    static String strip(String source) {
+        StringBuilder sb = new StringBuilder(source.length());
+        for (String line : compact(withoutOfflineCode(source)).split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("package ")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String withoutOfflineCode(String source) {
+        StringBuilder sb = new StringBuilder(source.length());
+        boolean offline = false;
+        int lineNumber = 0;
+        for (String line : source.split("\n")) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.equals(BEGIN_MARKER) || trimmed.equals(END_MARKER)) {
+                if (offline == trimmed.equals(BEGIN_MARKER)) {
+                    throw new IllegalArgumentException("Unbalanced " + trimmed + " on line " + lineNumber);
+                }
+                offline = !offline;
+            } else if (!offline) {
+                sb.append(line).append('\n');
+            }
+        }
+        if (offline) {
+            throw new IllegalArgumentException("No " + END_MARKER + " after the last " + BEGIN_MARKER);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drops comments and keeps a single newline where a line ended, or a single space where two words or two
+     * operators would otherwise run together. String and char literals are copied as they are.
+     */
+    private static String compact(String source) {
+        StringBuilder sb = new StringBuilder(source.length());
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c) || source.startsWith("//", i) || source.startsWith("/*", i)) {
+                boolean newline = false;
+                while (i < source.length()) {
+                    if (source.startsWith("//", i)) {
+                        i = source.indexOf('\n', i);
+                        i = i == -1 ? source.length() : i;
+                    } else if (source.startsWith("/*", i)) {
+                        int end = source.indexOf("*/", i + 2);
+                        if (end == -1) {
+                            throw new IllegalArgumentException("Unterminated comment at " + i);
+                        }
+                        i = end + 2;
+                    } else if (Character.isWhitespace(source.charAt(i))) {
+                        newline |= source.charAt(i) == '\n';
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (newline) {
+                    sb.append('\n');
+                } else if (sb.length() > 0 && i < source.length()
+                        && needsSpace(sb.charAt(sb.length() - 1), source.charAt(i))) {
+                    sb.append(' ');
+                }
+            } else if (c == '"' || c == '\'') {
+                int end = i + 1;
+                while (source.charAt(end) != c) {
+                    end += source.charAt(end) == '\\' ? 2 : 1;
+                }
+                sb.append(source, i, end + 1);
+                i = end + 1;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean needsSpace(char before, char after) {
+        return Character.isJavaIdentifierPart(before) && Character.isJavaIdentifierPart(after)
+                || OPERATORS.indexOf(before) != -1 && OPERATORS.indexOf(after) != -1;
+    }
+
+    /**
+     * Usage: {@code Submission [Player.java] [output]}, defaults to this project's {@code Player.java} written to
+     * stdout. Fails when the result is over CodinGame's size limit.
+     */
+    public static void main(String[] args) {
+        Path source = args.length > 0 ? Paths.get(args[0]) : SOURCE;
+        try {
+            String submission = strip(new String(Files.readAllBytes(source), StandardCharsets.UTF_8));
+            if (submission.length() > MAX_CHARS) {
+                throw new IllegalStateException("Submission is " + submission.length() + " characters, CodinGame"
+                        + " takes at most " + MAX_CHARS);
+            }
+            if (args.length > 1) {
+                Files.write(Paths.get(args[1]), submission.getBytes(StandardCharsets.UTF_8));
+                System.err.println("Written " + submission.length() + " characters to " + args[1]);
+            } else {
+                System.out.print(submission);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.BuildStructureRule;
+import com.github.nighturs.codingame.coderoyale.Player.GoToNewSiteRule;
+import com.github.nighturs.codingame.coderoyale.Player.MoveBuilder;
+import com.github.nighturs.codingame.coderoyale.Player.RunFromKnightsRule;
+import com.github.nighturs.codingame.coderoyale.Player.TourPlanner;
+import com.github.nighturs.codingame.coderoyale.Player.TurnEngine;
+import com.github.nighturs.codingame.coderoyale.Referee.Bot;
+import com.github.nighturs.codingame.coderoyale.Referee.GameResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Plays two bot configurations against each other on seeded {@link Referee} maps across all cores. Every seed is
+ * played twice with the sides swapped to cancel out any first player advantage. Each game gets its own referee and
+ * freshly created bots, so games share no state.
+ */
+public class Tournament {
+
+    static final double CONFIDENCE_Z = 1.96;
+
+    /**
+     * Bot configurations by name. {@code pairs} only plans the closest site and the one after it, {@code search}
+     * looks ahead with {@link RolloutSearch}, {@code idle} is a frozen baseline that only ever waits.
+     */
+    static final Map<String, Supplier<Bot>> CONFIGS = configs();
+
+    private static Map<String, Supplier<Bot>> configs() {
+        Map<String, Supplier<Bot>> configs = new LinkedHashMap<>();
+        configs.put("default", () -> TurnEngine.create()::findMove);
+        configs.put("no-give-way",
+                () -> TurnEngine.create(Arrays.asList(new GoToNewSiteRule(),
+                        new BuildStructureRule(),
+                        new RunFromKnightsRule()), false)::findMove);
+        configs.put("no-run-from-knights",
+                () -> TurnEngine.create(Arrays.asList(new GoToNewSiteRule(), new BuildStructureRule()),
+                        true)::findMove);
+        configs.put("pairs",
+                () -> TurnEngine.create(Arrays.asList(new GoToNewSiteRule(TourPlanner.create(1,
+                        2,
+                        2,
+                        TourPlanner.BUDGET_NANOS)), new BuildStructureRule(), new RunFromKnightsRule()),
+                        true)::findMove);
+        configs.put("search", () -> RolloutSearch.create(TurnEngine.create())::findMove);
+        configs.put("idle",
+                () -> gameState -> new MoveBuilder().setTrainInSites(Collections.emptyList()).createMove());
+        return configs;
+    }
+
+    private final Supplier<Bot> botA;
+    private final Supplier<Bot> botB;
+    private final int seeds;
+    private final int threads;
+
+    public static Tournament create(Supplier<Bot> botA, Supplier<Bot> botB, int seeds, int threads) {
+        return new Tournament(botA, botB, seeds, threads);
+    }
+
+    public Tournament(Supplier<Bot> botA, Supplier<Bot> botB, int seeds, int threads) {
+        this.botA = botA;
+        this.botB = botB;
+        this.seeds = seeds;
+        this.threads = threads;
+    }
+
+    public Standings run() {
+        List<Callable<GameResult>> games = new ArrayList<>(seeds * 2);
+        for (int seed = 0; seed < seeds; seed++) {
+            long gameSeed = seed;
+            games.add(() -> Referee.create(gameSeed).play(botA.get(), botB.get()));
+            games.add(() -> Referee.create(gameSeed).play(botB.get(), botA.get()));
+        }
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            int winsA = 0;
+            int winsB = 0;
+            int draws = 0;
+            int forfeits = 0;
+            List<Future<GameResult>> results = pool.invokeAll(games);
+            for (int i = 0; i < results.size(); i++) {
+                GameResult result = results.get(i).get();
+                // Odd games have A playing second
+                int winnerA = i % 2 == 0 ? 0 : 1;
+                if (result.getWinner() == -1) {
+                    draws++;
+                } else if (result.getWinner() == winnerA) {
+                    winsA++;
+                } else {
+                    winsB++;
+                }
+                if (result.isForfeit()) {
+                    forfeits++;
+                }
+            }
+            return Standings.create(winsA, winsB, draws, forfeits, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static class Standings {
+
+        private final int winsA;
+        private final int winsB;
+        private final int draws;
+        private final int forfeits;
+        private final long elapsedNanos;
+
+        public static Standings create(int winsA, int winsB, int draws, int forfeits, long elapsedNanos) {
+            return new Standings(winsA, winsB, draws, forfeits, elapsedNanos);
+        }
+
+        public Standings(int winsA, int winsB, int draws, int forfeits, long elapsedNanos) {
+            this.winsA = winsA;
+            this.winsB = winsB;
+            this.draws = draws;
+            this.forfeits = forfeits;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getGames() {
+            return winsA + winsB + draws;
+        }
+
+        /**
+         * Share of points scored by A, a draw is worth half a win.
+         */
+        public double getWinRateA() {
+            return (winsA + draws / 2.0) / getGames();
+        }
+
+        /**
+         * Wilson score interval of {@link #getWinRateA()}, as {lower, upper}.
+         */
+        public double[] getWinRateIntervalA() {
+            double n = getGames();
+            double p = getWinRateA();
+            double z2 = CONFIDENCE_Z * CONFIDENCE_Z;
+            double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+            double halfWidth = CONFIDENCE_Z * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+            return new double[]{center - halfWidth, center + halfWidth};
+        }
+
+        public double getGamesPerSecond() {
+            return getGames() / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            double[] interval = getWinRateIntervalA();
+            return String.format("%d games: A won %d, B won %d, %d draws, %d forfeits%n"
+                            + "A win rate %.3f (95%% CI %.3f..%.3f), %.1f games/sec",
+                    getGames(),
+                    winsA,
+                    winsB,
+                    draws,
+                    forfeits,
+                    getWinRateA(),
+                    interval[0],
+                    interval[1],
+                    getGamesPerSecond());
+        }
+    }
+
+    /**
+     * Usage: {@code Tournament [configA] [configB] [seeds] [threads]}, defaults to {@code default} against
+     * {@code no-give-way} on 100 seeds using every core.
+     */
+    public static void main(String[] args) {
+        String configA = args.length > 0 ? args[0] : "default";
+        String configB = args.length > 1 ? args[1] : "no-give-way";
+        int seeds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (!CONFIGS.containsKey(configA) || !CONFIGS.containsKey(configB)) {
+            throw new IllegalArgumentException("Unknown config, expected one of " + CONFIGS.keySet());
+        }
+        System.out.println(configA + " (A) vs " + configB + " (B) on " + threads + " threads");
+        System.out.println(Tournament.create(CONFIGS.get(configA), CONFIGS.get(configB), seeds, threads).run());
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import com.github.nighturs.codingame.coderoyale.Player.GameState;
+import com.github.nighturs.codingame.coderoyale.Player.Move;
+import com.github.nighturs.codingame.coderoyale.Player.Params;
+import com.github.nighturs.codingame.coderoyale.Player.TurnEngine;
+import com.github.nighturs.codingame.coderoyale.Referee.Bot;
+import com.github.nighturs.codingame.coderoyale.Referee.GameResult;
+import com.github.nighturs.codingame.coderoyale.Tournament.Standings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes {@link Params} by successive halving. Random configurations and the defaults play the default rules on seeded
+ * {@link Referee} maps, the better half of them moves on to twice as many seeds until one is left. Every seed is
+ * played with the sides swapped and all games of a round are spread over the cores. A winner that beats the defaults
+ * can be written back into {@code Player.java} as the new defaults.
+ */
+public class Tuner {
+
+    static final String BEGIN_MARKER = "// tuned:begin";
+    static final String END_MARKER = "// tuned:end";
+    // Search range of each parameter and whether it is an integer, in Params.NAMES order
+    static final double[] MIN = {150, 250, 500, 200, 200, 0, 2};
+    static final double[] MAX = {450, 700, 1200, 700, 700, 4, 10};
+    static final boolean[] INTEGER = {true, true, true, true, true, true, false};
+
+    private final int candidates;
+    private final int firstSeeds;
+    private final int threads;
+    private final Random random;
+
+    public static Tuner create(int candidates, int firstSeeds, int threads, long seed) {
+        return new Tuner(candidates, firstSeeds, threads, new Random(seed));
+    }
+
+    public Tuner(int candidates, int firstSeeds, int threads, Random random) {
+        this.candidates = candidates;
+        this.firstSeeds = firstSeeds;
+        this.threads = threads;
+        this.random = random;
+    }
+
+    /**
+     * Runs rounds until a single configuration is left.
+     *
+     * @return the last one standing with its win rate against the defaults in the final round
+     */
+    public Result run() {
+        List<Params> pool = new ArrayList<>();
+        pool.add(Params.DEFAULTS);
+        while (pool.size() < candidates) {
+            pool.add(sample());
+        }
+        int seeds = firstSeeds;
+        for (int round = 1; ; round++) {
+            double[] winRates = evaluate(pool, seeds);
+            Integer[] order = new Integer[pool.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // Stable, so the defaults win ties
+            Arrays.sort(order, (a, b) -> Double.compare(winRates[b], winRates[a]));
+            System.out.println(String.format("Round %d: %d configs on %d seeds, best %.3f with %s",
+                    round,
+                    pool.size(),
+                    seeds,
+                    winRates[order[0]],
+                    pool.get(order[0])));
+            if (pool.size() == 1) {
+                return Result.create(pool.get(0), winRates[0], seeds);
+            }
+            List<Params> next = new ArrayList<>();
+            for (int i = 0; i < (pool.size() + 1) / 2; i++) {
+                next.add(pool.get(order[i]));
+            }
+            pool = next;
+            seeds *= 2;
+        }
+    }
+
+    private Params sample() {
+        double[] values = new double[MIN.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = MIN[i] + random.nextDouble() * (MAX[i] - MIN[i]);
+        }
+        return Params.fromArray(values);
+    }
+
+    /**
+     * Win rate of every configuration against the defaults, from one pool of games for the whole round.
+     */
+    private double[] evaluate(List<Params> pool, int seeds) {
+        List<Callable<GameResult>> games = new ArrayList<>(pool.size() * seeds * 2);
+        for (Params params : pool) {
+            for (int seed = 0; seed < seeds; seed++) {
+                long gameSeed = seed;
+                games.add(() -> Referee.create(gameSeed).play(bot(params), bot(Params.DEFAULTS)));
+                games.add(() -> Referee.create(gameSeed).play(bot(Params.DEFAULTS), bot(params)));
+            }
+        }
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
+        try {
+            List<Future<GameResult>> results = forkJoinPool.invokeAll(games);
+            double[] winRates = new double[pool.size()];
+            for (int c = 0; c < pool.size(); c++) {
+                int wins = 0;
+                int losses = 0;
+                int draws = 0;
+                int forfeits = 0;
+                for (int i = c * seeds * 2; i < (c + 1) * seeds * 2; i++) {
+                    GameResult result = results.get(i).get();
+                    // Odd games have the candidate playing second
+                    int candidate = i % 2 == 0 ? 0 : 1;
+                    if (result.getWinner() == -1) {
+                        draws++;
+                    } else if (result.getWinner() == candidate) {
+                        wins++;
+                    } else {
+                        losses++;
+                    }
+                    if (result.isForfeit()) {
+                        forfeits++;
+                    }
+                }
+                winRates[c] = Standings.create(wins, losses, draws, forfeits, 0).getWinRateA();
+            }
+            return winRates;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    static Bot bot(Params params) {
+        TurnEngine turnEngine = TurnEngine.create();
+        return new Bot() {
+            @Override
+            public Move findMove(GameState gameState) {
+                return turnEngine.findMove(gameState);
+            }
+
+            @Override
+            public Params getParams() {
+                return params;
+            }
+        };
+    }
+
+    /**
+     * Replaces the line between the markers in {@code source} with a declaration of {@code params} as the defaults.
+     */
+    static void writeDefaults(Path source, Params params) {
+        try {
+            String text = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+            int begin = text.indexOf(BEGIN_MARKER);
+            int end = text.indexOf(END_MARKER);
+            if (begin == -1 || end < begin) {
+                throw new IllegalArgumentException("No " + BEGIN_MARKER + " and " + END_MARKER + " in " + source);
+            }
+            String indent = text.substring(text.lastIndexOf('\n', begin) + 1, begin);
+            int from = text.indexOf('\n', begin) + 1;
+            int to = text.lastIndexOf('\n', end) + 1;
+            String declaration = indent + "static final Params DEFAULTS = " + toSource(params) + ";\n";
+            Files.write(source,
+                    (text.substring(0, from) + declaration + text.substring(to)).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String toSource(Params params) {
+        double[] values = params.toArray();
+        StringBuilder sb = new StringBuilder("new Params(");
+        for (int i = 0; i < values.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(INTEGER[i] ? Long.toString(Math.round(values[i])) :
+                    Double.toString(values[i]));
+        }
+        return sb.append(')').toString();
+    }
+
+    static class Result {
+
+        private final Params params;
+        private final double winRate;
+        private final int seeds;
+
+        public static Result create(Params params, double winRate, int seeds) {
+            return new Result(params, winRate, seeds);
+        }
+
+        public Result(Params params, double winRate, int seeds) {
+            this.params = params;
+            this.winRate = winRate;
+            this.seeds = seeds;
+        }
+
+        public Params getParams() {
+            return params;
+        }
+
+        public double getWinRate() {
+            return winRate;
+        }
+
+        public int getSeeds() {
+            return seeds;
+        }
+    }
+
+    /**
+     * Usage: {@code Tuner [candidates] [seeds] [threads] [Player.java]}, defaults to 16 configurations starting on 10
+     * seeds using every core. The winner is written into the given source file when it beats the defaults.
+     */
+    public static void main(String[] args) {
+        int candidates = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seeds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Result result = Tuner.create(candidates, seeds, threads, System.nanoTime()).run();
+        System.out.println(String.format("Best %s, win rate %.3f against the defaults on %d seeds",
+                toSource(result.getParams()),
+                result.getWinRate(),
+                result.getSeeds()));
+        if (args.length > 3) {
+            if (result.getParams() != Params.DEFAULTS && result.getWinRate() > 0.5) {
+                writeDefaults(Paths.get(args[3]), result.getParams());
+                System.out.println("Written to " + args[3]);
+            } else {
+                System.out.println("The defaults hold, " + args[3] + " is left as is");
+            }
+        }
+    }
+}
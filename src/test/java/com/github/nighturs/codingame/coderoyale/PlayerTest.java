@@ -1,8 +1,23 @@
 package com.github.nighturs.codingame.coderoyale;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import com.sun.management.ThreadMXBean;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 @SuppressWarnings("DynamicRegexReplaceableByCompiledPattern")
@@ -19,8 +34,8 @@ public class PlayerTest {
                         Player.StructureType.NONE,
                         Player.Owner.NONE,
                         0,
-                        Optional.empty(),
-                        Optional.empty(),
+                        -1,
+                        -1,
                         0,
                         0,
                         0,
@@ -29,14 +44,860 @@ public class PlayerTest {
                                 Player.StructureType.NONE,
                                 Player.Owner.NONE,
                                 0,
-                                Optional.empty(),
-                                Optional.empty(),
+                                -1,
+                                -1,
                                 0,
                                 0,
                                 0,
                                 Player.BarracksType.NONE)),
                 Arrays.asList(Player.Unit.create(500, 500, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
                         Player.Unit.create(1000, 1000, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
-        Assert.assertTrue(Player.TurnEngine.findMove(gameState).toString().matches("(WAIT|MOVE).*?\nTRAIN"));
+        Assert.assertTrue(Player.TurnEngine.create().findMove(gameState).toString().matches("(WAIT|MOVE).*?\nTRAIN"));
+    }
+
+    @Test
+    public void expiredBudgetStillMoves() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 100, 200, 100),
+                        Player.BuildingSiteStatic.create(1, 1000, 500, 100)));
+        gameState.getTurnBudget().start(0);
+        gameState.initTurn(100,
+                -1,
+                Arrays.asList(vacantSite(gameState, 0), vacantSite(gameState, 1)),
+                Arrays.asList(Player.Unit.create(500, 500, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                        Player.Unit.create(1000, 1000, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+        Assert.assertTrue(Player.TurnEngine.create().findMove(gameState).toString().matches("(WAIT|MOVE).*?\nTRAIN"));
+        Assert.assertEquals(Player.DegradationLevel.MINIMAL, gameState.getTurnBudget().getWorstLevel());
+    }
+
+    @Test
+    public void protocolCodecTest() {
+        String input = "2\n0 100 200 70\n1 1000 500 80\n"
+                + "150 -1\n0 -1 -1 -1 -1 -1 -1\n1 120 3 2 0 3 0\n"
+                + "2\n500 500 0 -1 200\n1400 500 1 -1 180\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Player.ProtocolCodec codec =
+                Player.ProtocolCodec.create(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), out);
+        Player.GameState gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+        Assert.assertTrue(codec.readTurn(gameState));
+        Assert.assertEquals(150, gameState.getGoldLeft());
+        Assert.assertEquals(Player.BarracksType.KNIGHT, gameState.getBuildingSiteById(1).getBarracksType());
+        Assert.assertEquals(3, gameState.getBuildingSiteById(1).getUntilTrain());
+        Assert.assertEquals(1400, gameState.getEnemyQueen().getX());
+        Assert.assertFalse(codec.readTurn(gameState));
+
+        codec.writeMove(new Player.MoveBuilder().setSiteId(0)
+                .setStructureType(Player.StructureType.BARRACKS)
+                .setBarracksType(Player.BarracksType.KNIGHT)
+                .setTrainInSites(Arrays.asList(1, 12))
+                .createMove());
+        codec.writeMove(new Player.MoveBuilder().setX(-5).setY(1000).createMove());
+        codec.flush();
+        Assert.assertEquals("BUILD 0 BARRACKS-KNIGHT\nTRAIN 1 12\nMOVE -5 1000\nTRAIN\n",
+                new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void replayMatchesRecordedDecisions() throws IOException {
+        String turn = "150 -1\n0 -1 -1 -1 -1 -1 -1\n1 120 3 2 0 3 0\n2\n500 500 0 -1 200\n1400 500 1 -1 180\n";
+        String input = "2\n0 100 200 70\n1 1000 500 80\n" + turn + turn;
+        File replay = File.createTempFile("replay", ".bin");
+        replay.deleteOnExit();
+        Player.ProtocolCodec codec = Player.ProtocolCodec.create(new ByteArrayInputStream(input.getBytes(
+                StandardCharsets.US_ASCII)), new ByteArrayOutputStream());
+        codec.setRecorder(Player.ReplayRecorder.create(new FileOutputStream(replay)));
+        Player.GameState gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+        gameState.getTurnBudget().disable();
+        Player.TurnEngine turnEngine = Player.TurnEngine.create();
+        while (codec.readTurn(gameState)) {
+            codec.writeMove(turnEngine.findMove(gameState));
+            codec.flush();
+        }
+
+        ReplayRunner runner = new ReplayRunner();
+        runner.run(replay);
+        Assert.assertEquals(2, runner.getTurns());
+        Assert.assertEquals(0, runner.getChangedTurns());
+    }
+
+    @Test
+    public void warmTurnsAreReadAndWrittenWithoutAllocating() {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported()
+                && threadBean.isThreadAllocatedMemoryEnabled());
+        // The JIT still allocates now and then over the first thousand turns or so
+        int warmTurns = 10000;
+        int turns = warmTurns + 1000;
+        Player.ProtocolCodec codec = allocationTestCodec(turns);
+        Player.GameState gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+        Player.Move move = new Player.MoveBuilder().setX(10).setY(20).setTrainInSites(Arrays.asList(0, 1)).createMove();
+        for (int i = 0; i < warmTurns; i++) {
+            codec.readTurn(gameState);
+            codec.writeMove(move);
+            codec.flush();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long overhead = threadBean.getThreadAllocatedBytes(threadId);
+        overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        while (codec.readTurn(gameState)) {
+            codec.writeMove(move);
+            codec.flush();
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+        Assert.assertEquals(0, allocated);
+        Assert.assertEquals(150 + turns - 1, gameState.getGoldLeft());
+    }
+
+    @Test
+    public void warmTurnsAreDecidedAllocatingOnlyTheMove() {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported()
+                && threadBean.isThreadAllocatedMemoryEnabled());
+        int warmTurns = 20000;
+        int turns = 1000;
+        Player.ProtocolCodec codec = allocationTestCodec(warmTurns + turns);
+        Player.GameState gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+        gameState.getTurnBudget().disable();
+        Player.TurnEngine turnEngine = Player.TurnEngine.create();
+        for (int i = 0; i < warmTurns; i++) {
+            codec.readTurn(gameState);
+            codec.writeMove(turnEngine.findMove(gameState));
+            codec.flush();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long overhead = threadBean.getThreadAllocatedBytes(threadId);
+        overhead = threadBean.getThreadAllocatedBytes(threadId) - overhead;
+        long allocated = 0;
+        while (codec.readTurn(gameState)) {
+            long start = threadBean.getThreadAllocatedBytes(threadId);
+            Player.Move move = turnEngine.findMove(gameState);
+            allocated += threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+            codec.writeMove(move);
+            codec.flush();
+        }
+        // What is left is the decision itself: the queen rule's MoveBuilder in an Optional, the Moves made of it with
+        // their boxed coordinates and their own copy of the training list and, next to a site, the turn's building
+        // decisions. That comes to 284 bytes on HotSpot 64-bit with compressed pointers, the bound leaves room for
+        // JIT noise but not for another list a turn
+        Assert.assertTrue(allocated / turns + " bytes a turn", allocated / turns <= 320);
+    }
+
+    @Test
+    public void movesKeepTheirTrainingAfterTheNextTurn() {
+        Player.ProtocolCodec codec = allocationTestCodec(1);
+        Player.GameState gameState = Player.GameState.create(codec.readBuildingSiteStatics());
+        gameState.getTurnBudget().disable();
+        Player.TurnEngine turnEngine = Player.TurnEngine.create();
+        codec.readTurn(gameState);
+        Player.Move move = turnEngine.findMove(gameState);
+        List<Integer> trained = new ArrayList<>(move.getTrainInSites());
+        Assert.assertFalse(trained.isEmpty());
+        // Nothing to train with on the next turn, the training rule empties its list
+        gameState.initTurn(0, -1, new ArrayList<>(gameState.getBuildingSites()), new ArrayList<>(gameState.getUnits()));
+        Assert.assertTrue(turnEngine.findMove(gameState).getTrainInSites().isEmpty());
+        Assert.assertEquals(trained, move.getTrainInSites());
+    }
+
+    @Test
+    public void profiledQueenRulesWinOnlyWhenGiveWayKeepsTheirMove() {
+        Player.RuleProfiler profiler = Player.RuleProfiler.create();
+        Player.TurnEngine turnEngine = Player.TurnEngine.create();
+        turnEngine.setProfiler(profiler);
+        int[] turns = new int[1];
+        // A game where a knight gets in the queen's way
+        Referee.create(2).play(gameState -> {
+            turns[0]++;
+            return turnEngine.findMove(gameState);
+        }, Player.TurnEngine.create()::findMove);
+        Player.RuleProfiler.RuleStats giveWay = profiler.getStats("GiveWayToKnightRule");
+        Assert.assertTrue(giveWay.getProduced() > 0);
+        Assert.assertEquals(giveWay.getProduced(), giveWay.getWon());
+        long played = giveWay.getWon();
+        long replaced = 0;
+        for (String rule : Arrays.asList("GoToNewSiteRule", "BuildStructureRule", "RunFromKnightsRule")) {
+            Player.RuleProfiler.RuleStats stats = profiler.getStats(rule);
+            played += stats.getWon();
+            replaced += stats.getProduced() - stats.getWon();
+        }
+        // One queen move a turn at most, and every move give-way played replaced a queen rule's
+        Assert.assertTrue(played <= turns[0]);
+        Assert.assertEquals(giveWay.getWon(), replaced);
+    }
+
+    @Test
+    public void warmupStopsOnItsBudget() {
+        List<Player.BuildingSiteStatic> buildingSiteStatics = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            buildingSiteStatics.add(Player.BuildingSiteStatic.create(i,
+                    200 + i % 5 * 380,
+                    150 + i / 5 * 230,
+                    60 + i % 3 * 20));
+        }
+        long start = System.nanoTime();
+        int turns = Player.Warmup.create(buildingSiteStatics).run(200_000_000L);
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue(turns > 0);
+        Assert.assertTrue("Took " + elapsed / 1000 + "us", elapsed < 300_000_000L);
+    }
+
+    @Test
+    public void findPathStepMatchesFullScan() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 300, 300, 90),
+                        Player.BuildingSiteStatic.create(1, 700, 650, 60),
+                        Player.BuildingSiteStatic.create(2, 1880, 950, 75)));
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            Player.BuildingSiteStatic target = gameState.getBuildingSiteStatics().get(random.nextInt(3));
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double reach = target.getRadius() + Player.QUEEN_RADIUS + random.nextInt(2 * Player.QUEEN_SPEED);
+            int queenX = Math.max(0, Math.min(Player.GRID_WIDTH, (int) (target.getX() + reach * Math.cos(angle))));
+            int queenY = Math.max(0, Math.min(Player.GRID_HEIGHT, (int) (target.getY() + reach * Math.sin(angle))));
+            gameState.initTurn(100,
+                    -1,
+                    Arrays.asList(vacantSite(gameState, 0), vacantSite(gameState, 1), vacantSite(gameState, 2)),
+                    Arrays.asList(Player.Unit.create(queenX, queenY, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+            Player.BuildingSite first = gameState.getBuildingSiteById(target.getId());
+            Player.BuildingSite second = gameState.getBuildingSiteById((target.getId() + 1) % 3);
+
+            Player.GoToNewSiteRule.Path path =
+                    Player.GoToNewSiteRule.findPath(queenX, queenY, first, Optional.of(second), gameState);
+            if (path.isGoingRound()) {
+                continue;
+            }
+            int[] expected = fullScanStep(queenX, queenY, first, second);
+            if (expected == null) {
+                continue;
+            }
+            Assert.assertEquals(expected[0], path.getStepX());
+            Assert.assertEquals(expected[1], path.getStepY());
+        }
+    }
+
+    @Test
+    public void routeGoesRoundSitesToContact() {
+        List<Player.BuildingSiteStatic> statics = new ArrayList<>();
+        Random random = new Random(4);
+        for (int id = 0; id < 12; id++) {
+            statics.add(Player.BuildingSiteStatic.create(id,
+                    200 + (id % 4) * 450 + random.nextInt(100),
+                    200 + (id / 4) * 300 + random.nextInt(100),
+                    60 + random.nextInt(30)));
+        }
+        Player.GameState gameState = Player.GameState.create(statics);
+        for (int i = 0; i < 100; i++) {
+            Player.BuildingSiteStatic target = statics.get(random.nextInt(statics.size()));
+            int queenX = random.nextInt(Player.GRID_WIDTH);
+            int queenY = random.nextInt(Player.GRID_HEIGHT);
+            boolean inside = false;
+            for (Player.BuildingSiteStatic site : statics) {
+                inside |= Player.Utils.dist(queenX, queenY, site.getX(), site.getY())
+                        < site.getRadius() + Player.QUEEN_RADIUS;
+            }
+            if (inside) {
+                continue;
+            }
+            int turn = 0;
+            while (!Player.Utils.inContact(queenX,
+                    queenY,
+                    Player.QUEEN_RADIUS,
+                    target.getX(),
+                    target.getY(),
+                    target.getRadius())) {
+                Assert.assertTrue("No contact with site " + target.getId(), turn++ < 60);
+                List<Player.BuildingSite> sites = new ArrayList<>();
+                for (Player.BuildingSiteStatic site : statics) {
+                    sites.add(vacantSite(gameState, site.getId()));
+                }
+                gameState.initTurn(0,
+                        -1,
+                        sites,
+                        Arrays.asList(Player.Unit.create(queenX,
+                                queenY,
+                                Player.Owner.FRIENDLY,
+                                Player.UnitType.QUEEN,
+                                100), Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+                Player.GoToNewSiteRule.Path path = Player.GoToNewSiteRule.findPath(queenX,
+                        queenY,
+                        gameState.getBuildingSiteById(target.getId()),
+                        Optional.empty(),
+                        gameState);
+                double dist = Player.Utils.dist(queenX, queenY, path.getStepX(), path.getStepY());
+                double k = Math.min(Player.QUEEN_SPEED / dist, 1);
+                queenX = (int) Math.round(queenX + (path.getStepX() - queenX) * k);
+                queenY = (int) Math.round(queenY + (path.getStepY() - queenY) * k);
+                for (Player.BuildingSiteStatic site : statics) {
+                    // Cutting a corner may dip a few pixels into a site, the referee pushes the queen back out
+                    Assert.assertTrue(site.getId() == target.getId() || Player.Utils.dist(queenX,
+                            queenY,
+                            site.getX(),
+                            site.getY()) > site.getRadius() + Player.QUEEN_RADIUS - 5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tourPlannerSkipsLoneClosestSite() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 700, 500, 60),
+                        Player.BuildingSiteStatic.create(1, 1240, 500, 60),
+                        Player.BuildingSiteStatic.create(2, 1240, 700, 60)));
+        gameState.initTurn(100,
+                -1,
+                Arrays.asList(vacantSite(gameState, 0), vacantSite(gameState, 1), vacantSite(gameState, 2)),
+                Arrays.asList(Player.Unit.create(960, 500, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                        Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+        List<SimpleEntry<Player.BuildingSite, Double>> sites = new ArrayList<>();
+        for (int id = 0; id < 3; id++) {
+            sites.add(new SimpleEntry<>(gameState.getBuildingSiteById(id), 0.0));
+        }
+
+        // Site 0 is the closest, but sites 1 and 2 together are the shorter tour
+        Player.GoToNewSiteRule.Path path = Player.TourPlanner.create(2, 2, 2, Player.TourPlanner.BUDGET_NANOS)
+                .plan(gameState, sites, sites, 2);
+        Assert.assertTrue(path.getStepX() > 960);
+        path = Player.TourPlanner.create(2, 2, 2, Player.TourPlanner.BUDGET_NANOS).plan(gameState, sites, sites, 1);
+        Assert.assertTrue(path.getStepX() < 960);
+    }
+
+    @Test
+    public void buildingDecisionsAreCachedForTheTurn() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 300, 300, 60),
+                        Player.BuildingSiteStatic.create(1, 900, 500, 60)));
+        Player.BuildingDecisionCache cache = gameState.getBuildingDecisionCache();
+        for (int turn = 0; turn < 2; turn++) {
+            gameState.initTurn(100 + turn * 100,
+                    -1,
+                    Arrays.asList(vacantSite(gameState, 0), vacantSite(gameState, 1)),
+                    Arrays.asList(Player.Unit.create(500, 500, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(1500, 500, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+            Player.BuildingSite site = gameState.getBuildingSiteById(0);
+            Optional<Player.BuildStructureRule.BuildingDecision> decision =
+                    Player.BuildStructureRule.buildingDecision(site, gameState, false);
+            Assert.assertSame(decision, Player.BuildStructureRule.buildingDecision(site, gameState, false));
+            Player.BuildStructureRule.buildingDecision(site, gameState, true);
+            // Every turn starts over, counters included: one miss for each key, the repeated lookup is the only hit
+            Assert.assertEquals(2, cache.getMisses());
+            Assert.assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    public void rulesReadParamsOfTheGameState() {
+        List<Player.BuildingSiteStatic> buildingSiteStatics =
+                Arrays.asList(Player.BuildingSiteStatic.create(0, 100, 200, 100));
+        Player.Params calm = Player.Params.create(0, 450, 800, 400, 400, 2, 5);
+        for (Player.Params params : Arrays.asList(Player.Params.DEFAULTS, calm)) {
+            Player.GameState gameState = Player.GameState.create(buildingSiteStatics, params);
+            gameState.initTurn(100,
+                    -1,
+                    Arrays.asList(vacantSite(gameState, 0)),
+                    Arrays.asList(Player.Unit.create(500, 500, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(1500, 500, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(600, 500, Player.Owner.ENEMY, Player.UnitType.KNIGHT, 25)));
+            Assert.assertEquals(params == Player.Params.DEFAULTS, Player.RunFromKnightsRule.isPanicMode(gameState));
+            Assert.assertSame(params, gameState.copy().getParams());
+        }
+    }
+
+    @Test
+    public void hostedGamesPlayLikeTheReferee() {
+        Host.Report report = Host.create(() -> Player.TurnEngine.create()::findMove,
+                () -> Player.TurnEngine.create()::findMove,
+                4,
+                2,
+                false).run();
+        for (int i = 0; i < 4; i++) {
+            Referee.GameResult hosted = report.getGames().get(i).getResult();
+            Referee.GameResult played = Referee.create(i / 2)
+                    .play(Player.TurnEngine.create()::findMove, Player.TurnEngine.create()::findMove);
+            Assert.assertEquals(played.getWinner(), hosted.getWinner());
+            Assert.assertEquals(played.getTurns(), hosted.getTurns());
+            Assert.assertEquals(played.getQueenHp0(), hosted.getQueenHp0());
+            Assert.assertEquals(played.getQueenHp1(), hosted.getQueenHp1());
+            Assert.assertFalse(hosted.isForfeit());
+            Assert.assertEquals(2 * hosted.getTurns(), report.getGames().get(i).getLatency().getCount());
+        }
+    }
+
+    @Test
+    public void giveWayStepClearsAllKnights() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 100, 100, 60)));
+        Random random = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            int queenX = 60 + random.nextInt(1800);
+            int queenY = 60 + random.nextInt(880);
+            int enemyX = random.nextInt(Player.GRID_WIDTH);
+            int enemyY = random.nextInt(Player.GRID_HEIGHT);
+            List<Player.Unit> units = new ArrayList<>();
+            units.add(Player.Unit.create(queenX, queenY, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100));
+            units.add(Player.Unit.create(enemyX, enemyY, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100));
+            for (int k = 0; k < 1 + random.nextInt(5); k++) {
+                units.add(Player.Unit.create(queenX + random.nextInt(200) - 100,
+                        queenY + random.nextInt(200) - 100,
+                        Player.Owner.FRIENDLY,
+                        Player.UnitType.KNIGHT,
+                        30));
+            }
+            gameState.initTurn(0, -1, Arrays.asList(vacantSite(gameState, 0)), units);
+            int wantedX = queenX + random.nextInt(121) - 60;
+            int wantedY = queenY + random.nextInt(121) - 60;
+            Optional<Player.MoveBuilder> move = new Player.GiveWayToKnightRule().makeMove(new Player.MoveBuilder().setX(
+                    wantedX).setY(wantedY).createMove(), gameState);
+            if (!move.isPresent()) {
+                continue;
+            }
+            Player.Move step = move.get().createMove();
+            Assert.assertTrue(Player.Utils.dist(queenX, queenY, step.getX(), step.getY()) <= Player.QUEEN_SPEED);
+            for (Player.Unit knight : units) {
+                if (knight.getUnitType() != Player.UnitType.KNIGHT) {
+                    continue;
+                }
+                // Knights stop once they touch the enemy queen
+                double dist = Player.Utils.dist(knight.getX(), knight.getY(), enemyX, enemyY);
+                double reach = Math.max(0, dist - Player.KNIGHT_RADIUS - Player.QUEEN_RADIUS);
+                for (int chunk = 1; chunk <= 5; chunk++) {
+                    double k = dist == 0 ? 0 : Math.min(Player.KNIGHT_SPEED * chunk / 5.0, reach) / dist;
+                    Assert.assertTrue(Player.Utils.dist(knight.getX() + k * (enemyX - knight.getX()),
+                            knight.getY() + k * (enemyY - knight.getY()),
+                            step.getX(),
+                            step.getY()) >= Player.KNIGHT_RADIUS + Player.QUEEN_RADIUS);
+                }
+            }
+        }
+    }
+
+    private static int[] fullScanStep(int curX, int curY, Player.BuildingSite first, Player.BuildingSite second) {
+        double bestFuture = Double.MAX_VALUE;
+        int[] best = null;
+        for (int x1 = -Player.QUEEN_SPEED; x1 <= Player.QUEEN_SPEED; x1++) {
+            for (int y1 = -Player.QUEEN_SPEED; y1 <= Player.QUEEN_SPEED; y1++) {
+                int newX = curX + x1;
+                int newY = curY + y1;
+                if (newX < 0 || newX > Player.GRID_WIDTH || newY < 0 || newY > Player.GRID_HEIGHT
+                        || Player.Utils.dist(curX, curY, newX, newY) > Player.QUEEN_SPEED
+                        || !Player.Utils.inContact(newX,
+                        newY,
+                        Player.QUEEN_RADIUS,
+                        first.getX(),
+                        first.getY(),
+                        first.getRadius())) {
+                    continue;
+                }
+                double secondDist = Player.Utils.dist(newX, newY, second.getX(), second.getY()) - second.getRadius()
+                        - Player.QUEEN_RADIUS - Player.CONTACT_RANGE;
+                if (secondDist < bestFuture) {
+                    bestFuture = secondDist;
+                    best = new int[]{newX, newY};
+                }
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void incrementalAggregatesMatchFullRecount() {
+        List<Player.BuildingSiteStatic> statics = new ArrayList<>();
+        for (int id = 0; id < 8; id++) {
+            statics.add(Player.BuildingSiteStatic.create(id, 150 + id * 220, 200 + (id % 3) * 300, 70));
+        }
+        Player.GameState gameState = Player.GameState.create(statics);
+        Random random = new Random(3);
+        Player.Owner[] owners = Player.Owner.values();
+        for (int turn = 0; turn < 200; turn++) {
+            List<Player.BuildingSite> sites = new ArrayList<>();
+            for (Player.BuildingSiteStatic site : statics) {
+                // Mostly unchanged sites, like in a real game
+                Player.BuildingSite previous = turn == 0 ? null : gameState.getBuildingSiteById(site.getId());
+                if (previous != null && random.nextInt(4) != 0) {
+                    sites.add(previous);
+                    continue;
+                }
+                Player.StructureType structureType = Player.StructureType.values()[random.nextInt(4)];
+                Player.Owner owner = structureType == Player.StructureType.NONE ?
+                        Player.Owner.NONE : owners[1 + random.nextInt(2)];
+                sites.add(Player.BuildingSite.create(site,
+                        structureType,
+                        owner,
+                        0,
+                        -1,
+                        -1,
+                        0,
+                        structureType == Player.StructureType.TOWER ? 100 + random.nextInt(400) : 0,
+                        structureType == Player.StructureType.MINE ? random.nextInt(4) : 0,
+                        structureType == Player.StructureType.BARRACKS ?
+                                Player.BarracksType.values()[1 + random.nextInt(3)] : Player.BarracksType.NONE));
+            }
+            gameState.initTurn(0,
+                    -1,
+                    sites,
+                    Arrays.asList(Player.Unit.create(100, 900, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+
+            int income = 0;
+            for (Player.BuildingSite site : sites) {
+                income += site.getIncomeRate();
+                Assert.assertEquals(sites.stream()
+                        .filter(x -> x.getOwner() == site.getOwner() && x.getStructureType() == site.getStructureType()
+                                && x.getBarracksType() == site.getBarracksType())
+                        .count(), gameState.getStructureCount(site.getOwner(),
+                        site.getStructureType(),
+                        site.getBarracksType()));
+                Assert.assertEquals(sites.stream()
+                        .anyMatch(x -> x.getOwner() == Player.Owner.FRIENDLY
+                                && x.getStructureType() == Player.StructureType.TOWER
+                                && gameState.getSiteDist(x.getId(), site.getId()) <= x.getTowerRange()),
+                        gameState.isCoveredByMyTower(site.getId()));
+            }
+            Assert.assertEquals(income, gameState.getOverallIncome());
+        }
+    }
+
+    @Test
+    public void copyDoesNotSeeLaterTurnsOfTheOriginal() {
+        List<Player.BuildingSiteStatic> statics = Arrays.asList(Player.BuildingSiteStatic.create(0, 400, 500, 70),
+                Player.BuildingSiteStatic.create(1, 1200, 500, 70));
+        List<Player.Unit> units = Arrays.asList(Player.Unit.create(100, 900, Player.Owner.FRIENDLY,
+                Player.UnitType.QUEEN,
+                100), Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100));
+        Player.GameState gameState = Player.GameState.create(statics);
+        gameState.initTurn(50,
+                -1,
+                Arrays.asList(tower(statics.get(0), Player.Owner.FRIENDLY), vacantSite(gameState, 1)),
+                units);
+        Player.GameState copy = gameState.copy();
+
+        gameState.initTurn(60, -1, Arrays.asList(vacantSite(gameState, 0), tower(statics.get(1), Player.Owner.ENEMY)),
+                units);
+
+        Assert.assertEquals(50, copy.getGoldLeft());
+        Assert.assertEquals(Player.Owner.FRIENDLY, copy.getSiteOwner(0));
+        Assert.assertEquals(Player.StructureType.NONE, copy.getSiteStructureType(1));
+        Assert.assertEquals(1,
+                copy.getStructureCount(Player.Owner.FRIENDLY, Player.StructureType.TOWER, Player.BarracksType.NONE));
+        Assert.assertTrue(copy.isCoveredByMyTower(0));
+        copy.getTowerRaster(Player.Owner.FRIENDLY).selectAt(400, 500);
+        Assert.assertEquals(0, copy.getTowerRaster(Player.Owner.FRIENDLY).nextCandidate(0));
+        copy.getTowerRaster(Player.Owner.ENEMY).selectAt(1200, 500);
+        Assert.assertEquals(-1, copy.getTowerRaster(Player.Owner.ENEMY).nextCandidate(0));
+        gameState.getTowerRaster(Player.Owner.FRIENDLY).selectAt(400, 500);
+        Assert.assertEquals(-1, gameState.getTowerRaster(Player.Owner.FRIENDLY).nextCandidate(0));
+        Assert.assertEquals(Player.Owner.ENEMY, gameState.getSiteOwner(1));
+    }
+
+    @Test
+    public void copyCachesTouchedSiteOptionalsOfItsOwn() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 400, 500, 70)));
+        List<Player.BuildingSite> sites = Arrays.asList(vacantSite(gameState, 0));
+        List<Player.Unit> units = Arrays.asList(Player.Unit.create(300, 500, Player.Owner.FRIENDLY,
+                Player.UnitType.QUEEN,
+                100), Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100));
+        gameState.initTurn(50, 0, sites, units);
+        Optional<Player.BuildingSite> touched = gameState.getTouchedSiteOpt();
+
+        Player.GameState copy = gameState.copy();
+        copy.initTurn(50, 0, Arrays.asList(tower(copy.getBuildingSiteStaticById(0), Player.Owner.FRIENDLY)), units);
+        Assert.assertEquals(Player.StructureType.TOWER, copy.getTouchedSiteOpt().get().getStructureType());
+
+        gameState.initTurn(50, 0, sites, units);
+        Assert.assertSame(touched, gameState.getTouchedSiteOpt());
+    }
+
+    @Test
+    public void sitesAndUnitsAreViewsOverTheStateNotTheInput() {
+        Player.GameState gameState =
+                Player.GameState.create(Arrays.asList(Player.BuildingSiteStatic.create(0, 400, 500, 70)));
+        Player.BuildingSite input = tower(gameState.getBuildingSiteStaticById(0), Player.Owner.FRIENDLY);
+        Player.Unit enemyQueen = Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100);
+        gameState.initTurn(50,
+                -1,
+                Arrays.asList(input),
+                Arrays.asList(Player.Unit.create(100, 900, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                        enemyQueen));
+        Player.BuildingSite site = gameState.getBuildingSites().get(0);
+        Player.Unit myQueen = gameState.getMyQueen();
+        Player.GameState copy = gameState.copy();
+
+        gameState.initTurn(50,
+                -1,
+                Arrays.asList(vacantSite(gameState, 0)),
+                Arrays.asList(Player.Unit.create(200, 900, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 90),
+                        enemyQueen));
+
+        Assert.assertNotSame(input, site);
+        Assert.assertEquals(Player.StructureType.TOWER, input.getStructureType());
+        Assert.assertEquals(Player.StructureType.NONE, site.getStructureType());
+        Assert.assertSame(site, gameState.getBuildingSiteById(0));
+        Assert.assertSame(myQueen, gameState.getMyQueen());
+        Assert.assertEquals(200, myQueen.getX());
+        Assert.assertEquals(Player.StructureType.TOWER, copy.getBuildingSiteById(0).getStructureType());
+        Assert.assertEquals(100, copy.getMyQueen().getX());
+    }
+
+    private static Player.BuildingSite tower(Player.BuildingSiteStatic site, Player.Owner owner) {
+        return Player.BuildingSite.create(site,
+                Player.StructureType.TOWER,
+                owner,
+                0,
+                -1,
+                -1,
+                400,
+                300,
+                0,
+                Player.BarracksType.NONE);
+    }
+
+    @Test
+    public void squaredGeometryMatchesSqrtOnBoundaries() {
+        Random random = new Random(13);
+        for (int i = 0; i < 200_000; i++) {
+            int x1 = random.nextInt(Player.GRID_WIDTH);
+            int y1 = random.nextInt(Player.GRID_HEIGHT);
+            // Short offsets often make whole distances, axis aligned segments whole distances to their line
+            int spread = random.nextBoolean() ? 60 : Player.GRID_WIDTH;
+            int x2 = x1 + random.nextInt(2 * spread + 1) - spread;
+            int y2 = random.nextBoolean() ? y1 : y1 + random.nextInt(2 * spread + 1) - spread;
+            int x0 = x1 + random.nextInt(2 * spread + 1) - spread;
+            int y0 = y1 + random.nextInt(2 * spread + 1) - spread;
+            double dist = Player.Utils.dist(x1, y1, x0, y0);
+            int threshold = (int) Math.round(dist) + random.nextInt(3) - 1;
+            Assert.assertEquals(dist <= threshold, Player.Utils.withinRange(x1, y1, x0, y0, threshold));
+            Assert.assertEquals(dist < threshold, Player.Utils.closerThan(x1, y1, x0, y0, threshold));
+            int r1 = Math.max(threshold / 2, 0);
+            int r2 = threshold - r1 - Player.CONTACT_RANGE;
+            Assert.assertEquals(dist - r1 - r2 < Player.CONTACT_RANGE,
+                    Player.Utils.inContact(x1, y1, r1, x0, y0, r2));
+            int radius = (int) Math.round(Player.Utils.distLinePoint(x1, y1, x2, y2, x0, y0)) + random.nextInt(3) - 1;
+            Assert.assertEquals(sqrtSegmentHitsCircle(x1, y1, x2, y2, x0, y0, radius),
+                    Player.Utils.segmentHitsCircle(x1, y1, x2, y2, x0, y0, radius));
+        }
+        // Exactly on the circle, and projecting exactly onto an end of the segment
+        Assert.assertFalse(Player.Utils.segmentHitsCircle(0, 0, 100, 0, 50, 30, 30));
+        Assert.assertTrue(Player.Utils.segmentHitsCircle(0, 0, 100, 0, 50, 29, 30));
+        Assert.assertFalse(Player.Utils.segmentHitsCircle(0, 0, 100, 0, 100, 10, 30));
+        Assert.assertTrue(Player.Utils.withinRange(0, 0, 300, 400, 500));
+        Assert.assertFalse(Player.Utils.closerThan(0, 0, 300, 400, 500));
+    }
+
+    /**
+     * The obstacle test as it was before the squared distance kernel.
+     */
+    private static boolean sqrtSegmentHitsCircle(int x1, int y1, int x2, int y2, int x0, int y0, int radius) {
+        return Player.Utils.distLinePoint(x1, y1, x2, y2, x0, y0) < radius
+                && Player.Utils.isProjectedPointOnLineSegment(x1, y1, x2, y2, x0, y0);
+    }
+
+    @Test
+    public void spatialIndexQueriesMatchLinearScan() {
+        Random random = new Random(6);
+        Player.Owner[] owners = {Player.Owner.FRIENDLY, Player.Owner.ENEMY};
+        Player.SpatialIndex index = new Player.SpatialIndex();
+        for (int turn = 0; turn < 50; turn++) {
+            // Coordinates on a coarse lattice, so equal distances and ties are common
+            List<Player.BuildingSite> sites = new ArrayList<>();
+            int maxSiteRadius = 0;
+            for (int id = 0; id < 24; id++) {
+                int radius = 60 + random.nextInt(30);
+                maxSiteRadius = Math.max(maxSiteRadius, radius);
+                Player.StructureType structureType = Player.StructureType.values()[random.nextInt(4)];
+                boolean barracks = structureType == Player.StructureType.BARRACKS;
+                sites.add(Player.BuildingSite.create(Player.BuildingSiteStatic.create(id,
+                        50 * random.nextInt(39),
+                        50 * random.nextInt(21),
+                        radius),
+                        structureType,
+                        structureType == Player.StructureType.NONE ? Player.Owner.NONE : owners[random.nextInt(2)],
+                        0,
+                        -1,
+                        -1,
+                        0,
+                        0,
+                        0,
+                        barracks ? Player.BarracksType.values()[1 + random.nextInt(3)] : Player.BarracksType.NONE));
+            }
+            List<Player.Unit> units = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                units.add(Player.Unit.create(50 * random.nextInt(39),
+                        50 * random.nextInt(21),
+                        owners[random.nextInt(2)],
+                        Player.UnitType.values()[random.nextInt(4)],
+                        10));
+            }
+            index.rebuild(sites, units);
+
+            for (int i = 0; i < 100; i++) {
+                int x = 50 * random.nextInt(39);
+                int y = 50 * random.nextInt(21);
+                int dist = 50 * random.nextInt(8);
+                Player.Owner owner = owners[random.nextInt(2)];
+                Player.UnitType unitType = Player.UnitType.values()[random.nextInt(4)];
+                Player.Unit nearestUnit = null;
+                List<Player.Unit> closer = new ArrayList<>();
+                for (Player.Unit unit : units) {
+                    if (unit.getOwner() != owner || unit.getUnitType() != unitType) {
+                        continue;
+                    }
+                    double unitDist = Player.Utils.dist(x, y, unit.getX(), unit.getY());
+                    if (nearestUnit == null || unitDist < Player.Utils.dist(x, y, nearestUnit.getX(),
+                            nearestUnit.getY())) {
+                        nearestUnit = unit;
+                    }
+                    if (unitDist < dist) {
+                        closer.add(unit);
+                    }
+                }
+                Assert.assertSame(nearestUnit, index.nearestUnit(x, y, owner, unitType).orElse(null));
+                Assert.assertEquals(!closer.isEmpty(), index.hasUnitCloserThan(x, y, dist, owner, unitType));
+                List<Player.Unit> indexed = index.unitsCloserThan(x, y, dist, owner, unitType, new ArrayList<>());
+                Assert.assertEquals(closer.size(), indexed.size());
+                Assert.assertTrue(closer.containsAll(indexed));
+
+                Player.BuildingSite site = sites.get(random.nextInt(sites.size()));
+                Player.BuildingSite nearestSite = null;
+                int lastInContact = -1;
+                for (Player.BuildingSite other : sites) {
+                    if (other.getStructureType() == site.getStructureType()
+                            && other.getBarracksType() == site.getBarracksType()
+                            && other.getOwner() == site.getOwner() && (nearestSite == null
+                            || Player.Utils.dist(x, y, other.getX(), other.getY())
+                            < Player.Utils.dist(x, y, nearestSite.getX(), nearestSite.getY()))) {
+                        nearestSite = other;
+                    }
+                    if (Player.Utils.inContact(x, y, Player.QUEEN_RADIUS, other.getX(), other.getY(),
+                            other.getRadius())) {
+                        lastInContact = other.getId();
+                    }
+                }
+                Assert.assertSame(nearestSite,
+                        index.nearestSite(x, y, site.getStructureType(), site.getBarracksType(), site.getOwner())
+                                .orElse(null));
+                Assert.assertEquals(lastInContact,
+                        index.lastSiteIdInContact(x, y, Player.QUEEN_RADIUS, maxSiteRadius));
+            }
+        }
+    }
+
+    @Test
+    public void towerRasterQueriesMatchFullScan() {
+        List<Player.BuildingSiteStatic> statics = new ArrayList<>();
+        Random random = new Random(5);
+        for (int id = 0; id < 24; id++) {
+            statics.add(Player.BuildingSiteStatic.create(id,
+                    60 + random.nextInt(1800),
+                    60 + random.nextInt(880),
+                    60 + random.nextInt(30)));
+        }
+        Player.GameState gameState = Player.GameState.create(statics);
+        for (int turn = 0; turn < 50; turn++) {
+            List<Player.BuildingSite> sites = new ArrayList<>();
+            for (Player.BuildingSiteStatic site : statics) {
+                boolean tower = random.nextInt(3) == 0;
+                sites.add(Player.BuildingSite.create(site,
+                        tower ? Player.StructureType.TOWER : Player.StructureType.NONE,
+                        tower ? (random.nextBoolean() ? Player.Owner.FRIENDLY : Player.Owner.ENEMY) :
+                                Player.Owner.NONE,
+                        0,
+                        -1,
+                        -1,
+                        0,
+                        tower ? 100 + random.nextInt(400) : 0,
+                        0,
+                        Player.BarracksType.NONE));
+            }
+            gameState.initTurn(0,
+                    -1,
+                    sites,
+                    Arrays.asList(Player.Unit.create(100, 900, Player.Owner.FRIENDLY, Player.UnitType.QUEEN, 100),
+                            Player.Unit.create(1800, 900, Player.Owner.ENEMY, Player.UnitType.QUEEN, 100)));
+
+            for (int i = 0; i < 100; i++) {
+                int x1 = random.nextInt(Player.GRID_WIDTH);
+                int y1 = random.nextInt(Player.GRID_HEIGHT);
+                int x2 = random.nextInt(Player.GRID_WIDTH);
+                int y2 = random.nextInt(Player.GRID_HEIGHT);
+                int onPath = 0;
+                boolean covered = false;
+                for (Player.BuildingSite site : sites) {
+                    if (site.getStructureType() != Player.StructureType.TOWER) {
+                        continue;
+                    }
+                    int range = site.getTowerRange();
+                    double dist = Player.Utils.dist(x1, y1, site.getX(), site.getY());
+                    if (site.getOwner() == Player.Owner.FRIENDLY && (dist <= range
+                            || Player.Utils.dist(x2, y2, site.getX(), site.getY()) <= range
+                            || sqrtSegmentHitsCircle(x1, y1, x2, y2, site.getX(), site.getY(), range))) {
+                        onPath++;
+                    }
+                    covered |= site.getOwner() == Player.Owner.ENEMY && dist <= range;
+                }
+                Assert.assertEquals(onPath, Player.BuildStructureRule.towersOnPath(gameState, x1, y1, x2, y2, null));
+
+                Player.CoverageRaster enemyTowers = gameState.getTowerRaster(Player.Owner.ENEMY);
+                enemyTowers.selectAt(x1, y1);
+                boolean rasterCovered = false;
+                for (int id = enemyTowers.nextCandidate(0); id != -1; id = enemyTowers.nextCandidate(id + 1)) {
+                    rasterCovered |= Player.Utils.dist(x1, y1, gameState.getSiteX(id), gameState.getSiteY(id))
+                            <= gameState.getSiteTowerRange(id);
+                }
+                Assert.assertEquals(covered, rasterCovered);
+            }
+        }
+    }
+
+    @Test
+    public void histogramPercentilesWithinBucketPrecision() {
+        Player.Histogram histogram = new Player.Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1_000_000, histogram.getMax());
+        Assert.assertEquals(500_000, histogram.percentile(0.5), 500_000 / 8.0);
+        Assert.assertEquals(990_000, histogram.percentile(0.99), 990_000 / 8.0);
+        Assert.assertEquals(1_000_000, histogram.percentile(1));
+    }
+
+    /**
+     * Codec reading {@code turns} turns of a two site map. The queen alternates between touching the enemy mine and
+     * standing clear of it with a knight around, and a knight barracks of hers trains every turn.
+     */
+    private static Player.ProtocolCodec allocationTestCodec(int turns) {
+        IntBuffer ints = IntBuffer.allocate(9 + turns * 32);
+        ints.put(new int[]{2, 0, 100, 200, 70, 1, 1000, 500, 80});
+        for (int i = 0; i < turns; i++) {
+            ints.put(new int[]{150 + i, -1, 0, -1, -1, 2, 0, 0, 0, 1, 120, 3, 0, 1, 2, -1});
+            if (i % 2 == 0) {
+                ints.put(new int[]{2, 890, 500, 0, -1, 200, 1400, 500, 1, -1, 180});
+            } else {
+                ints.put(new int[]{3, 500, 500, 0, -1, 200, 1400, 500, 1, -1, 180, 700, 520, 1, 0, 20});
+            }
+        }
+        ints.flip();
+        return Player.ProtocolCodec.create(new ReplayRunner.IntBufferInput(ints), new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+    }
+
+    private static Player.BuildingSite vacantSite(Player.GameState gameState, int id) {
+        return Player.BuildingSite.create(gameState.getBuildingSiteStaticById(id),
+                Player.StructureType.NONE,
+                Player.Owner.NONE,
+                0,
+                -1,
+                -1,
+                0,
+                0,
+                0,
+                Player.BarracksType.NONE);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,162 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RefereeTest {
+
+    private static final Player.Move WAIT = move(Collections.emptyList());
+
+    @Test
+    public void minePaysItsRateUntilTheSiteRunsDry() {
+        Referee referee = Referee.create(0);
+        int siteId = build(referee, Player.StructureType.MINE, Player.BarracksType.NONE);
+        Player.GameState view = view(referee, 0);
+        Assert.assertEquals(1, view.getBuildingSiteById(siteId).getIncomeRate());
+        int builtGold = view.getBuildingSiteById(siteId).getGoldOrElse(-1);
+        int siteGold = builtGold;
+        int gold = view.getGoldLeft();
+        int collected = 0;
+        for (int turn = 0; turn < 1000; turn++) {
+            referee.advance(WAIT, WAIT);
+            view = view(referee, 0);
+            Player.BuildingSite site = view.getBuildingSiteById(siteId);
+            collected += view.getGoldLeft() - gold;
+            if (site.getStructureType() == Player.StructureType.NONE) {
+                break;
+            }
+            Assert.assertEquals(gold + 1, view.getGoldLeft());
+            Assert.assertEquals(siteGold - 1, site.getGoldOrElse(-1));
+            gold = view.getGoldLeft();
+            siteGold = site.getGoldOrElse(-1);
+        }
+        Player.BuildingSite site = view.getBuildingSiteById(siteId);
+        Assert.assertEquals(Player.StructureType.NONE, site.getStructureType());
+        Assert.assertEquals(Player.Owner.NONE, site.getOwner());
+        Assert.assertEquals(0, site.getGoldOrElse(-1));
+        Assert.assertEquals(builtGold, collected);
+    }
+
+    @Test
+    public void towerMeltsAndItsRangeFollowsItsHp() {
+        Referee referee = Referee.create(0);
+        int siteId = build(referee, Player.StructureType.TOWER, Player.BarracksType.NONE);
+        Player.BuildingSite site = view(referee, 0).getBuildingSiteById(siteId);
+        // Built and melted once in the same turn
+        Assert.assertEquals(ForwardModel.TOWER_INITIAL_HP - ForwardModel.TOWER_MELT_RATE, site.getTowerHP());
+        for (int turn = 0; turn < 20; turn++) {
+            int hp = site.getTowerHP();
+            double area = Math.PI * site.getRadius() * site.getRadius();
+            Assert.assertEquals((int) Math.sqrt((hp * ForwardModel.TOWER_COVERAGE_PER_HP + area) / Math.PI),
+                    site.getTowerRange());
+            referee.advance(WAIT, WAIT);
+            site = view(referee, 0).getBuildingSiteById(siteId);
+            Assert.assertEquals(hp - ForwardModel.TOWER_MELT_RATE, site.getTowerHP());
+        }
+    }
+
+    @Test
+    public void barracksCountDownAndSpawnTheirCreeps() {
+        Referee referee = Referee.create(0);
+        int siteId = build(referee, Player.StructureType.BARRACKS, Player.BarracksType.KNIGHT);
+        int gold = view(referee, 0).getGoldLeft();
+        referee.advance(move(Collections.singletonList(siteId)), WAIT);
+        Player.GameState view = view(referee, 0);
+        Assert.assertEquals(gold - Player.KNIGHT_COST, view.getGoldLeft());
+        int trainTurns = ForwardModel.creepTrainTurns(Player.BarracksType.KNIGHT);
+        for (int untilTrain = trainTurns - 1; untilTrain > 0; untilTrain--) {
+            Assert.assertEquals(untilTrain, view.getBuildingSiteById(siteId).getUntilTrain());
+            Assert.assertEquals(0, knights(view, Player.Owner.FRIENDLY));
+            referee.advance(WAIT, WAIT);
+            view = view(referee, 0);
+        }
+        Assert.assertEquals(0, view.getBuildingSiteById(siteId).getUntilTrain());
+        Assert.assertEquals(ForwardModel.creepCount(Player.UnitType.KNIGHT), knights(view, Player.Owner.FRIENDLY));
+        for (Player.Unit unit : view.getUnits()) {
+            if (unit.getUnitType() == Player.UnitType.KNIGHT) {
+                Assert.assertEquals(ForwardModel.creepHp(Player.UnitType.KNIGHT), unit.getHp());
+            }
+        }
+    }
+
+    @Test
+    public void knightsInContactHurtTheEnemyQueen() {
+        Referee referee = Referee.create(0);
+        int siteId = build(referee, Player.StructureType.BARRACKS, Player.BarracksType.KNIGHT);
+        referee.advance(move(Collections.singletonList(siteId)), WAIT);
+        int damage = 0;
+        for (int turn = 0; turn < 40; turn++) {
+            int hp = view(referee, 0).getEnemyQueen().getHp();
+            int knights = knights(view(referee, 0), Player.Owner.FRIENDLY);
+            referee.advance(WAIT, WAIT);
+            Player.GameState view = view(referee, 0);
+            Player.Unit enemyQueen = view.getEnemyQueen();
+            int touching = 0;
+            for (Player.Unit unit : view.getUnits()) {
+                if (unit.getOwner() == Player.Owner.FRIENDLY && unit.getUnitType() == Player.UnitType.KNIGHT
+                        && Player.Utils.dist(unit.getX(), unit.getY(), enemyQueen.getX(), enemyQueen.getY())
+                        - Player.KNIGHT_RADIUS - Player.QUEEN_RADIUS < Player.CONTACT_RANGE) {
+                    touching++;
+                }
+            }
+            // Knights that age out strike once more before they are gone from the view
+            if (knights(view, Player.Owner.FRIENDLY) == knights) {
+                Assert.assertEquals(touching * ForwardModel.KNIGHT_DAMAGE, hp - enemyQueen.getHp());
+            }
+            damage += hp - enemyQueen.getHp();
+        }
+        Assert.assertTrue(damage > 0);
+    }
+
+    /**
+     * Walks player 0's queen to the site closest to it and builds there, player 1 waits.
+     *
+     * @return id of the site
+     */
+    private static int build(Referee referee, Player.StructureType structureType, Player.BarracksType barracksType) {
+        Player.GameState view = view(referee, 0);
+        Player.Unit queen = view.getMyQueen();
+        Player.BuildingSite closest = null;
+        for (Player.BuildingSite site : view.getBuildingSites()) {
+            if (closest == null || Player.Utils.dist(queen.getX(), queen.getY(), site.getX(), site.getY())
+                    < Player.Utils.dist(queen.getX(), queen.getY(), closest.getX(), closest.getY())) {
+                closest = site;
+            }
+        }
+        Player.Move build = new Player.MoveBuilder().setSiteId(closest.getId())
+                .setStructureType(structureType)
+                .setBarracksType(barracksType)
+                .setTrainInSites(Collections.emptyList())
+                .createMove();
+        for (int turn = 0; turn < 50; turn++) {
+            referee.advance(build, WAIT);
+            if (view(referee, 0).getBuildingSiteById(closest.getId()).getStructureType() == structureType) {
+                return closest.getId();
+            }
+        }
+        throw new AssertionError("Queen never built on site " + closest.getId());
+    }
+
+    private static Player.GameState view(Referee referee, int p) {
+        Player.GameState gameState = Player.GameState.create(referee.getSiteStatics());
+        gameState.getTurnBudget().disable();
+        referee.initView(gameState, p);
+        return gameState;
+    }
+
+    private static Player.Move move(List<Integer> trainInSites) {
+        return new Player.MoveBuilder().setTrainInSites(trainInSites).createMove();
+    }
+
+    private static int knights(Player.GameState view, Player.Owner owner) {
+        int knights = 0;
+        for (Player.Unit unit : view.getUnits()) {
+            if (unit.getOwner() == owner && unit.getUnitType() == Player.UnitType.KNIGHT) {
+                knights++;
+            }
+        }
+        return knights;
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.nighturs.codingame.coderoyale;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class SubmissionTest {
+
+    @Test
+    public void playerFitsCodinGameAndCompilesOnItsOwn() throws IOException {
+        String submission = Submission.strip(new String(Files.readAllBytes(Submission.SOURCE), StandardCharsets.UTF_8));
+        Assert.assertTrue(submission.length() + " characters", submission.length() <= Submission.MAX_CHARS);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeTrue(compiler != null);
+        Path dir = Files.createTempDirectory("submission");
+        Path source = dir.resolve("Player.java");
+        Files.write(source, submission.getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(0, compiler.run(null, null, null, "-nowarn", "-d", dir.toString(), source.toString()));
+        Assert.assertTrue(new File(dir.toFile(), "Player.class").exists());
+    }
+
+    @Test
+    public void offlineCodeAndCommentsGoLiteralsAndTokensStay() {
+        String source = "package p;\n"
+                + "class A {\n"
+                + "    // offline:begin\n"
+                + "    int recorded;\n"
+                + "    // offline:end\n"
+                + "    /**\n"
+                + "     * Doc.\n"
+                + "     */\n"
+                + "    int f(int b) {\n"
+                + "        String s = \"a // b /* c\";\n"
+                + "        char q = '\"';\n"
+                + "        return b - -b + s.length(); // trailing\n"
+                + "    }\n"
+                + "}\n";
+        Assert.assertEquals("class A{\n"
+                + "int f(int b){\n"
+                + "String s=\"a // b /* c\";\n"
+                + "char q='\"';\n"
+                + "return b- -b+s.length();\n"
+                + "}\n"
+                + "}\n", Submission.strip(source));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbalancedMarkersAreRejected() {
+        Submission.strip("class A {\n// offline:begin\n}\n");
+    }
+}